@@ -0,0 +1,71 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+
+// a complex content that is only built when one of its fields is accessed
+// the type is known up front so it can be assigned wherever the actual content is expected
+public class LazyComplexContent implements ComplexContent {
+
+	public interface ContentLoader {
+		public ComplexContent load();
+	}
+
+	private ComplexType type;
+	private ContentLoader loader;
+	private ComplexContent content;
+
+	public LazyComplexContent(ComplexType type, ContentLoader loader) {
+		this.type = type;
+		this.loader = loader;
+	}
+
+	private ComplexContent getContent() {
+		if (content == null) {
+			content = loader.load();
+			// an empty instance behaves the same as no content at all
+			if (content == null) {
+				content = type.newInstance();
+			}
+			loader = null;
+		}
+		return content;
+	}
+
+	public boolean isLoaded() {
+		return content != null;
+	}
+
+	@Override
+	public ComplexType getType() {
+		return type;
+	}
+
+	@Override
+	public void set(String path, Object value) {
+		getContent().set(path, value);
+	}
+
+	@Override
+	public Object get(String path) {
+		return getContent().get(path);
+	}
+
+}
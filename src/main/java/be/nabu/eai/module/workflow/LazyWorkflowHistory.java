@@ -0,0 +1,114 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import nabu.misc.workflow.types.WorkflowTransitionInstance;
+import be.nabu.eai.module.workflow.provider.WorkflowManager;
+
+// the history of a workflow is only loaded from the provider once it is actually read
+// transitions that are added before that are retained and merged with the persisted history
+public class LazyWorkflowHistory extends AbstractList<WorkflowTransitionInstance> {
+
+	private WorkflowManager workflowManager;
+	private String connectionId;
+	private UUID workflowId;
+	private List<WorkflowTransitionInstance> history;
+	private List<WorkflowTransitionInstance> added = new ArrayList<WorkflowTransitionInstance>();
+
+	public LazyWorkflowHistory(WorkflowManager workflowManager, String connectionId, UUID workflowId) {
+		this.workflowManager = workflowManager;
+		this.connectionId = connectionId;
+		this.workflowId = workflowId;
+	}
+
+	public static boolean isLoaded(List<WorkflowTransitionInstance> history) {
+		return !(history instanceof LazyWorkflowHistory) || ((LazyWorkflowHistory) history).history != null;
+	}
+
+	private List<WorkflowTransitionInstance> getHistory() {
+		if (history == null) {
+			List<WorkflowTransitionInstance> history = new ArrayList<WorkflowTransitionInstance>();
+			List<WorkflowTransitionInstance> transitions = workflowManager.getTransitions(connectionId, workflowId);
+			Set<UUID> ids = new HashSet<UUID>();
+			if (transitions != null) {
+				for (WorkflowTransitionInstance transition : transitions) {
+					history.add(transition);
+					ids.add(transition.getId());
+				}
+			}
+			// the added transitions may or may not have been persisted already
+			for (WorkflowTransitionInstance transition : added) {
+				if (ids.add(transition.getId())) {
+					history.add(transition);
+				}
+				// we prefer our own instance over the persisted one, it is the one that is being updated
+				else {
+					for (int i = 0; i < history.size(); i++) {
+						if (history.get(i).getId().equals(transition.getId())) {
+							history.set(i, transition);
+							break;
+						}
+					}
+				}
+			}
+			added = null;
+			this.history = history;
+		}
+		return history;
+	}
+
+	@Override
+	public boolean add(WorkflowTransitionInstance e) {
+		if (history == null) {
+			return added.add(e);
+		}
+		return history.add(e);
+	}
+
+	@Override
+	public void add(int index, WorkflowTransitionInstance element) {
+		getHistory().add(index, element);
+	}
+
+	@Override
+	public WorkflowTransitionInstance set(int index, WorkflowTransitionInstance element) {
+		return getHistory().set(index, element);
+	}
+
+	@Override
+	public WorkflowTransitionInstance remove(int index) {
+		return getHistory().remove(index);
+	}
+
+	@Override
+	public WorkflowTransitionInstance get(int index) {
+		return getHistory().get(index);
+	}
+
+	@Override
+	public int size() {
+		return getHistory().size();
+	}
+}
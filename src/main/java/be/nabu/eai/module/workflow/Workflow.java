@@ -28,8 +28,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.slf4j.Logger;
@@ -58,13 +61,13 @@ import be.nabu.libs.evaluator.PathAnalyzer;
 import be.nabu.libs.evaluator.QueryParser;
 import be.nabu.libs.evaluator.api.Operation;
 import be.nabu.libs.evaluator.impl.VariableOperation;
-import be.nabu.libs.evaluator.types.api.TypeOperation;
 import be.nabu.libs.evaluator.types.operations.TypesOperationProvider;
 import be.nabu.libs.property.api.Value;
 import be.nabu.libs.resources.api.ResourceContainer;
 import be.nabu.libs.services.ServiceRuntime;
 import be.nabu.libs.services.ServiceUtils;
 import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ExecutionContext;
 import be.nabu.libs.services.api.ServiceException;
 import be.nabu.libs.services.api.ServiceRunner;
 import be.nabu.libs.services.pojo.POJOUtils;
@@ -88,6 +91,7 @@ import nabu.misc.workflow.types.WorkflowBatchInstance;
 import nabu.misc.workflow.types.WorkflowInstance;
 import nabu.misc.workflow.types.WorkflowInstance.Level;
 import nabu.misc.workflow.types.WorkflowInstanceProperty;
+import nabu.misc.workflow.types.WorkflowTimer;
 import nabu.misc.workflow.types.WorkflowTransitionInstance;
 
 // expose folders for each state with transition methods (input extends actual transition service input + workflow instance id)
@@ -107,9 +111,14 @@ import nabu.misc.workflow.types.WorkflowTransitionInstance;
 // if there are dependencies missing or modified to work differently, this can not be helped (but the same is true for classic BPMN)
 public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements MountableWebFragmentProvider { // RESTFragmentProvider
 
+	// the workflow that is currently loaded per id, when it is reloaded or unloaded its background work is stopped
+	private static Map<String, Workflow> loaded = new HashMap<String, Workflow>();
+	
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	
-	private Map<String, TypeOperation> analyzedOperations = new HashMap<String, TypeOperation>();
+	private ExecutorProvider executorProvider;
+	// conditions compiled on demand when there is no index
+	private Map<String, WorkflowCondition> analyzedConditions = new HashMap<String, WorkflowCondition>();
 	// one mapping per transition
 	private Map<String, VMService> mappings = new HashMap<String, VMService>();
 	
@@ -117,6 +126,30 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 	
 	private Map<String, DefinedStructure> structures = new HashMap<String, DefinedStructure>();
 	
+	// the compiled lookup structure for the states and transitions, if not set we fall back to scanning the configuration
+	private volatile WorkflowDefinitionIndex index;
+	
+	// the timed transitions of this workflow
+	private volatile WorkflowTimers timers;
+	
+	// the asynchronous transitions of this workflow that still need to be handed off
+	private volatile WorkflowOutbox outbox;
+	
+	// reverts the transitions that were interrupted on this server
+	private volatile WorkflowRecovery recovery;
+	
+	// our lease on the running transitions and the takeover of those of dead systems
+	private volatile WorkflowLeases leases;
+	
+	// which system owns which instances when the workflows are sharded
+	private volatile WorkflowShards shards;
+	
+	// the workers that claim the pending asynchronous transitions
+	private volatile WorkflowWorkQueue workQueue;
+	
+	// set when the artifact is unloaded
+	private volatile boolean unloaded;
+	
 	public static WorkflowInstance resolveInstance(String connectionId, UUID workflowId) {
 		WorkflowProvider defaultProvider = (WorkflowProvider) EAIResourceRepository.getInstance().resolve("nabu.misc.workflow.providers.basic.provider");
 		return defaultProvider.getWorkflowManager().getWorkflow(connectionId, workflowId);
@@ -169,20 +202,116 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 //		}
 //	}
 	
+	// register a freshly loaded workflow, the instance it replaces stops its background work
+	static void loaded(Workflow workflow) {
+		workflow.unloaded = false;
+		Workflow previous;
+		synchronized(loaded) {
+			previous = loaded.put(workflow.getId(), workflow);
+		}
+		if (previous != null && previous != workflow) {
+			previous.stop();
+		}
+	}
+	
+	// the children were added (again), the workflow remains loaded, this never stops another instance
+	static void restored(Workflow workflow) {
+		workflow.unloaded = false;
+		synchronized(loaded) {
+			if (!loaded.containsKey(workflow.getId())) {
+				loaded.put(workflow.getId(), workflow);
+			}
+		}
+	}
+	
+	// the children of a workflow are also removed and added again while it stays loaded (e.g. when they are refreshed)
+	// so we only flag it, the loops check the flag when they are due and stop if it is still set by then
+	static void unloaded(Workflow workflow) {
+		synchronized(loaded) {
+			if (loaded.get(workflow.getId()) == workflow) {
+				loaded.remove(workflow.getId());
+			}
+		}
+		workflow.unloaded = true;
+	}
+	
+	// whether the loops of this workflow should stop
+	boolean isUnloaded() {
+		return unloaded;
+	}
+	
+	// stop the loops that run in the background (timers, outbox, work queue and lease), the transitions that are running finish normally
+	public void stop() {
+		if (timers != null) {
+			timers.stop();
+		}
+		if (outbox != null) {
+			outbox.stop();
+		}
+		if (workQueue != null) {
+			workQueue.stop();
+		}
+		if (leases != null) {
+			leases.stop();
+		}
+	}
+	
 	public void recover() {
+		// claim our running transitions and watch for systems that have died, this also tells us which workflows we own
+		getLeases().start();
+		// start loading the timers that were persisted before the restart
+		getTimers().start();
+		// hand off whatever we recorded but did not relay before the restart
+		if (getConfig().getProvider() != null && getConfig().getProvider().hasWorkQueue()) {
+			getWorkQueue().start();
+		}
+		else if (getConfig().getProvider() != null && getConfig().getProvider().hasOutbox()) {
+			getOutbox().relay();
+			// other systems route the asynchronous transitions of the workflows we own to us
+			if (getShards().isEnabled()) {
+				getOutbox().poll();
+			}
+		}
+		// in the background, only the running instances are held back until they are recovered, all other traffic is served right away
+		if (getConfig().isBackgroundRecovery()) {
+			getRecovery().recoverInBackground(new Runnable() {
+				@Override
+				public void run() {
+					recoverInstances();
+				}
+			});
+		}
+		else {
+			recoverInstances();
+		}
+	}
+	
+	private void recoverInstances() {
+		// anything that was started after this is live traffic rather than something that was interrupted
+		Date recoveryStarted = new Date();
 		if (getConfig().getProvider() != null && getConfig().getProvider().getConfig().getGetWorkflows() != null) {
 			WorkflowManager workflowManager = getConfig().getProvider().getWorkflowManager();
 			String connectionId = getConfig().getConnection() == null ? null : getConfig().getConnection().getId();
-			List<WorkflowInstance> runningWorkflows = workflowManager.getWorkflows(connectionId, getId(), null, Level.RUNNING, null, null, null, null, null, null, null, null, null, null, null, null, null);
+			// if possible we only load the interrupted transitions of this server, otherwise we scan all running workflows
+			List<WorkflowInstance> runningWorkflows = WorkflowRecovery.isSupported(this) ? null : workflowManager.getWorkflows(connectionId, getId(), null, Level.RUNNING, null, null, null, null, null, null, null, null, null, null, null, null, null);
+			if (WorkflowRecovery.isSupported(this)) {
+				getRecovery().run();
+			}
 			if (runningWorkflows != null) {
 				for (WorkflowInstance workflow : runningWorkflows) {
 					try {
 						List<WorkflowTransitionInstance> transitions = workflowManager.getTransitions(connectionId, workflow.getId());
-						Collections.sort(transitions);
-						
+						WorkflowTransitionInstance last = null;
+						// a workflow that was created up front (asynchronous or bulk starts) but was interrupted before its initial transition was persisted
+						// the initial transition never ran, so the workflow is reverted as a whole
+						if (transitions == null || transitions.isEmpty()) {
+							if (workflow.getStarted() == null || !workflow.getStarted().before(recoveryStarted)) {
+								continue;
+							}
+						}
 						// if the last transition was RUNNING, it has to be reverted
-						WorkflowTransitionInstance last = transitions.get(transitions.size() - 1);
-						if (last.getTransitionState().equals(Level.RUNNING)) {
+						else if (getLastTransition(transitions).getTransitionState().equals(Level.RUNNING)) {
+							last = getLastTransition(transitions);
 							// if it is not running on this system, we are not interested in it
 							if (!last.getSystemId().equals(getRepository().getName())) {
 								continue;
@@ -199,35 +328,53 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 						// mark workflow as reverted
 						workflow.setTransitionState(Level.REVERTED);
 						
+						final WorkflowTransitionInstance reverted = last;
 						runTransactionally(new TransactionableAction<Void>() {
 							@Override
 							public Void call(String transactionId) throws Exception {
 								WorkflowManager workflowManager = getConfig().getProvider().getWorkflowManager();
-								workflowManager.updateWorkflow(connectionId, transactionId, workflow);
-								if (last.getTransitionState() == Level.REVERTED) {
-									workflowManager.updateTransition(connectionId, transactionId, last);
+								updateWorkflow(connectionId, transactionId, workflow);
+								if (reverted != null) {
+									workflowManager.updateTransition(connectionId, transactionId, reverted);
 								}
 								return null;
 							}
-						});
+						}, workflow);
 					}
 					catch (Exception e) {
+						// someone else updated the workflow since we read it, so it is no longer interrupted
+						if (WorkflowConflictException.find(e) != null) {
+							logger.debug("Workflow " + workflow.getId() + " was updated concurrently, it no longer needs to be reverted");
+							continue;
+						}
 						logger.error("Could not revert workflow " + workflow.getId(), e);
 						fire("revert", 0, workflow.getId(), "Could not revert running workflow", Notification.format(e), Severity.WARNING, null);
 					}
 				}
 			}
-			// revert batches if possible/necessary
-			if (getConfig().getProvider().getConfig().getGetBatches() != null) {
-				// if the batch is set to stopped, we figured it out was done but weren't able to move it to the next level yet (if it is our system id)
-				// continue the shizzle
-				List<WorkflowBatchInstance> batches = workflowManager.getBatches(connectionId, Level.WAITING, null, null);
-				if (batches != null) {
-					// if we were the one who set it to stopped
-					for (WorkflowBatchInstance batch : batches) {
-						if (batch.getSystemId().equals(getRepository().getName())) {
-							try {
-								runBatchConclusion(connectionId, SystemPrincipal.ROOT, workflowManager, batch);
+			recoverBatches(getRepository().getName());
+		}
+	}
+	
+	private static WorkflowTransitionInstance getLastTransition(List<WorkflowTransitionInstance> transitions) {
+		Collections.sort(transitions);
+		return transitions.get(transitions.size() - 1);
+	}
+	
+	// revert batches if possible/necessary
+	void recoverBatches(String systemId) {
+		if (getConfig().getProvider() != null && getConfig().getProvider().getConfig().getGetBatches() != null) {
+			WorkflowManager workflowManager = getConfig().getProvider().getWorkflowManager();
+			String connectionId = getConfig().getConnection() == null ? null : getConfig().getConnection().getId();
+			// if the batch is set to stopped, we figured it out was done but weren't able to move it to the next level yet (if it is our system id)
+			// continue the shizzle
+			List<WorkflowBatchInstance> batches = workflowManager.getBatches(connectionId, Level.WAITING, null, null);
+			if (batches != null) {
+				// if we were the one who set it to stopped
+				for (WorkflowBatchInstance batch : batches) {
+					if (batch.getSystemId().equals(systemId)) {
+						try {
+							runBatchConclusion(connectionId, SystemPrincipal.ROOT, workflowManager, batch);
 //								batch.setState(Level.REVERTED);
 //								runTransactionally(new TransactionableAction<Void>() {
 //									@Override
@@ -236,11 +383,10 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 //										return null;
 //									}
 //								});
-							}
-							catch (Exception e) {
-								logger.error("Could not revert workflow batch " + batch.getId(), e);
-								fire("batchRevert", 1, batch.getId(), "Could not revert running workflow batch", Notification.format(e), Severity.WARNING, null);
-							}
+						}
+						catch (Exception e) {
+							logger.error("Could not revert workflow batch " + batch.getId(), e);
+							fire("batchRevert", 1, batch.getId(), "Could not revert running workflow batch", Notification.format(e), Severity.WARNING, null);
 						}
 					}
 				}
@@ -248,7 +394,7 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 		}
 	}
 	
-	private void fire(String type, int code, UUID id, String message, String description, Severity severity, Token token) {
+	void fire(String type, int code, UUID id, String message, String description, Severity severity, Token token) {
 		try {
 			Notification notification = new Notification();
 			if (token != null) {
@@ -273,6 +419,28 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 		return definedStructure == null || !TypeUtils.getAllChildren(definedStructure).iterator().hasNext();
 	}
 	
+	// the given instances are updated in the transaction, if it is rolled back, their revisions are restored so they match the persisted instance again
+	public static <T> T runTransactionally(TransactionableAction<T> callable, WorkflowInstance...updated) {
+		Long [] revisions = new Long[updated.length];
+		for (int i = 0; i < updated.length; i++) {
+			revisions[i] = updated[i].getRevision();
+		}
+		try {
+			return runTransactionally(callable);
+		}
+		catch (RuntimeException e) {
+			for (int i = 0; i < updated.length; i++) {
+				updated[i].setRevision(revisions[i]);
+			}
+			throw e;
+		}
+	}
+	
+	// updates outside of the write buffer go through here so they respect the revision of the instance (if the provider supports it)
+	public void updateWorkflow(String connectionId, String transactionId, WorkflowInstance instance) {
+		WorkflowWriteBuffer.updateWorkflow(getConfig().getProvider().getWorkflowManager(), connectionId, transactionId, instance, getConfig().getProvider().hasConditionalUpdates());
+	}
+	
 	public static <T> T runTransactionally(TransactionableAction<T> callable) {
 		String transactionId = UUID.randomUUID().toString();
 		try {
@@ -329,15 +497,99 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 		return stateEvaluationStructures.get(stateId);
 	}
 	
-	private WorkflowTransitionInstance getTransitionInstance(List<WorkflowTransitionInstance> history, UUID id) {
-		for (WorkflowTransitionInstance instance : history) {
-			if (instance.getId().equals(id)) {
-				return instance;
+	// the properties that changed compared to the current values, a null value means the property was removed
+	// if an array is set, it replaces the previous array entirely: suppose you first set an array of 3 items, then an array of 2, the third item has to be removed
+	// properties can also be removed explicitly, which removes the key itself and anything nested in it
+	static Map<String, String> getChangedProperties(Map<String, String> currentValues, Map<String, String> newValues, List<?> removedProperties) {
+		Map<String, String> changedValues = new LinkedHashMap<String, String>();
+		if (newValues != null) {
+			Set<String> arrays = new HashSet<String>();
+			for (String key : newValues.keySet()) {
+				String value = newValues.get(key);
+				if (value != null) {
+					arrays.addAll(getArrayPaths(key));
+					if (!value.equals(currentValues.get(key))) {
+						changedValues.put(key, value);
+					}
+				}
+			}
+			if (!arrays.isEmpty()) {
+				for (Map.Entry<String, String> current : currentValues.entrySet()) {
+					if (current.getValue() != null && newValues.get(current.getKey()) == null) {
+						for (String array : getArrayPaths(current.getKey())) {
+							if (arrays.contains(array)) {
+								changedValues.put(current.getKey(), null);
+								break;
+							}
+						}
+					}
+				}
 			}
 		}
-		return null;
+		if (removedProperties != null) {
+			for (Object removed : removedProperties) {
+				if (removed != null) {
+					String prefix = removed.toString();
+					for (Map.Entry<String, String> current : currentValues.entrySet()) {
+						if (current.getValue() != null && (current.getKey().equals(prefix) || current.getKey().startsWith(prefix + "/") || current.getKey().startsWith(prefix + "["))) {
+							changedValues.put(current.getKey(), null);
+						}
+					}
+				}
+			}
+		}
+		return changedValues;
+	}
+	
+	// all the array paths in a property key, for example "a/b[0]/c[1]" contains the arrays "a/b" and "a/b[0]/c"
+	private static List<String> getArrayPaths(String key) {
+		List<String> arrays = new ArrayList<String>();
+		int index = key.indexOf('[');
+		while (index > 0) {
+			arrays.add(key.substring(0, index));
+			index = key.indexOf('[', index + 1);
+		}
+		return arrays;
 	}
 	
+	// the properties the engine needs to run a transition: only the latest value for each key
+	// if the provider maintains a materialized view, we use that, otherwise we need the full history
+	// workflows that were started before the view existed have no rows in it, for those we fall back to the history and backfill the view
+	// the backfill should be done by whoever holds the instance lock, otherwise it may overwrite a newer value written by a running transition
+	public List<WorkflowInstanceProperty> getCurrentProperties(String connectionId, UUID workflowId) {
+		WorkflowProvider provider = getConfig().getProvider();
+		if (provider.hasCurrentWorkflowProperties()) {
+			List<WorkflowInstanceProperty> currentProperties = provider.getWorkflowManager().getCurrentWorkflowProperties(connectionId, workflowId);
+			if (currentProperties != null && !currentProperties.isEmpty()) {
+				return currentProperties;
+			}
+			final List<WorkflowInstanceProperty> latestProperties = getLatestProperties(provider.getWorkflowManager().getWorkflowProperties(connectionId, workflowId));
+			if (!latestProperties.isEmpty()) {
+				runTransactionally(new TransactionableAction<Void>() {
+					@Override
+					public Void call(String transactionId) throws Exception {
+						provider.getWorkflowManager().mergeCurrentWorkflowProperties(connectionId, transactionId, latestProperties);
+						return null;
+					}
+				});
+			}
+			return latestProperties;
+		}
+		return provider.getWorkflowManager().getWorkflowProperties(connectionId, workflowId);
+	}
+	
+	// only the last version of each key, the history is in the order it was recorded
+	public static List<WorkflowInstanceProperty> getLatestProperties(List<WorkflowInstanceProperty> history) {
+		Map<String, WorkflowInstanceProperty> properties = new LinkedHashMap<String, WorkflowInstanceProperty>();
+		if (history != null) {
+			for (WorkflowInstanceProperty property : history) {
+				properties.put(property.getKey(), property);
+			}
+		}
+		return new ArrayList<WorkflowInstanceProperty>(properties.values());
+	}
+	
+	
 	// an autoretry finds the last transition that can be rerun without providing additional input and runs it
 	public void autoRetry(String connectionId, WorkflowInstance workflow, Token token) throws ServiceException {
 		List<WorkflowTransitionInstance> history = new ArrayList<WorkflowTransitionInstance>();
@@ -397,6 +649,136 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 	}
 	
 	public void run(String connectionId, WorkflowInstance workflow, List<WorkflowTransitionInstance> history, List<WorkflowInstanceProperty> properties, WorkflowTransition transition, Token token, ComplexContent input) throws ServiceException {
+		run(connectionId, workflow, history, properties, transition, token, input, newWriteBuffer(connectionId));
+	}
+	
+	// run the initial transition of a workflow that does not exist yet, it is created in the same transaction as the first write of that transition
+	// this means a crash can never leave a running workflow without transitions behind, whatever the durability
+	public void start(String connectionId, WorkflowInstance workflow, List<WorkflowInstanceProperty> properties, WorkflowTransition transition, Token token, ComplexContent input) throws ServiceException {
+		WorkflowWriteBuffer buffer = newWriteBuffer(connectionId);
+		buffer.createWorkflow(workflow, workflow.getBatchId() != null && getConfig().getProvider().hasBatchCounters());
+		run(connectionId, workflow, new ArrayList<WorkflowTransitionInstance>(), properties, transition, token, input, buffer);
+	}
+	
+	private void run(String connectionId, WorkflowInstance workflow, List<WorkflowTransitionInstance> history, List<WorkflowInstanceProperty> properties, WorkflowTransition transition, Token token, ComplexContent input, WorkflowWriteBuffer buffer) throws ServiceException {
+		Throwable failure = null;
+		try {
+			// the requested transition is run first, any exception it throws is for the caller
+			Continuation continuation = runTransition(connectionId, workflow, history, properties, transition, token, input, buffer);
+			driveChain(connectionId, workflow, history, properties, token, transition, continuation, buffer);
+		}
+		catch (ServiceException | RuntimeException | Error e) {
+			failure = e;
+			throw e;
+		}
+		// the writes of the chain are flushed when the chain ends, no matter how it ends
+		finally {
+			flushChain(buffer, failure);
+		}
+	}
+	
+	// once a transition has run, a conflict can no longer be solved by simply retrying it
+	// if the chain already failed, that exception is the one the caller needs to see, a failing flush is only added to it
+	private void flushChain(WorkflowWriteBuffer buffer, Throwable failure) throws ServiceException {
+		try {
+			buffer.flush();
+		}
+		catch (WorkflowConflictException e) {
+			ServiceException exception = new ServiceException("WORKFLOW-CONFLICT", "The workflow " + e.getWorkflowId() + " was modified concurrently, the writes of the transition were discarded", e);
+			if (failure == null) {
+				throw exception;
+			}
+			failure.addSuppressed(exception);
+		}
+		catch (RuntimeException e) {
+			if (failure == null) {
+				throw e;
+			}
+			failure.addSuppressed(e);
+		}
+	}
+	
+	private WorkflowWriteBuffer newWriteBuffer(String connectionId) {
+		return new WorkflowWriteBuffer(getConfig().getProvider().getWorkflowManager(), connectionId, getConfig().getDurability(), getConfig().getProvider().hasCurrentWorkflowProperties(), getConfig().getProvider().hasConditionalUpdates());
+	}
+	
+	// continue the workflow from the given state, for example when a batch is concluded
+	public void resume(String connectionId, WorkflowInstance workflow, List<WorkflowTransitionInstance> history, List<WorkflowInstanceProperty> properties, Token token, WorkflowState state, ComplexContent output) throws ServiceException {
+		drive(connectionId, workflow, history, properties, token, null, new Continuation(state, output, null), newWriteBuffer(connectionId));
+	}
+	
+	// automatic transitions are run in a loop rather than recursively so long chains don't grow the stack
+	// and the pipelines of the previous transitions can be garbage collected
+	private void drive(String connectionId, WorkflowInstance workflow, List<WorkflowTransitionInstance> history, List<WorkflowInstanceProperty> properties, Token token, WorkflowTransition transition, Continuation continuation, WorkflowWriteBuffer buffer) throws ServiceException {
+		Throwable failure = null;
+		try {
+			driveChain(connectionId, workflow, history, properties, token, transition, continuation, buffer);
+		}
+		catch (ServiceException | RuntimeException | Error e) {
+			failure = e;
+			throw e;
+		}
+		finally {
+			flushChain(buffer, failure);
+		}
+	}
+	
+	private void driveChain(String connectionId, WorkflowInstance workflow, List<WorkflowTransitionInstance> history, List<WorkflowInstanceProperty> properties, Token token, WorkflowTransition transition, Continuation continuation, WorkflowWriteBuffer buffer) throws ServiceException {
+		// transitions that were handed off to another runner in the current state, we don't want to hand them off again when we reevaluate the state
+		Set<UUID> dispatched = new HashSet<UUID>();
+		// transitions whose condition was false in the current state, they only need to be reevaluated if their input changed
+		Set<UUID> rejected = new HashSet<UUID>();
+		while (continuation != null) {
+			AutomaticTransition next;
+			try {
+				next = continueWorkflow(connectionId, workflow, history, properties, token, continuation.getState(), continuation.getOutput(), continuation.getChangedProperties(), dispatched, rejected, buffer);
+			}
+			catch (Exception e) {
+				fire("run", 2, workflow.getId(), "Failed while running the automatic transitions" + (transition == null ? "" : " after transition '" + transition.getName() + "'"), Notification.format(e), Severity.ERROR, token);
+				if (e instanceof WorkflowConflictException) {
+					throw new ServiceException("WORKFLOW-CONFLICT", "The workflow " + workflow.getId() + " was modified concurrently while continuing", e);
+				}
+				else if (e instanceof ServiceException) {
+					throw (ServiceException) e;
+				}
+				else if (e instanceof RuntimeException) {
+					throw (RuntimeException) e;
+				}
+				else {
+					throw new ServiceException("WORKFLOW-8", "Unexpected exception occured while continuing workflow", e);
+				}
+			}
+			// nothing left to run in this thread
+			if (next == null) {
+				break;
+			}
+			// release the previous pipeline before running the next transition
+			continuation = null;
+			UUID stateId = workflow.getStateId();
+			try {
+				continuation = runTransition(connectionId, workflow, history, properties, next.getTransition(), token, next.getInput(), buffer);
+			}
+			// the transition has already persisted its error state, we stop the chain here
+			// unless someone else modified the workflow, then nothing was persisted and the caller needs to know
+			catch (Exception e) {
+				if (e instanceof ServiceException && "WORKFLOW-CONFLICT".equals(((ServiceException) e).getCode())) {
+					throw (ServiceException) e;
+				}
+				else if (WorkflowConflictException.find(e) != null) {
+					throw new ServiceException("WORKFLOW-CONFLICT", "The workflow " + workflow.getId() + " was modified concurrently while running transition '" + next.getTransition().getName() + "'", e);
+				}
+				logger.error("Could not automatically transition to " + next.getTransition().getName(), e);
+				break;
+			}
+			if (stateId == null || !stateId.equals(workflow.getStateId())) {
+				dispatched.clear();
+				rejected.clear();
+			}
+		}
+	}
+	
+	// run a single transition, if the workflow can continue, the continuation is returned
+	private Continuation runTransition(String connectionId, WorkflowInstance workflow, List<WorkflowTransitionInstance> history, List<WorkflowInstanceProperty> properties, WorkflowTransition transition, Token token, ComplexContent input, WorkflowWriteBuffer buffer) throws ServiceException {
 		ComplexEventImpl event = null;
 		if (getRepository().getComplexEventDispatcher() != null) {
 			event = new ComplexEventImpl();
@@ -454,18 +836,26 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 	
 			WorkflowManager workflowManager = getConfig().getProvider().getWorkflowManager();
 			
-			Collections.sort(history);
-			
-			// we sort the properties based on their transition history
-			// this allows us to set the value in the correct order to preserve overwrites
-			properties.sort(new Comparator<WorkflowInstanceProperty>() {
-				@Override
-				public int compare(WorkflowInstanceProperty o1, WorkflowInstanceProperty o2) {
-					WorkflowTransitionInstance transitionInstance1 = getTransitionInstance(history, o1.getTransitionId());
-					WorkflowTransitionInstance transitionInstance2 = getTransitionInstance(history, o2.getTransitionId());
-					return transitionInstance1.getSequence() - transitionInstance2.getSequence();
+			// a lazy history is only used in combination with the current properties, those are already in the correct order
+			if (LazyWorkflowHistory.isLoaded(history)) {
+				Collections.sort(history);
+				
+				// we sort the properties based on their transition history
+				// this allows us to set the value in the correct order to preserve overwrites
+				final Map<UUID, Integer> sequences = new HashMap<UUID, Integer>();
+				for (WorkflowTransitionInstance instance : history) {
+					sequences.put(instance.getId(), instance.getSequence());
 				}
-			});
+				properties.sort(new Comparator<WorkflowInstanceProperty>() {
+					@Override
+					public int compare(WorkflowInstanceProperty o1, WorkflowInstanceProperty o2) {
+						// if the transition is not in the history (e.g. because the properties are the current view), order does not matter
+						Integer sequence1 = sequences.get(o1.getTransitionId());
+						Integer sequence2 = sequences.get(o2.getTransitionId());
+						return (sequence1 == null ? -1 : sequence1) - (sequence2 == null ? -1 : sequence2);
+					}
+				});
+			}
 			
 			// we create the transition entry
 			WorkflowTransitionInstance newInstance = new WorkflowTransitionInstance();
@@ -489,12 +879,20 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 			}
 	
 			int sequence = 0;
-			if (history.size() > 0) {
+			// if the workflow keeps track of its last transition, we don't need the history
+			if (workflow.getLastSequence() != null) {
+				sequence = workflow.getLastSequence() + 1;
+				newInstance.setParentId(workflow.getLastTransitionId());
+			}
+			else if (history.size() > 0) {
+				Collections.sort(history);
 				sequence = history.get(history.size() - 1).getSequence() + 1;
 				newInstance.setParentId(history.get(history.size() - 1).getId());
 			}
 		
 			newInstance.setSequence(sequence);
+			workflow.setLastSequence(sequence);
+			workflow.setLastTransitionId(newInstance.getId());
 			newInstance.setStarted(new Date());
 			newInstance.setSystemId(getRepository().getName());
 			newInstance.setTransitionState(Level.RUNNING);
@@ -511,27 +909,42 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 				batch.setSystemId(getRepository().getName());
 				batch.setTransitionId(newInstance.getId());
 				batch.setWorkflowId(workflow.getId());
+				// the transition that creates the children counts as one until it is done, so the batch can not conclude while children are still being created
+				if (getConfig().getProvider().hasBatchCounters()) {
+					batch.setRemaining(1l);
+					batch.setSucceeded(0l);
+					batch.setFailed(0l);
+				}
 				newInstance.setBatchId(batch.getId());
 			}
 			else {
 				batch = null;
 			}
 			
-			// persist the transition and optionally update the workflow instance
-			runTransactionally(new TransactionableAction<Void>() {
-				@Override
-				public Void call(String transactionId) throws Exception {
-					workflowManager.createTransition(connectionId, transactionId, newInstance);
-					if (workflow.getTransitionState() != Level.RUNNING) {
-						workflow.setTransitionState(Level.RUNNING);
-						workflowManager.updateWorkflow(connectionId, transactionId, workflow);
-					}
-					if (batch != null) {
-						workflowManager.createBatch(connectionId, transactionId, batch);
-					}
-					return null;
-				}
-			});
+			// when coalescing, a transition that starts from a stateless state is not persisted up front
+			// if we crash while running it, the workflow simply remains in its previous state and the transition can be run again
+			// batches must always be persisted up front as the child workflows refer to them
+			// the initial transition is always persisted up front, whatever the durability, a new workflow is created in that same transaction
+			// so if we crash while running it, there is a running transition to recover rather than a running workflow without transitions
+			final boolean initial = sequence == 0;
+			final boolean journaled = initial || !getConfig().isCoalesceTransactions() || batch != null || !isStateless(workflow.getStateId());
+			
+			// persist the transition and update the workflow instance, it always tracks the last transition
+			buffer.createTransition(newInstance);
+			workflow.setTransitionState(Level.RUNNING);
+			buffer.updateWorkflow(workflow);
+			// the batch must exist before any child workflows are created
+			if (batch != null) {
+				buffer.createBatch(batch);
+				buffer.flush();
+			}
+			else if (initial) {
+				buffer.flush();
+			}
+			// if we don't journal, the create is merged with the final update of the transition
+			else if (journaled) {
+				buffer.checkpoint();
+			}
 	
 			// now we run the transition service
 			ComplexContent mapInput = transitionService.getServiceInterface().getInputDefinition().newInstance();
@@ -539,9 +952,24 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 			if (mapInput.getType().get("connectionId") != null) {
 				mapInput.set("connectionId", connectionId);
 			}
-			mapInput.set("workflow", workflow);
-			mapInput.set("properties", propertiesToObject(properties));
-			mapInput.set("history", history);
+			// the inputs that the mapping does not reference are not built at all
+			if (usesMappingInput(transition, "workflow")) {
+				mapInput.set("workflow", workflow);
+			}
+			// the properties are only converted once the mapping actually reads them
+			if (usesMappingInput(transition, "properties") && getPropertyDefinition() != null) {
+				final List<WorkflowInstanceProperty> currentProperties = new ArrayList<WorkflowInstanceProperty>(properties);
+				mapInput.set("properties", new LazyComplexContent(getPropertyDefinition(), new LazyComplexContent.ContentLoader() {
+					@Override
+					public ComplexContent load() {
+						return propertiesToObject(currentProperties);
+					}
+				}));
+			}
+			// only pass in the history if the mapping uses it, this avoids loading it
+			if (usesMappingInput(transition, "history")) {
+				mapInput.set("history", history);
+			}
 			
 			if (input != null) {
 				mapInput.set("state", input.get("state"));
@@ -555,54 +983,42 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 			WorkflowState targetState = getStateById(transition.getTargetStateId());
 			boolean isFinalState = isFinalState(targetState);
 			ComplexContent output;
+			// the keys of the properties that were altered by this transition
+			Set<String> changedProperties = null;
 			ServiceRuntime serviceRuntime = new ServiceRuntime(transitionService, getRepository().newExecutionContext(token));
 			boolean contextSet = false;
 			if (ServiceUtils.getServiceContext(serviceRuntime, false) == null) {
 				ServiceUtils.setServiceContext(serviceRuntime, workflow.getDefinitionId());
 				contextSet = true;
 			}
+			// whether we already counted this workflow as done in the batch it belongs to
+			boolean counted = false;
 			try {
 				output = serviceRuntime.run(mapInput);
 				
-				List<WorkflowInstanceProperty> propertiesToUpdate = new ArrayList<WorkflowInstanceProperty>();
 				List<WorkflowInstanceProperty> propertiesToCreate = new ArrayList<WorkflowInstanceProperty>();
 	
+				// the current value of each property, a null value means it was removed
+				Map<String, String> currentValues = new HashMap<String, String>();
+				for (WorkflowInstanceProperty property : properties) {
+					currentValues.put(property.getKey(), property.getValue());
+				}
 				ComplexContent object = output == null ? null : (ComplexContent) output.get("properties");
-				if (object != null) {
-					Map<String, String> stringMap = TypeBaseUtils.toStringMap(object);
-					// TODO: need a good way to "clean up" arrays:
-					// first time you add an array of 3 items, next time an array of 2
-					// the first two items will be cleanly overwritten but the third will persist
-					for (String key : stringMap.keySet()) {
-						String value = stringMap.get(key);
-						if (value != null) {
-							boolean found = false;
-							
-							// we no longer update properties based on key
-							// instead we set the key/value for this given transition instance
-							// that gives us a history of the property values over time in the workflow
-//							for (WorkflowInstanceProperty current : properties) {
-//								if (current.getKey().equals(key)) {
-//									current.setValue(value);
-//									current.setTransitionId(newInstance.getId());
-//									propertiesToUpdate.add(current);
-//									found = true;
-//									break;
-//								}
-//							}
-							
-							if (!found) {
-								WorkflowInstanceProperty property = new WorkflowInstanceProperty();
-								property.setId(UUID.randomUUID());
-								property.setWorkflowId(workflow.getId());
-								property.setTransitionId(newInstance.getId());
-								property.setKey(key);
-								property.setValue(value);
-								properties.add(property);
-								propertiesToCreate.add(property);
-							}
-						}
-					}
+				List<?> removedProperties = output == null || output.getType().get("removedProperties") == null ? null : (List<?>) output.get("removedProperties");
+				// we only persist the properties that actually changed
+				// the new values are bound to this transition instance, that gives us a history of the property values over time in the workflow
+				Map<String, String> changedValues = getChangedProperties(currentValues, object == null ? null : TypeBaseUtils.toStringMap(object), removedProperties);
+				changedProperties = changedValues.keySet();
+				for (Map.Entry<String, String> changed : changedValues.entrySet()) {
+					WorkflowInstanceProperty property = new WorkflowInstanceProperty();
+					property.setId(UUID.randomUUID());
+					property.setWorkflowId(workflow.getId());
+					property.setTransitionId(newInstance.getId());
+					property.setKey(changed.getKey());
+					// a property without a value marks the removal of that property
+					property.setValue(changed.getValue());
+					properties.add(property);
+					propertiesToCreate.add(property);
 				}
 				String groupId = output == null ? null : (String) output.get("groupId");
 				String contextId = output == null ? null : (String) output.get("contextId");
@@ -636,6 +1052,11 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 					workflow.setTransitionState(batch == null ? Level.SUCCEEDED : Level.WAITING);
 					workflow.setStopped(new Date());
 				}
+				// if nothing can be triggered automatically from the target state, we already know we will be waiting
+				// this saves us a separate commit once the (empty) automatic transitions are evaluated
+				else if (getConfig().isCoalesceTransactions() && batch == null && !hasAutomaticTransitions(targetState)) {
+					workflow.setTransitionState(Level.WAITING);
+				}
 				else {
 					// we could "optimize" and leave it in "running" mode if we first calculate the next automatic transition (if any)
 					// but this would mean we can only commit the transition, properties etc until after that calculation
@@ -643,33 +1064,40 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 					workflow.setTransitionState(Level.STOPPED);
 				}
 				
-				runTransactionally(new TransactionableAction<Void>() {
-					@Override
-					public Void call(String transactionId) throws Exception {
-						workflowManager.updateTransition(connectionId, transactionId, newInstance);
-						workflowManager.updateWorkflow(connectionId, transactionId, workflow);
-						if (!propertiesToCreate.isEmpty()) {
-							workflowManager.createWorkflowProperties(connectionId, transactionId, propertiesToCreate);
-						}
-						if (!propertiesToUpdate.isEmpty()) {
-							workflowManager.updateWorkflowProperties(connectionId, transactionId, propertiesToUpdate);
-						}
-						// other transitions may still be running
-//						if (batch != null) {
-//							batch.setCreated(new Date());
-//							batch.setState(Level.WAITING);
-//							workflowManager.updateBatch(connectionId, transactionId, batch);
-//						}
-						return null;
-					}
-				});
+				buffer.updateTransition(newInstance);
+				buffer.updateWorkflow(workflow);
+				if (!propertiesToCreate.isEmpty()) {
+					buffer.createWorkflowProperties(propertiesToCreate);
+				}
+				// we are done creating children, this is counted in the same transaction
+				if (batch != null && batch.getRemaining() != null) {
+					buffer.adjustBatchCounters(batch.getId(), -1, 0, 0);
+				}
+				// if we are done, we are counted in the same transaction as the final update
+				if (isFinalState && workflow.getBatchId() != null) {
+					counted = countBatchMember(workflow, buffer);
+				}
+				// a batch is resolved against the database, so we need to be up to date
+				if (batch != null || counted) {
+					buffer.flush();
+				}
+				// the batch is updated once it can continue, that update should not reset the counters
+				if (batch != null && buffer.getAdjustedBatch(batch.getId()) != null) {
+					WorkflowBatchInstance adjusted = buffer.getAdjustedBatch(batch.getId());
+					batch.setRemaining(adjusted.getRemaining());
+					batch.setSucceeded(adjusted.getSucceeded());
+					batch.setFailed(adjusted.getFailed());
+				}
+				else {
+					buffer.checkpoint();
+				}
 				
 				callListeners(connectionId, workflow, transition, sourceState, targetState, token);
 				
 				// check if the batch is already done, if so we can continue
 				if (batch != null) {
-					if (!continueBatch(batch)) {
-						return;
+					if (!continueBatch(batch, getBatchState(connectionId, batch.getId(), buffer))) {
+						return null;
 					}
 					else {
 						runTransactionally(new TransactionableAction<Void>() {
@@ -680,10 +1108,10 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 								batch.setState(Level.SUCCEEDED);
 								workflowManager.updateBatch(connectionId, transactionId, batch);
 								workflow.setTransitionState(Level.SUCCEEDED);
-								workflowManager.updateWorkflow(connectionId, transactionId, workflow);
+								updateWorkflow(connectionId, transactionId, workflow);
 								return null;
 							}
-						});
+						}, workflow);
 					}
 				}
 			}
@@ -691,6 +1119,28 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 				if (event != null) {
 					CEPUtils.enrich(event, e);
 				}
+				// someone else updated the workflow in the meantime, our writes were discarded and we can not record an error on stale data
+				if (WorkflowConflictException.find(e) != null) {
+					ServiceException exception = new ServiceException("WORKFLOW-CONFLICT", "The workflow " + workflow.getId() + " was modified concurrently while running transition '" + transition.getName() + "'", e);
+					// if the transition was already journaled, it would remain running forever, the transition row itself is not revision checked so we can close it
+					if (buffer.isPersisted(newInstance.getId())) {
+						try {
+							newInstance.setTransitionState(Level.REVERTED);
+							newInstance.setStopped(new Date());
+							runTransactionally(new TransactionableAction<Void>() {
+								@Override
+								public Void call(String transactionId) throws Exception {
+									workflowManager.updateTransition(connectionId, transactionId, newInstance);
+									return null;
+								}
+							});
+						}
+						catch (RuntimeException revertException) {
+							exception.addSuppressed(revertException);
+						}
+					}
+					throw exception;
+				}
 				newInstance.setTransitionState(Level.ERROR);
 				newInstance.setStopped(new Date());
 				StringWriter writer = new StringWriter();
@@ -712,14 +1162,10 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 					current = current.getCause();
 				}
 				workflow.setTransitionState(Level.ERROR);
-				runTransactionally(new TransactionableAction<Void>() {
-					@Override
-					public Void call(String transactionId) throws Exception {
-						workflowManager.updateTransition(connectionId, transactionId, newInstance);
-						workflowManager.updateWorkflow(connectionId, transactionId, workflow);
-						return null;
-					}
-				});
+				// an error always ends the chain, persist everything up to and including the error
+				buffer.updateTransition(newInstance);
+				buffer.updateWorkflow(workflow);
+				buffer.flush();
 				throw e instanceof ServiceException ? (ServiceException) e : new ServiceException("WORKFLOW-7", "Unexpected exception occured while executing transition", e);
 			}
 			finally {
@@ -736,12 +1182,19 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 			if (!isFinalState) {
 				// make sure the current transition is reflected in the history
 				history.add(newInstance);
-				continueWorkflow(connectionId, workflow, history, properties, token, targetState, output);
+				return new Continuation(targetState, output, changedProperties);
 			}
 			// if this workflow was part of a batch and it's done, let's check that batch
 			else if (workflow.getBatchId() != null) {
-				continueBatchIfNecessary(connectionId, workflow, token, workflowManager);
+				// if we concluded our own batch, we were not yet done when the transition was persisted
+				if (!counted) {
+					countBatchMember(workflow, buffer);
+				}
+				// the batch state is calculated in the database
+				buffer.flush();
+				continueBatchIfNecessary(connectionId, workflow, token, buffer);
 			}
+			return null;
 		}
 		catch (Exception e) {
 			// we could not properly finish the event itself
@@ -763,53 +1216,61 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 		}
 	}
 
-	private void continueBatchIfNecessary(String connectionId, WorkflowInstance workflow, Token token, WorkflowManager workflowManager) {
-		Level level = workflowManager.calculateBatchState(connectionId, workflow.getBatchId());
+	private void continueBatchIfNecessary(String connectionId, WorkflowInstance workflow, Token token, WorkflowWriteBuffer buffer) throws ServiceException {
+		WorkflowManager workflowManager = getConfig().getProvider().getWorkflowManager();
+		Level level = getBatchState(connectionId, workflow.getBatchId(), buffer);
 		if (level == Level.STOPPED) {
 			WorkflowBatchInstance parentBatch = workflowManager.getBatch(connectionId, workflow.getBatchId());
-			if (continueBatch(parentBatch)) {
+			if (continueBatch(parentBatch, level)) {
 				runBatchConclusion(connectionId, token, workflowManager, parentBatch);
 			}
 		}
 	}
 
-	private void runBatchConclusion(String connectionId, Token token, WorkflowManager workflowManager, WorkflowBatchInstance parentBatch) {
+	private void runBatchConclusion(String connectionId, Token token, WorkflowManager workflowManager, WorkflowBatchInstance parentBatch) throws ServiceException {
 		parentBatch.setState(Level.SUCCEEDED);
-		// need to get the state of the parent workflow, update the final transition and continue
-		WorkflowInstance parentFlow = workflowManager.getWorkflow(connectionId, parentBatch.getWorkflowId());
-		Workflow parentWorkflow = (Workflow) getRepository().resolve(parentFlow.getDefinitionId());
-		if (parentWorkflow == null) {
-			throw new IllegalArgumentException("Can not find definition of parent workflow: " + parentFlow.getDefinitionId());
-		}
-		List<WorkflowTransitionInstance> parentHistory = workflowManager.getTransitions(connectionId, parentFlow.getId());
-		List<WorkflowInstanceProperty> parentProperties = workflowManager.getWorkflowProperties(connectionId, parentFlow.getId());
-		Collections.sort(parentHistory);
-		WorkflowState targetParentState = null;
-		boolean hasTransitionInCorrectState = false;
-		for (WorkflowTransitionInstance transitionInstance : parentHistory) {
-			if (transitionInstance.getTransitionState() == Level.WAITING && parentBatch.getId().equals(transitionInstance.getBatchId())) {
-				transitionInstance.setTransitionState(Level.SUCCEEDED);
-				hasTransitionInCorrectState = true;
-				Workflow parentFlowDefinition = (Workflow) getRepository().resolve(parentFlow.getDefinitionId());
-				targetParentState = parentFlowDefinition.getStateById(transitionInstance.getToStateId());
-				boolean isFinal = targetParentState.getTransitions() == null || targetParentState.getTransitions().isEmpty();
-				runTransactionally(new TransactionableAction<Void>() {
-					@Override
-					public Void call(String transactionId) throws Exception {
-						workflowManager.updateTransition(connectionId, transactionId, transitionInstance);
-						workflowManager.updateBatch(connectionId, transactionId, parentBatch);
-						if (isFinal) {
-							parentFlow.setTransitionState(Level.SUCCEEDED);
-							workflowManager.updateWorkflow(connectionId, transactionId, parentFlow);
+		// the parent instance is continued from here, no other transitions should run on it in the mean time
+		WorkflowInstanceLocks.getInstance().lock(parentBatch.getWorkflowId());
+		try {
+			// need to get the state of the parent workflow, update the final transition and continue
+			WorkflowInstance parentFlow = workflowManager.getWorkflow(connectionId, parentBatch.getWorkflowId());
+			Workflow parentWorkflow = (Workflow) getRepository().resolve(parentFlow.getDefinitionId());
+			if (parentWorkflow == null) {
+				throw new IllegalArgumentException("Can not find definition of parent workflow: " + parentFlow.getDefinitionId());
+			}
+			List<WorkflowTransitionInstance> parentHistory = workflowManager.getTransitions(connectionId, parentFlow.getId());
+			List<WorkflowInstanceProperty> parentProperties = parentWorkflow.getCurrentProperties(connectionId, parentFlow.getId());
+			Collections.sort(parentHistory);
+			WorkflowState targetParentState = null;
+			boolean hasTransitionInCorrectState = false;
+			for (WorkflowTransitionInstance transitionInstance : parentHistory) {
+				if (transitionInstance.getTransitionState() == Level.WAITING && parentBatch.getId().equals(transitionInstance.getBatchId())) {
+					transitionInstance.setTransitionState(Level.SUCCEEDED);
+					hasTransitionInCorrectState = true;
+					Workflow parentFlowDefinition = (Workflow) getRepository().resolve(parentFlow.getDefinitionId());
+					targetParentState = parentFlowDefinition.getStateById(transitionInstance.getToStateId());
+					boolean isFinal = targetParentState.getTransitions() == null || targetParentState.getTransitions().isEmpty();
+					runTransactionally(new TransactionableAction<Void>() {
+						@Override
+						public Void call(String transactionId) throws Exception {
+							workflowManager.updateTransition(connectionId, transactionId, transitionInstance);
+							workflowManager.updateBatch(connectionId, transactionId, parentBatch);
+							if (isFinal) {
+								parentFlow.setTransitionState(Level.SUCCEEDED);
+								parentWorkflow.updateWorkflow(connectionId, transactionId, parentFlow);
+							}
+							return null;
 						}
-						return null;
-					}
-				});
-				break;
+					}, parentFlow);
+					break;
+				}
+			}
+			if (hasTransitionInCorrectState) {
+				parentWorkflow.resume(connectionId, parentFlow, parentHistory, parentProperties == null ? new ArrayList<WorkflowInstanceProperty>() : parentProperties, token, targetParentState, null);
 			}
 		}
-		if (hasTransitionInCorrectState) {
-			parentWorkflow.continueWorkflow(connectionId, parentFlow, parentHistory, parentProperties == null ? new ArrayList<WorkflowInstanceProperty>() : parentProperties, token, targetParentState, null);
+		finally {
+			WorkflowInstanceLocks.getInstance().unlock(parentBatch.getWorkflowId());
 		}
 	}
 
@@ -844,146 +1305,382 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 		}
 	}
 
-	private void continueWorkflow(String connectionId, WorkflowInstance workflow, List<WorkflowTransitionInstance> history, List<WorkflowInstanceProperty> properties, Token token, WorkflowState targetState, ComplexContent output) {
-		ComplexContent content = getStateEvaluationType(targetState.getId()).newInstance();
-		content.set("properties", propertiesToObject(properties));
-		content.set("state", output == null ? null : output.get("state"));
-		List<WorkflowTransition> possibleTransitions = new ArrayList<WorkflowTransition>(targetState.getTransitions());
-		// we add the transitions of extended states, they can also autotrigger
-		if (targetState.getExtensions() != null) {
-			for (UUID name : targetState.getExtensions()) {
-				WorkflowState extended = getStateById(name);
-				if (extended.getTransitions() != null) {
-					for (WorkflowTransition transition : extended.getTransitions()) {
-						if (!possibleTransitions.contains(transition)) {
-							possibleTransitions.add(transition);
-						}
-					}
-				}
+	// evaluates the automatic transitions of the state, transitions with a target are handed off immediately
+	// the first transition that needs to run in this thread is returned to the driver
+	private AutomaticTransition continueWorkflow(String connectionId, WorkflowInstance workflow, List<WorkflowTransitionInstance> history, List<WorkflowInstanceProperty> properties, Token token, WorkflowState targetState, ComplexContent output, Set<String> changedProperties, Set<UUID> dispatched, Set<UUID> rejected, WorkflowWriteBuffer buffer) throws ServiceException {
+		List<WorkflowTransition> possibleTransitions = getAutomaticTransitions(targetState);
+		// the properties are only converted if a condition actually reads them
+		boolean readsProperties = false;
+		for (WorkflowTransition possibleTransition : possibleTransitions) {
+			WorkflowCondition condition = getCondition(possibleTransition);
+			if (condition != null && condition.readsProperties()) {
+				readsProperties = true;
+				break;
 			}
 		}
-		Collections.sort(possibleTransitions, new Comparator<WorkflowTransition>() {
-			@Override
-			public int compare(WorkflowTransition arg0, WorkflowTransition arg1) {
-				// if they are the same query order, transitions that don't alter the state get preference
-				if (arg0.getQueryOrder() == arg1.getQueryOrder()) {
-					if (isSelfTransition(arg0)) {
-						return isSelfTransition(arg1) ? 0 : -1;
-					}
-					else if (isSelfTransition(arg1)) {
-						return 1;
-					}
-					else {
-						return 0;
-					}
-				}
-				return arg0.getQueryOrder() - arg1.getQueryOrder();
-			}
-		});
+		ComplexContent content = getStateEvaluationType(targetState.getId()).newInstance();
+		if (readsProperties) {
+			content.set("properties", propertiesToObject(properties));
+		}
+		content.set("state", output == null ? null : output.get("state"));
+		
 		boolean foundNext = false;
 		int queryOrderMatch = -1;
+		// the timers that were armed in this evaluation, they are put in the timer wheel once they are persisted
+		List<WorkflowTimer> armed = new ArrayList<WorkflowTimer>();
+		// whether we recorded transitions in the outbox that need to be relayed
+		boolean outboxed = false;
 		for (WorkflowTransition possibleTransition : possibleTransitions) {
 			// if we already have a matching query order and the current order is higher, we will not be running any more transitions
 			if (queryOrderMatch >= 0 && possibleTransition.getQueryOrder() > queryOrderMatch) {
 				break;
 			}
-			if (canAutomaticallyTransition(possibleTransition)) {
-				String query = possibleTransition.getQuery();
-				Boolean value = null;
-				try {
-					if (!analyzedOperations.containsKey(query)) {
-						synchronized(analyzedOperations) {
-							if (!analyzedOperations.containsKey(query)) {
-								analyzedOperations.put(query, (TypeOperation) new PathAnalyzer<ComplexContent>(new TypesOperationProvider()).analyze(QueryParser.getInstance().parse(query)));
-							}
-						}
+			WorkflowCondition condition = getCondition(possibleTransition);
+			if (condition == null) {
+				continue;
+			}
+			// if nothing the condition reads has changed since it was last evaluated, it is still false
+			// note that the state is the output of the last transition, so it always counts as changed
+			if (rejected.contains(possibleTransition.getId()) && changedProperties != null && condition.isDeterministic() && !condition.readsState() && !condition.dependsOn(changedProperties)) {
+				continue;
+			}
+			Boolean value = null;
+			try {
+				value = condition.evaluate(content);
+			}
+			catch (Exception e) {
+				logger.error("Could not evaluate query '" + condition.getQuery() + "' for workflow: " + getId(), e);
+			}
+			if (value == null || !value) {
+				rejected.add(possibleTransition.getId());
+			}
+			else {
+				rejected.remove(possibleTransition.getId());
+			}
+			try {
+				if (value != null && value) {
+					// we only ever execute automatic self transitions once, otherwise we can end up in an unending loop or force the user to always validate this themselves
+					boolean selfTransition = isSelfTransition(possibleTransition);
+					// by default self transitions can not repeat, normal transitions can repeat
+					boolean canRepeat = possibleTransition.getAllowMultipleAutomaticExecutions() != null ? possibleTransition.getAllowMultipleAutomaticExecutions()
+						: !selfTransition;
+					if (!canRepeat && hasOccurred(possibleTransition, history)) {
+						continue;
 					}
-					value = (Boolean) analyzedOperations.get(query).evaluate(content);
-				}
-				catch (Exception e) {
-					logger.error("There is an invalid query '" + query + "' for workflow: " + getId(), e);
-				}
-				try {
-					if (value != null && value) {
-						// we only ever execute automatic self transitions once, otherwise we can end up in an unending loop or force the user to always validate this themselves
-						boolean selfTransition = isSelfTransition(possibleTransition);
-						// by default self transitions can not repeat, normal transitions can repeat
-						boolean canRepeat = possibleTransition.getAllowMultipleAutomaticExecutions() != null ? possibleTransition.getAllowMultipleAutomaticExecutions()
-							: !selfTransition;
-						if (!canRepeat && hasOccurred(possibleTransition, history)) {
+					// a timed transition is not run now, the workflow waits in this state until the timer fires
+					// the timer belongs to this visit of the state, every transition starts a new visit so the timer is armed once per evaluation
+					if (possibleTransition.getDelay() != null) {
+						// without timer support the definition is reported as invalid when it is loaded
+						if (!getConfig().getProvider().hasTimers()) {
 							continue;
 						}
+						WorkflowTimer timer = newTimer(workflow, possibleTransition, content);
+						buffer.createTimer(timer);
+						armed.add(timer);
 						queryOrderMatch = possibleTransition.getQueryOrder();
-						foundNext = true;
-						// this allows us to easily build in asynchronous and/or timed executions
-						if (possibleTransition.getTarget() != null) {
-							String cleanName = EAIRepositoryUtils.stringToField(possibleTransition.getName());
-							String serviceId = getId() + ".services.transition." + cleanName;
-							DefinedService transitionService = (DefinedService) getRepository().resolve(serviceId);
-							if (transitionService == null) {
-								throw new IllegalStateException("Could not find transition service: " + serviceId);
-							}
-							MaskedContent masked = new MaskedContent(content, transitionService.getServiceInterface().getInputDefinition());
-							masked.set("bestEffort", "true");
-							masked.set("workflowId", workflow.getId());
-							masked.set("connectionId", connectionId);
-							
-							ExecutorProvider executor = new RepositoryExecutorProvider(getRepository());
-							Map<String, String> targetProperties = possibleTransition.getTargetProperties();
-							Map<String, Object> parameters = new HashMap<String, Object>();
-							if (targetProperties != null) {
-								for (Map.Entry<String, String> entry : targetProperties.entrySet()) {
-									if (entry.getValue() != null && entry.getValue().startsWith("=")) {
-										parameters.put(entry.getKey(), getVariable(masked, entry.getValue().substring(1)));
-									}
-									else {
-										parameters.put(entry.getKey(), entry.getValue());
-									}
+						if (!selfTransition) {
+							break;
+						}
+						continue;
+					}
+					queryOrderMatch = possibleTransition.getQueryOrder();
+					foundNext = true;
+					// we already handed it off while in this state
+					if (dispatched.contains(possibleTransition.getId())) {
+						if (!selfTransition) {
+							break;
+						}
+						continue;
+					}
+					// this allows us to easily build in asynchronous and/or timed executions
+					if (possibleTransition.getTarget() != null) {
+						String cleanName = EAIRepositoryUtils.stringToField(possibleTransition.getName());
+						String serviceId = getId() + ".services.transition." + cleanName;
+						DefinedService transitionService = (DefinedService) getRepository().resolve(serviceId);
+						if (transitionService == null) {
+							throw new IllegalStateException("Could not find transition service: " + serviceId);
+						}
+						MaskedContent masked = new MaskedContent(content, transitionService.getServiceInterface().getInputDefinition());
+						masked.set("bestEffort", "true");
+						masked.set("workflowId", workflow.getId());
+						masked.set("connectionId", connectionId);
+						
+						Map<String, String> targetProperties = possibleTransition.getTargetProperties();
+						Map<String, Object> parameters = new HashMap<String, Object>();
+						if (targetProperties != null) {
+							for (Map.Entry<String, String> entry : targetProperties.entrySet()) {
+								if (entry.getValue() != null && entry.getValue().startsWith("=")) {
+									parameters.put(entry.getKey(), getVariable(masked, entry.getValue().substring(1)));
+								}
+								else {
+									parameters.put(entry.getKey(), entry.getValue());
 								}
 							}
-							ServiceRunner runner = executor.getRunner(possibleTransition.getTarget(), parameters);
-							
-							runner.run(transitionService, ServiceRuntime.getRuntime().getExecutionContext(), masked);
 						}
-						// this is more performant because we don't have to retrieve the history & properties again
-						else {
-							run(connectionId, workflow, history, properties, possibleTransition, token, content);
+						
+						// if possible, the handoff is recorded together with the state change and relayed once it is committed
+						// the outbox only records the workflow and textual parameters, so if we pass along state, transition input or other parameters, it is handed off directly
+						// the relay can not act on behalf of a user either, so transitions run by someone are handed off directly as well
+						if (getConfig().getProvider().hasOutbox() && token == null && WorkflowOutbox.canRecord(parameters) && !hasContent(masked, "state") && !hasContent(masked, "transition")) {
+							buffer.createOutboxEntry(getOutbox().newEntry(workflow, possibleTransition, parameters));
+							outboxed = true;
 						}
-						// if it is a self transition, we do allow multiple transitions to be run at the same query order
-						// because it is an FSM, we can't move to another state and execute self transitions afterwards
-						// the sorting should make sure self transitions are run before moving elsewhere
-						if (!selfTransition) {
-							break;
+						else {
+							// the handed off transition will load the workflow from the database, it has to be up to date
+							buffer.flush();
+							handOff(possibleTransition, transitionService, masked, parameters, workflow.getGroupId(), token);
 						}
+						dispatched.add(possibleTransition.getId());
+					}
+					// this is more performant because we don't have to retrieve the history & properties again
+					// the driver will reevaluate the resulting state afterwards, so any further self transitions are picked up with the updated properties
+					else {
+						scheduleTimers(armed, buffer);
+						relayOutbox(outboxed, buffer);
+						return new AutomaticTransition(possibleTransition, content);
+					}
+					// if it is a self transition, we do allow multiple transitions to be run at the same query order
+					// because it is an FSM, we can't move to another state and execute self transitions afterwards
+					// the sorting should make sure self transitions are run before moving elsewhere
+					if (!selfTransition) {
+						break;
 					}
-				}
-				catch (Exception e) {
-					logger.error("Could not automatically transition to " + possibleTransition.getName(), e);
 				}
 			}
+			catch (Exception e) {
+				logger.error("Could not automatically transition to " + possibleTransition.getName(), e);
+			}
 		}
 		// update the workflow to WAITING
 		if (!foundNext) {
 			WorkflowState currentState = getStateById(workflow.getStateId());
 			boolean isFinalState = isFinalState(currentState);
 			
-			workflow.setTransitionState(isFinalState ? Level.SUCCEEDED : Level.WAITING);
-			runTransactionally(new TransactionableAction<Void>() {
+			Level level = isFinalState ? Level.SUCCEEDED : Level.WAITING;
+			// it may already have been persisted in this state together with the transition
+			if (workflow.getTransitionState() != level) {
+				workflow.setTransitionState(level);
+				buffer.updateWorkflow(workflow);
+			}
+			// if we are a final state and in a batch, we are counted together with the final update
+			if (isFinalState && workflow.getBatchId() != null) {
+				countBatchMember(workflow, buffer);
+			}
+			// the chain ends here
+			buffer.flush();
+			// if we are a final state and in a batch, continue the batch
+			if (isFinalState && workflow.getBatchId() != null) {
+				continueBatchIfNecessary(connectionId, workflow, token, buffer);
+			}
+		}
+		scheduleTimers(armed, buffer);
+		relayOutbox(outboxed, buffer);
+		return null;
+	}
+	
+	// hand off a transition to its target
+	void handOff(WorkflowTransition transition, DefinedService transitionService, ComplexContent input, Map<String, Object> parameters, String groupId, Token token) throws ServiceException {
+		// the workflow pool is available as a target without going through the repository executors
+		if (isPoolTarget(transition)) {
+			WorkflowExecutor.getExecutor(this).submit(this, groupId, transition.getPriority(), new Runnable() {
 				@Override
-				public Void call(String transactionId) throws Exception {
-					WorkflowManager workflowManager = getConfig().getProvider().getWorkflowManager();
-					workflowManager.updateWorkflow(connectionId, transactionId, workflow);
-					return null;
+				public void run() {
+					try {
+						new ServiceRuntime(transitionService, getRepository().newExecutionContext(token)).run(input);
+					}
+					catch (ServiceException e) {
+						logger.error("Could not run asynchronous transition: " + transitionService.getId(), e);
+					}
 				}
 			});
-			// if we are a final state and in a batch, continue the batch
-			if (isFinalState && workflow.getBatchId() != null) {
-				continueBatchIfNecessary(connectionId, workflow, token, getConfig().getProvider().getWorkflowManager());
+		}
+		else {
+			ServiceRunner runner = getExecutorProvider().getRunner(transition.getTarget(), parameters);
+			ExecutionContext executionContext = ServiceRuntime.getRuntime() == null ? getRepository().newExecutionContext(token) : ServiceRuntime.getRuntime().getExecutionContext();
+			runner.run(transitionService, executionContext, input);
+		}
+	}
+	
+	private static boolean hasContent(ComplexContent content, String field) {
+		return content.getType().get(field) != null && content.get(field) != null;
+	}
+	
+	boolean isPoolTarget(WorkflowTransition transition) {
+		return transition.getTarget().equals(getConfig().getExecutor() == null ? WorkflowExecutor.DEFAULT_NAME : getConfig().getExecutor());
+	}
+	
+	// the outbox entries have to be committed before they can be relayed
+	private void relayOutbox(boolean outboxed, WorkflowWriteBuffer buffer) {
+		if (outboxed) {
+			buffer.flush();
+			// with a work queue, any system can claim the entries, we just make sure our own workers are awake
+			if (getConfig().getProvider().hasWorkQueue()) {
+				getWorkQueue().signal();
+			}
+			else {
+				getOutbox().relay();
+			}
+		}
+	}
+	
+	public WorkflowOutbox getOutbox() {
+		if (outbox == null) {
+			synchronized(this) {
+				if (outbox == null) {
+					outbox = new WorkflowOutbox(this);
+				}
+			}
+		}
+		return outbox;
+	}
+	
+	private WorkflowTimer newTimer(WorkflowInstance workflow, WorkflowTransition transition, ComplexContent content) throws ServiceException {
+		Date now = new Date();
+		Date due;
+		if (transition.getDelay().startsWith("=")) {
+			Object result = getVariable(content, transition.getDelay().substring(1));
+			if (result instanceof Date) {
+				due = (Date) result;
+			}
+			else if (result instanceof Number) {
+				due = new Date(now.getTime() + ((Number) result).longValue());
+			}
+			else {
+				throw new IllegalStateException("The delay of transition '" + transition.getName() + "' must evaluate to a date or a number, not: " + result);
+			}
+		}
+		else {
+			due = new Date(now.getTime() + Long.parseLong(transition.getDelay().trim()));
+		}
+		WorkflowTimer timer = new WorkflowTimer();
+		timer.setId(UUID.randomUUID());
+		timer.setWorkflowId(workflow.getId());
+		timer.setDefinitionId(getId());
+		timer.setTransitionId(transition.getId());
+		timer.setSequence(workflow.getLastSequence());
+		timer.setCreated(now);
+		timer.setDue(due);
+		return timer;
+	}
+	
+	// the timers have to be persisted before they can fire
+	private void scheduleTimers(List<WorkflowTimer> timers, WorkflowWriteBuffer buffer) {
+		if (!timers.isEmpty()) {
+			buffer.flush();
+			WorkflowTimers workflowTimers = getTimers();
+			workflowTimers.start();
+			for (WorkflowTimer timer : timers) {
+				workflowTimers.schedule(timer);
+			}
+		}
+	}
+	
+	public WorkflowWorkQueue getWorkQueue() {
+		if (workQueue == null) {
+			synchronized(this) {
+				if (workQueue == null) {
+					workQueue = new WorkflowWorkQueue(this);
+				}
+			}
+		}
+		return workQueue;
+	}
+	
+	public WorkflowShards getShards() {
+		if (shards == null) {
+			synchronized(this) {
+				if (shards == null) {
+					shards = new WorkflowShards(this);
+				}
+			}
+		}
+		return shards;
+	}
+	
+	public WorkflowLeases getLeases() {
+		if (leases == null) {
+			synchronized(this) {
+				if (leases == null) {
+					leases = new WorkflowLeases(this);
+				}
+			}
+		}
+		return leases;
+	}
+	
+	public WorkflowRecovery getRecovery() {
+		if (recovery == null) {
+			synchronized(this) {
+				if (recovery == null) {
+					recovery = new WorkflowRecovery(this);
+				}
+			}
+		}
+		return recovery;
+	}
+	
+	public WorkflowTimers getTimers() {
+		if (timers == null) {
+			synchronized(this) {
+				if (timers == null) {
+					timers = new WorkflowTimers(this);
+				}
+			}
+		}
+		return timers;
+	}
+	
+	// whether the mapping service of the transition references the given input, if we don't know, we assume it does
+	public boolean usesMappingInput(WorkflowTransition transition, String input) {
+		WorkflowDefinitionIndex index = this.index;
+		if (index != null && index.getTransition(transition.getId()) == transition) {
+			Set<String> inputs = index.getMappingInputs(transition.getId());
+			if (inputs != null) {
+				return inputs.contains(input);
 			}
 		}
+		return true;
+	}
+	
+	// the compiled query of the transition, null if it has no (valid) query
+	public WorkflowCondition getCondition(WorkflowTransition transition) {
+		String query = transition.getQuery();
+		if (query == null) {
+			return null;
+		}
+		WorkflowDefinitionIndex index = this.index;
+		if (index != null && index.getTransition(transition.getId()) == transition) {
+			return index.getCondition(transition.getId());
+		}
+		if (!analyzedConditions.containsKey(query)) {
+			synchronized(analyzedConditions) {
+				if (!analyzedConditions.containsKey(query)) {
+					WorkflowCondition condition = null;
+					try {
+						condition = WorkflowCondition.compile(query);
+					}
+					catch (Exception e) {
+						logger.error("There is an invalid query '" + query + "' for workflow: " + getId(), e);
+					}
+					analyzedConditions.put(query, condition);
+				}
+			}
+		}
+		return analyzedConditions.get(query);
+	}
+	
+	private ExecutorProvider getExecutorProvider() {
+		if (executorProvider == null) {
+			executorProvider = new RepositoryExecutorProvider(getRepository());
+		}
+		return executorProvider;
 	}
 	
 	public boolean isSelfTransition(WorkflowTransition transition) {
+		WorkflowDefinitionIndex index = this.index;
+		if (index != null) {
+			return index.isSelfTransition(transition.getId());
+		}
 		for (WorkflowState state : getConfig().getStates()) {
 			// if it starts from this state and goes back to this state, it is a self transition
 			if (state.getTransitions() != null && state.getTransitions().contains(transition)) {
@@ -1004,10 +1701,37 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 		return false;
 	}
 	
-	private boolean continueBatch(WorkflowBatchInstance batch) {
+	// a workflow that is done is counted in the batch it belongs to, a workflow that is waiting for its own batch is not done yet
+	private boolean countBatchMember(WorkflowInstance workflow, WorkflowWriteBuffer buffer) {
+		if (!getConfig().getProvider().hasBatchCounters()) {
+			return false;
+		}
+		if (workflow.getTransitionState() == Level.SUCCEEDED) {
+			buffer.adjustBatchCounters(workflow.getBatchId(), -1, 1, 0);
+			return true;
+		}
+		else if (workflow.getTransitionState() == Level.FAILED) {
+			buffer.adjustBatchCounters(workflow.getBatchId(), -1, 0, 1);
+			return true;
+		}
+		return false;
+	}
+	
+	// if we adjusted the counters of the batch, only the one that brought the remaining count to zero sees it stopped
+	// otherwise (no counters or a batch that predates them) the state is calculated by the provider
+	private Level getBatchState(String connectionId, UUID batchId, WorkflowWriteBuffer buffer) {
+		WorkflowBatchInstance counted = buffer.getAdjustedBatch(batchId);
+		if (counted != null && counted.getRemaining() != null) {
+			if (counted.getRemaining() > 0) {
+				return Level.RUNNING;
+			}
+			return counted.getFailed() != null && counted.getFailed() > 0 ? Level.ERROR : Level.STOPPED;
+		}
+		return getConfig().getProvider().getWorkflowManager().calculateBatchState(connectionId, batchId);
+	}
+	
+	private boolean continueBatch(WorkflowBatchInstance batch, Level batchState) {
 		String connectionId = getConfig().getConnection() == null ? null : getConfig().getConnection().getId();
-		WorkflowManager workflowManager = getConfig().getProvider().getWorkflowManager();
-		Level batchState = workflowManager.calculateBatchState(connectionId, batch.getId());
 		if (batchState == Level.STOPPED) {
 			// we update it to stopped to signal that we want to continue with the next part
 			batch.setState(Level.WAITING);
@@ -1029,6 +1753,62 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 		return false;
 	}
 	
+	// whether the state (or the states it extends) has any transitions that can be triggered automatically
+	private boolean hasAutomaticTransitions(WorkflowState state) {
+		return !getAutomaticTransitions(state).isEmpty();
+	}
+	
+	// the transitions that can be triggered automatically from the state (including the states it extends) in the order they should be evaluated
+	public List<WorkflowTransition> getAutomaticTransitions(WorkflowState state) {
+		WorkflowDefinitionIndex index = this.index;
+		if (index != null && index.getState(state.getId()) == state) {
+			List<WorkflowTransition> plan = index.getAutomaticTransitions(state.getId());
+			if (plan != null) {
+				return plan;
+			}
+		}
+		List<WorkflowTransition> possibleTransitions = new ArrayList<WorkflowTransition>();
+		if (state.getTransitions() != null) {
+			for (WorkflowTransition transition : state.getTransitions()) {
+				if (canAutomaticallyTransition(transition)) {
+					possibleTransitions.add(transition);
+				}
+			}
+		}
+		// we add the transitions of extended states, they can also autotrigger
+		if (state.getExtensions() != null) {
+			for (UUID name : state.getExtensions()) {
+				WorkflowState extended = getStateById(name);
+				if (extended != null && extended.getTransitions() != null) {
+					for (WorkflowTransition transition : extended.getTransitions()) {
+						if (!possibleTransitions.contains(transition) && canAutomaticallyTransition(transition)) {
+							possibleTransitions.add(transition);
+						}
+					}
+				}
+			}
+		}
+		Collections.sort(possibleTransitions, new Comparator<WorkflowTransition>() {
+			@Override
+			public int compare(WorkflowTransition arg0, WorkflowTransition arg1) {
+				// if they are the same query order, transitions that don't alter the state get preference
+				if (arg0.getQueryOrder() == arg1.getQueryOrder()) {
+					if (isSelfTransition(arg0)) {
+						return isSelfTransition(arg1) ? 0 : -1;
+					}
+					else if (isSelfTransition(arg1)) {
+						return 1;
+					}
+					else {
+						return 0;
+					}
+				}
+				return arg0.getQueryOrder() - arg1.getQueryOrder();
+			}
+		});
+		return possibleTransitions;
+	}
+	
 	private boolean canAutomaticallyTransition(WorkflowTransition transition) {
 		// if we have no query, we can't do it automatically
 		if (transition.getQuery() == null) {
@@ -1036,6 +1816,10 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 		}
 		// if we have a required input, we can't automatically transition
 		DefinedStructure definedStructure = getStructures().get(Workflow.stringify(transition.getId()));
+		// if the input structure is not loaded, we don't know whether input is required, so it can not run automatically
+		if (definedStructure == null) {
+			return false;
+		}
 		for (Element<?> child : TypeUtils.getAllChildren(definedStructure)) {
 			Value<Integer> minOccurs = child.getProperty(MinOccursProperty.getInstance());
 			if (minOccurs == null || minOccurs.getValue() != 0) {
@@ -1055,6 +1839,10 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 	}
 
 	public WorkflowState getStateById(UUID id) {
+		WorkflowDefinitionIndex index = this.index;
+		if (index != null) {
+			return index.getState(id);
+		}
 		for (WorkflowState state : getConfig().getStates()) {
 			if (state.getId().equals(id)) {
 				return state;
@@ -1064,6 +1852,10 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 	}
 	
 	public WorkflowState getTransitionFromState(UUID transitionId) {
+		WorkflowDefinitionIndex index = this.index;
+		if (index != null) {
+			return index.getTransitionFromState(transitionId);
+		}
 		for (WorkflowState state : getConfig().getStates()) {
 			if (state.getTransitions() != null) {
 				for (WorkflowTransition transition : state.getTransitions()) {
@@ -1077,6 +1869,10 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 	}
 	
 	public WorkflowTransition getTransitionById(UUID id) {
+		WorkflowDefinitionIndex index = this.index;
+		if (index != null) {
+			return index.getTransition(id);
+		}
 		for (WorkflowState state : getConfig().getStates()) {
 			WorkflowTransition potential = getTransitionById(id, state);
 			if (potential != null) {
@@ -1098,6 +1894,10 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 	}
 
 	public boolean isExtensionState(UUID id) {
+		WorkflowDefinitionIndex index = this.index;
+		if (index != null) {
+			return index.isExtensionState(id);
+		}
 		if (getConfig().getStates() != null) {
 			for (WorkflowState state : getConfig().getStates()) {
 				if (state.getExtensions() != null && state.getExtensions().contains(id)) {
@@ -1109,6 +1909,10 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 	}
 	
 	public Collection<WorkflowState> getInitialStates() {
+		WorkflowDefinitionIndex index = this.index;
+		if (index != null) {
+			return index.getInitialStates();
+		}
 		Map<UUID, WorkflowState> initialStates = new HashMap<UUID, WorkflowState>();
 		List<UUID> targetedStates = new ArrayList<UUID>();
 		for (WorkflowState state : getConfig().getStates()) {
@@ -1126,6 +1930,10 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 	}
 
 	public boolean isFinalState(WorkflowState state) {
+		WorkflowDefinitionIndex index = this.index;
+		if (index != null && index.getState(state.getId()) == state) {
+			return index.isFinalState(state.getId());
+		}
 		if (state.getFinalState() != null) {
 			return state.getFinalState();
 		}
@@ -1149,6 +1957,10 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 	}
 	
 	public Collection<WorkflowState> getFinalStates() {
+		WorkflowDefinitionIndex index = this.index;
+		if (index != null) {
+			return index.getFinalStates();
+		}
 		Map<String, WorkflowState> finalStates = new HashMap<String, WorkflowState>();
 		for (WorkflowState state : getConfig().getStates()) {
 			if (isFinalState(state)) {
@@ -1158,6 +1970,67 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 		return finalStates.values();
 	}
 	
+	// whether the given state is the other state or extends it (directly or indirectly)
+	public boolean isOrExtendsState(UUID stateId, UUID otherStateId) {
+		WorkflowDefinitionIndex index = this.index;
+		if (index != null) {
+			return index.isOrExtends(stateId, otherStateId);
+		}
+		return isOrExtendsState(stateId, otherStateId, new HashSet<UUID>());
+	}
+	
+	private boolean isOrExtendsState(UUID stateId, UUID otherStateId, Set<UUID> checked) {
+		if (stateId == null) {
+			return false;
+		}
+		else if (stateId.equals(otherStateId)) {
+			return true;
+		}
+		// prevent circular lookups
+		else if (!checked.add(stateId)) {
+			return false;
+		}
+		WorkflowState state = getStateById(stateId);
+		if (state != null && state.getExtensions() != null) {
+			for (UUID extensionId : state.getExtensions()) {
+				if (isOrExtendsState(extensionId, otherStateId, checked)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	public WorkflowDefinitionIndex getIndex() {
+		return index;
+	}
+	
+	// swap in a new compiled index (or unset it to fall back to scanning the configuration)
+	public void setIndex(WorkflowDefinitionIndex index) {
+		this.index = index;
+	}
+	
+	public void rebuildIndex() {
+		Set<UUID> automaticTransitions = new HashSet<UUID>();
+		Map<UUID, Set<String>> mappingInputs = new HashMap<UUID, Set<String>>();
+		if (getConfig().getStates() != null) {
+			for (WorkflowState state : getConfig().getStates()) {
+				if (state.getTransitions() != null) {
+					for (WorkflowTransition transition : state.getTransitions()) {
+						if (canAutomaticallyTransition(transition)) {
+							automaticTransitions.add(transition.getId());
+						}
+						VMService mapping = getMappings().get(stringify(transition.getId()));
+						if (mapping != null) {
+							mappingInputs.put(transition.getId(), WorkflowMappingAnalyzer.getReferencedInputs(mapping, Arrays.asList("history", "properties", "workflow")));
+						}
+					}
+				}
+			}
+		}
+		this.index = WorkflowDefinitionIndex.compile(getConfig().getStates(), automaticTransitions, mappingInputs);
+	}
+	
 	public Map<String, VMService> getMappings() {
 		return mappings;
 	}
@@ -1186,6 +2059,44 @@ public class Workflow extends JAXBArtifact<WorkflowConfiguration> implements Mou
 	}
 
 	
+	// where the workflow ended up after a transition
+	private static class Continuation {
+		private WorkflowState state;
+		private ComplexContent output;
+		// null if we don't know which properties changed
+		private Set<String> changedProperties;
+		public Continuation(WorkflowState state, ComplexContent output, Set<String> changedProperties) {
+			this.state = state;
+			this.output = output;
+			this.changedProperties = changedProperties;
+		}
+		public WorkflowState getState() {
+			return state;
+		}
+		public ComplexContent getOutput() {
+			return output;
+		}
+		public Set<String> getChangedProperties() {
+			return changedProperties;
+		}
+	}
+	
+	// the next automatic transition to run, along with the content it was evaluated against
+	private static class AutomaticTransition {
+		private WorkflowTransition transition;
+		private ComplexContent input;
+		public AutomaticTransition(WorkflowTransition transition, ComplexContent input) {
+			this.transition = transition;
+			this.input = input;
+		}
+		public WorkflowTransition getTransition() {
+			return transition;
+		}
+		public ComplexContent getInput() {
+			return input;
+		}
+	}
+	
 	/******************************* WEB FRAGMENT *******************************/
 	
 //	private Map<String, List<EventSubscription<?, ?>>> subscriptions = new HashMap<String, List<EventSubscription<?, ?>>>();
@@ -0,0 +1,180 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import be.nabu.libs.services.api.ServiceException;
+
+// admission control for new workflows of a definition on this server
+// transitions on existing workflows are never refused, they only count towards the running transitions: refusing them would leave work half done
+// new workflows are only admitted if there is room for another running transition and the start rate allows it
+// note that this counts the transitions executing in this server, not the workflows that are in a running state
+public class WorkflowAdmission {
+
+	private static Map<String, WorkflowAdmission> admissions = new HashMap<String, WorkflowAdmission>();
+	
+	private String definitionId;
+	// the amount of transitions of this definition currently running on this server
+	private int running;
+	// the amount of starts that are queued for admission
+	private int waiting;
+	private long admitted, rejected;
+	// the token bucket for the start rate
+	private double tokens = -1;
+	private long lastRefill;
+	
+	WorkflowAdmission(String definitionId) {
+		this.definitionId = definitionId;
+	}
+	
+	public static WorkflowAdmission getAdmission(Workflow workflow) {
+		synchronized(admissions) {
+			WorkflowAdmission admission = admissions.get(workflow.getId());
+			if (admission == null) {
+				admission = new WorkflowAdmission(workflow.getId());
+				admissions.put(workflow.getId(), admission);
+			}
+			return admission;
+		}
+	}
+	
+	// called when the workflow is (re)loaded, the running transitions are still running but the rate and statistics start over with the new configuration
+	public static void configure(Workflow workflow) {
+		getAdmission(workflow).reset();
+	}
+	
+	synchronized void reset() {
+		tokens = -1;
+		admitted = 0;
+		rejected = 0;
+		// whoever is waiting has to reevaluate with the new limits
+		notifyAll();
+	}
+	
+	// admit a new workflow, depending on the configuration we wait for room or reject immediately
+	// once admitted, the transition counts as running until it is released
+	public void admit(Workflow workflow) throws ServiceException {
+		admit(workflow.getConfig(), false);
+	}
+	
+	// a bulk start has asked for a lot of workflows at once, rejecting it because it outpaces the start rate makes no sense so it waits for the tokens it needs
+	// room for running transitions is still only waited for as long as the admission timeout allows
+	public void admitBulk(Workflow workflow) throws ServiceException {
+		admit(workflow.getConfig(), true);
+	}
+	
+	void admit(WorkflowConfiguration config) throws ServiceException {
+		admit(config, false);
+	}
+	
+	synchronized void admit(WorkflowConfiguration config, boolean bulk) throws ServiceException {
+		long timeout = config.getAdmissionTimeout() == null || config.getAdmissionTimeout() < 0 ? 0 : config.getAdmissionTimeout();
+		long deadline = System.currentTimeMillis() + timeout;
+		waiting++;
+		try {
+			while (true) {
+				long wait = getWaitTime(config);
+				if (wait == 0) {
+					break;
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0 && (wait < 0 || !bulk)) {
+					rejected++;
+					throw new ServiceException("WORKFLOW-OVERLOADED", "Workflow '" + definitionId + "' can not accept new workflows at this time, try again later");
+				}
+				try {
+					// we are notified when a running workflow is released, a token is refilled after the calculated time
+					wait(wait < 0 ? remaining : (bulk ? wait : Math.min(wait, remaining)));
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ServiceException("WORKFLOW-OVERLOADED", "Interrupted while waiting for admission of a new '" + definitionId + "' workflow", e);
+				}
+			}
+		}
+		finally {
+			waiting--;
+		}
+		if (config.getMaxStartsPerSecond() != null && config.getMaxStartsPerSecond() > 0) {
+			tokens--;
+		}
+		admitted++;
+		running++;
+	}
+	
+	// work on an existing workflow is always allowed
+	public synchronized void enter() {
+		running++;
+	}
+	
+	public synchronized void release() {
+		running--;
+		notifyAll();
+	}
+	
+	// 0 if we can admit right now, -1 if we have to wait for a release or the time until a new token is available
+	private long getWaitTime(WorkflowConfiguration config) {
+		if (config.getMaxConcurrentTransitionsPerServer() != null && config.getMaxConcurrentTransitionsPerServer() > 0 && running >= config.getMaxConcurrentTransitionsPerServer()) {
+			return -1;
+		}
+		Double rate = config.getMaxStartsPerSecond();
+		if (rate != null && rate > 0) {
+			double capacity = config.getStartBurst() == null || config.getStartBurst() <= 0 ? Math.max(1, rate) : config.getStartBurst();
+			long now = System.currentTimeMillis();
+			// a full bucket to start with
+			if (tokens < 0) {
+				tokens = capacity;
+			}
+			else {
+				tokens = Math.min(capacity, tokens + ((now - lastRefill) / 1000.0) * rate);
+			}
+			lastRefill = now;
+			if (tokens < 1) {
+				return Math.max(1, (long) Math.ceil(((1 - tokens) / rate) * 1000));
+			}
+		}
+		return 0;
+	}
+	
+	// the amount of workflows that can be started at once, -1 if the start rate is not limited
+	public static int getBurst(WorkflowConfiguration config) {
+		Double rate = config.getMaxStartsPerSecond();
+		if (rate == null || rate <= 0) {
+			return -1;
+		}
+		return config.getStartBurst() == null || config.getStartBurst() <= 0 ? (int) Math.max(1, rate) : config.getStartBurst();
+	}
+	
+	public synchronized int getRunning() {
+		return running;
+	}
+	
+	public synchronized int getWaiting() {
+		return waiting;
+	}
+	
+	public synchronized long getAdmitted() {
+		return admitted;
+	}
+	
+	public synchronized long getRejected() {
+		return rejected;
+	}
+}
@@ -0,0 +1,189 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import be.nabu.libs.evaluator.EvaluationException;
+import be.nabu.libs.evaluator.PathAnalyzer;
+import be.nabu.libs.evaluator.QueryParser;
+import be.nabu.libs.evaluator.QueryPart;
+import be.nabu.libs.evaluator.api.Operation;
+import be.nabu.libs.evaluator.api.OperationProvider.OperationType;
+import be.nabu.libs.evaluator.types.api.TypeOperation;
+import be.nabu.libs.evaluator.types.operations.TypesOperationProvider;
+import be.nabu.libs.types.api.ComplexContent;
+
+// the compiled query of an automatic transition
+// apart from the operation itself, we keep track of what the query reads from the evaluation content (the properties and the state)
+// this is derived from the parsed operation, whenever we are not sure what is read, we assume everything is
+public class WorkflowCondition {
+
+	private final String query;
+	private final TypeOperation operation;
+	// the root properties the query reads, if we can't tell which ones, it reads all of them
+	private Set<String> properties = new HashSet<String>();
+	private boolean readsAllProperties, readsState;
+	// whether the outcome only depends on what the query reads, a method (e.g. the current time) can change the outcome without any input changing
+	private boolean deterministic = true;
+
+	private WorkflowCondition(String query, TypeOperation operation) {
+		this.query = query;
+		this.operation = operation;
+		try {
+			analyze(operation, true);
+		}
+		// an operation we don't understand could read anything
+		catch (RuntimeException e) {
+			readsAllProperties = true;
+			readsState = true;
+			deterministic = false;
+		}
+		this.properties = Collections.unmodifiableSet(properties);
+	}
+
+	private void analyze(Operation<?> operation, boolean root) {
+		if (operation.getType() == OperationType.VARIABLE) {
+			analyzeVariable(operation, root);
+		}
+		else {
+			if (operation.getType() == OperationType.METHOD) {
+				deterministic = false;
+			}
+			for (QueryPart part : operation.getParts()) {
+				if (part.getType() == QueryPart.Type.OPERATION) {
+					analyze((Operation<?>) part.getContent(), root);
+				}
+			}
+		}
+	}
+
+	// the first part of a variable is the path, the other parts are indexes, predicates or further path segments
+	private void analyzeVariable(Operation<?> operation, boolean root) {
+		String path = operation.getParts().get(0).getContent().toString();
+		// variables (e.g. aliases) can point anywhere in the content
+		if (path.startsWith("$")) {
+			readsAllProperties = true;
+			readsState = true;
+		}
+		else {
+			boolean absolute = path.startsWith("/");
+			if (absolute) {
+				path = path.substring(1);
+			}
+			int index = path.indexOf('/');
+			String name = index < 0 ? path : path.substring(0, index);
+			if (name.equals("state")) {
+				readsState = true;
+			}
+			else if (name.equals("properties")) {
+				String child = index < 0 ? null : path.substring(index + 1);
+				// the child may be in the next part if the properties themselves are indexed or the parser split the path
+				if ((child == null || child.isEmpty()) && operation.getParts().size() > 1 && operation.getParts().get(1).getType() == QueryPart.Type.VARIABLE) {
+					child = operation.getParts().get(1).getContent().toString();
+					if (child.startsWith("/")) {
+						child = child.substring(1);
+					}
+				}
+				if (child == null || child.isEmpty()) {
+					readsAllProperties = true;
+				}
+				else {
+					properties.add(WorkflowCondition.getRoot(child));
+				}
+			}
+			// at the root, the evaluation content only has the properties and the state, anything else we can't place
+			// within a predicate, a relative path is resolved against the element being filtered, which we already account for
+			else if (root || absolute) {
+				readsAllProperties = true;
+				readsState = true;
+			}
+		}
+		// the indexes and predicates are evaluated against the element, unless they use absolute paths
+		for (int i = 1; i < operation.getParts().size(); i++) {
+			QueryPart part = operation.getParts().get(i);
+			if (part.getType() == QueryPart.Type.OPERATION) {
+				analyze((Operation<?>) part.getContent(), false);
+			}
+		}
+	}
+
+	public static WorkflowCondition compile(String query) throws ParseException {
+		return new WorkflowCondition(query, (TypeOperation) new PathAnalyzer<ComplexContent>(new TypesOperationProvider()).analyze(QueryParser.getInstance().parse(query)));
+	}
+
+	public boolean evaluate(ComplexContent content) throws EvaluationException {
+		Object value = operation.evaluate(content);
+		return value instanceof Boolean && (Boolean) value;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public TypeOperation getOperation() {
+		return operation;
+	}
+
+	public boolean readsProperties() {
+		return readsAllProperties || !properties.isEmpty();
+	}
+
+	public boolean readsState() {
+		return readsState;
+	}
+
+	// whether a false outcome remains false as long as nothing the query reads changes
+	public boolean isDeterministic() {
+		return deterministic;
+	}
+
+	public Set<String> getProperties() {
+		return properties;
+	}
+
+	// whether a change in any of the given property keys (e.g. "a/b[0]/c") can alter the outcome of this condition
+	public boolean dependsOn(Collection<String> changedProperties) {
+		if (changedProperties == null || changedProperties.isEmpty()) {
+			return false;
+		}
+		else if (readsAllProperties) {
+			return true;
+		}
+		for (String key : changedProperties) {
+			if (properties.contains(getRoot(key))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static String getRoot(String key) {
+		for (int i = 0; i < key.length(); i++) {
+			char character = key.charAt(i);
+			if (character == '/' || character == '[') {
+				return key.substring(0, i);
+			}
+		}
+		return key;
+	}
+}
@@ -30,9 +30,10 @@ import be.nabu.eai.repository.EAIResourceRepository;
 import be.nabu.eai.repository.jaxb.ArtifactXMLAdapter;
 import be.nabu.libs.artifacts.api.DataSourceProviderArtifact;
 import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.types.api.annotation.Field;
 
 @XmlRootElement(name = "workflow")
-@XmlType(propOrder = { "connection", "provider", "version", "states", "permissionService", "roleService", "tokenValidatorService", "transitionListeners", "basePath" })
+@XmlType(propOrder = { "connection", "provider", "version", "states", "permissionService", "roleService", "tokenValidatorService", "transitionListeners", "basePath", "coalesceTransactions", "durability", "executor", "executorPoolSize", "executorQueueSize", "executorRejectionPolicy", "executorFairness", "executorWeight", "maxConcurrentTransitions", "maxConcurrentTransitionsPerServer", "maxStartsPerSecond", "startBurst", "admissionTimeout", "recoveryParallelism", "backgroundRecovery", "leaseDuration", "sharding", "workers" })
 public class WorkflowConfiguration {
 	
 	private boolean version;
@@ -42,6 +43,31 @@ public class WorkflowConfiguration {
 	private DefinedService permissionService, roleService, tokenValidatorService;
 	private List<DefinedService> transitionListeners;
 	private String basePath;
+	// whether or not we want to minimize the amount of commits per transition
+	private boolean coalesceTransactions;
+	// when automatic transitions are persisted
+	private WorkflowDurability durability;
+	// the pool that runs the asynchronous work
+	private String executor;
+	private Integer executorPoolSize, executorQueueSize, maxConcurrentTransitions;
+	private WorkflowRejectionPolicy executorRejectionPolicy;
+	// how the work of this workflow is scheduled relative to other work in the same pool
+	private WorkflowFairness executorFairness;
+	private Integer executorWeight;
+	// admission control for new workflows
+	private Integer maxConcurrentTransitionsPerServer, startBurst;
+	private Double maxStartsPerSecond;
+	private Long admissionTimeout;
+	// the amount of threads used to revert interrupted transitions on startup
+	private Integer recoveryParallelism;
+	// whether the interrupted transitions are recovered while the workflow is already serving traffic
+	private boolean backgroundRecovery;
+	// how long (in ms) the lease of this server on its running transitions is valid
+	private Long leaseDuration;
+	// whether the instances are divided over the live servers
+	private boolean sharding;
+	// the amount of workers that claim work from the queue on this server
+	private Integer workers;
 	
 	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
 	public WorkflowProvider getProvider() {
@@ -122,4 +148,148 @@ public class WorkflowConfiguration {
 		this.basePath = basePath;
 	}
 	
+	@Field(comment = "If enabled, transitions that start from a stateless state are only persisted once they are done and the waiting state is persisted together with the transition where possible. If the server goes down while such a transition is running, the workflow remains in its previous state.")
+	public boolean isCoalesceTransactions() {
+		return coalesceTransactions;
+	}
+	public void setCoalesceTransactions(boolean coalesceTransactions) {
+		this.coalesceTransactions = coalesceTransactions;
+	}
+	
+	@Field(comment = "By default every transition is persisted when it is done. If you choose 'CHAIN', a chain of automatic transitions is persisted in one go when it reaches a waiting or final state or an error. If the server goes down in the middle of the chain, it is as if the chain never ran.")
+	public WorkflowDurability getDurability() {
+		return durability;
+	}
+	public void setDurability(WorkflowDurability durability) {
+		this.durability = durability;
+	}
+	
+	@Field(comment = "The name of the pool that runs asynchronous transitions. Workflows with the same pool name share their threads. Defaults to 'workflow'. Timed or asynchronous transitions with this name as their target also run in this pool.")
+	public String getExecutor() {
+		return executor;
+	}
+	public void setExecutor(String executor) {
+		this.executor = executor;
+	}
+	
+	@Field(comment = "The maximum amount of threads in the pool, the first workflow that uses the pool determines its size. Defaults to 10.")
+	public Integer getExecutorPoolSize() {
+		return executorPoolSize;
+	}
+	public void setExecutorPoolSize(Integer executorPoolSize) {
+		this.executorPoolSize = executorPoolSize;
+	}
+	
+	@Field(comment = "The maximum amount of work that can be queued in the pool before new work is rejected. Defaults to 1000.")
+	public Integer getExecutorQueueSize() {
+		return executorQueueSize;
+	}
+	public void setExecutorQueueSize(Integer executorQueueSize) {
+		this.executorQueueSize = executorQueueSize;
+	}
+	
+	@Field(comment = "What to do when the pool is saturated: reject the work with an exception (default) or run it in the calling thread.")
+	public WorkflowRejectionPolicy getExecutorRejectionPolicy() {
+		return executorRejectionPolicy;
+	}
+	public void setExecutorRejectionPolicy(WorkflowRejectionPolicy executorRejectionPolicy) {
+		this.executorRejectionPolicy = executorRejectionPolicy;
+	}
+	
+	@Field(comment = "The pool divides its threads fairly between lanes. By default all work of this workflow shares a lane, if you choose 'GROUP', every group id gets its own lane so one group can not starve the others.")
+	public WorkflowFairness getExecutorFairness() {
+		return executorFairness;
+	}
+	public void setExecutorFairness(WorkflowFairness executorFairness) {
+		this.executorFairness = executorFairness;
+	}
+	
+	@Field(comment = "The relative share of the pool the lanes of this workflow get when there is contention, a lane with weight 2 gets twice the turns of a lane with weight 1. Defaults to 1.")
+	public Integer getExecutorWeight() {
+		return executorWeight;
+	}
+	public void setExecutorWeight(Integer executorWeight) {
+		this.executorWeight = executorWeight;
+	}
+	
+	@Field(comment = "The maximum amount of asynchronous transitions of this workflow that can be queued or running at the same time.")
+	public Integer getMaxConcurrentTransitions() {
+		return maxConcurrentTransitions;
+	}
+	public void setMaxConcurrentTransitions(Integer maxConcurrentTransitions) {
+		this.maxConcurrentTransitions = maxConcurrentTransitions;
+	}
+	
+	@Field(comment = "The maximum amount of transitions of this workflow that can run at the same time on this server before new workflows are no longer accepted. This counts transitions that are executing, not workflows that are in a running state. Transitions on existing workflows are always accepted.")
+	public Integer getMaxConcurrentTransitionsPerServer() {
+		return maxConcurrentTransitionsPerServer;
+	}
+	public void setMaxConcurrentTransitionsPerServer(Integer maxConcurrentTransitionsPerServer) {
+		this.maxConcurrentTransitionsPerServer = maxConcurrentTransitionsPerServer;
+	}
+	
+	@Field(comment = "The maximum amount of new workflows that can be started per second on this server.")
+	public Double getMaxStartsPerSecond() {
+		return maxStartsPerSecond;
+	}
+	public void setMaxStartsPerSecond(Double maxStartsPerSecond) {
+		this.maxStartsPerSecond = maxStartsPerSecond;
+	}
+	
+	@Field(comment = "The amount of workflows that can be started in a burst above the start rate. Defaults to the start rate itself.", show = "maxStartsPerSecond != null")
+	public Integer getStartBurst() {
+		return startBurst;
+	}
+	public void setStartBurst(Integer startBurst) {
+		this.startBurst = startBurst;
+	}
+	
+	@Field(comment = "How long (in ms) a new workflow can wait for admission when the workflow is saturated. By default it is rejected immediately with the code WORKFLOW-OVERLOADED.", show = "maxConcurrentTransitionsPerServer != null || maxStartsPerSecond != null")
+	public Long getAdmissionTimeout() {
+		return admissionTimeout;
+	}
+	public void setAdmissionTimeout(Long admissionTimeout) {
+		this.admissionTimeout = admissionTimeout;
+	}
+	
+	@Field(comment = "The amount of threads used to revert the transitions that were interrupted by a restart. Defaults to 4. Only applies if the provider can list the running transitions of a server.")
+	public Integer getRecoveryParallelism() {
+		return recoveryParallelism;
+	}
+	public void setRecoveryParallelism(Integer recoveryParallelism) {
+		this.recoveryParallelism = recoveryParallelism;
+	}
+	
+	@Field(comment = "Recover the interrupted transitions in the background. New workflows and workflows that are not running are served immediately, transitions on running workflows are refused with the code WORKFLOW-RECOVERING until the recovery is done.")
+	public boolean isBackgroundRecovery() {
+		return backgroundRecovery;
+	}
+	public void setBackgroundRecovery(boolean backgroundRecovery) {
+		this.backgroundRecovery = backgroundRecovery;
+	}
+	
+	@Field(comment = "How long (in ms) the lease of this server on its running transitions is valid, it is renewed three times per period. If it expires, another server takes over the running transitions. Defaults to 60000. Only applies if the provider supports leases.")
+	public Long getLeaseDuration() {
+		return leaseDuration;
+	}
+	public void setLeaseDuration(Long leaseDuration) {
+		this.leaseDuration = leaseDuration;
+	}
+	
+	@Field(comment = "Divide the workflow instances over the live servers. Timers only fire on the server that owns the instance and asynchronous transitions are relayed to it through the outbox. Requires a provider that supports leases.")
+	public boolean isSharding() {
+		return sharding;
+	}
+	public void setSharding(boolean sharding) {
+		this.sharding = sharding;
+	}
+	
+	@Field(comment = "The amount of workers on this server that claim asynchronous transitions from the work queue, they run in the workflow pool. Defaults to 2. Only applies if the provider supports a work queue.")
+	public Integer getWorkers() {
+		return workers;
+	}
+	public void setWorkers(Integer workers) {
+		this.workers = workers;
+	}
+	
 }
@@ -0,0 +1,48 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.UUID;
+
+// thrown when a workflow instance was updated by someone else since we read it
+public class WorkflowConflictException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+	
+	private UUID workflowId;
+
+	public WorkflowConflictException(UUID workflowId) {
+		super("The workflow " + workflowId + " was modified concurrently");
+		this.workflowId = workflowId;
+	}
+
+	public UUID getWorkflowId() {
+		return workflowId;
+	}
+	
+	// find a conflict in the cause chain, the transactional wrapper hides the original exception
+	public static WorkflowConflictException find(Throwable throwable) {
+		while (throwable != null) {
+			if (throwable instanceof WorkflowConflictException) {
+				return (WorkflowConflictException) throwable;
+			}
+			throwable = throwable.getCause();
+		}
+		return null;
+	}
+}
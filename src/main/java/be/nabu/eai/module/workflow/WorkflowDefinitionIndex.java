@@ -0,0 +1,305 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+// an immutable snapshot of the state machine of a workflow definition
+// it is compiled once when the definition is loaded so the runtime does not have to scan all the states for every lookup
+// because it is a snapshot, it must be rebuilt (and swapped) whenever the definition changes
+public class WorkflowDefinitionIndex {
+
+	private final Map<UUID, WorkflowState> states;
+	private final Map<UUID, WorkflowTransition> transitions;
+	// the state a transition is defined in
+	private final Map<UUID, WorkflowState> transitionFromStates;
+	private final Set<UUID> selfTransitions, finalStates, extensionStates;
+	// for each state, all the states it extends, directly or indirectly
+	private final Map<UUID, Set<UUID>> extensionClosures;
+	private final List<WorkflowState> initialStates, finalStateList;
+	// the compiled queries of the transitions, queries that could not be compiled are kept apart with the reason
+	private final Map<UUID, WorkflowCondition> conditions;
+	private final Map<UUID, String> invalidConditions;
+	// for each state, the transitions that can be triggered automatically in the order they should be evaluated
+	// this is null if we don't know which transitions are automatic
+	private final Map<UUID, List<WorkflowTransition>> automaticPlans;
+	// for each transition, the inputs its mapping service actually references
+	private final Map<UUID, Set<String>> mappingInputs;
+
+	private WorkflowDefinitionIndex(List<WorkflowState> definition, Set<UUID> automaticTransitions, Map<UUID, Set<String>> mappingInputs) {
+		Map<UUID, WorkflowState> states = new LinkedHashMap<UUID, WorkflowState>();
+		Map<UUID, WorkflowTransition> transitions = new HashMap<UUID, WorkflowTransition>();
+		Map<UUID, WorkflowState> transitionFromStates = new HashMap<UUID, WorkflowState>();
+		Set<UUID> selfTransitions = new HashSet<UUID>();
+		Set<UUID> extensionStates = new HashSet<UUID>();
+		Set<UUID> targetedStates = new HashSet<UUID>();
+		Map<UUID, WorkflowCondition> conditions = new HashMap<UUID, WorkflowCondition>();
+		Map<UUID, String> invalidConditions = new LinkedHashMap<UUID, String>();
+
+		if (definition != null) {
+			for (WorkflowState state : definition) {
+				// the first match wins, the same as the linear scans
+				if (!states.containsKey(state.getId())) {
+					states.put(state.getId(), state);
+				}
+				if (state.getExtensions() != null) {
+					extensionStates.addAll(state.getExtensions());
+				}
+				if (state.getTransitions() != null) {
+					for (WorkflowTransition transition : state.getTransitions()) {
+						if (!transitions.containsKey(transition.getId())) {
+							transitions.put(transition.getId(), transition);
+							transitionFromStates.put(transition.getId(), state);
+							if (state.getId().equals(transition.getTargetStateId())) {
+								selfTransitions.add(transition.getId());
+							}
+							if (transition.getQuery() != null) {
+								try {
+									conditions.put(transition.getId(), WorkflowCondition.compile(transition.getQuery()));
+								}
+								catch (Exception e) {
+									invalidConditions.put(transition.getId(), e.getMessage());
+								}
+							}
+						}
+						targetedStates.add(transition.getTargetStateId());
+					}
+				}
+			}
+		}
+
+		Map<UUID, Set<UUID>> extensionClosures = new HashMap<UUID, Set<UUID>>();
+		for (WorkflowState state : states.values()) {
+			Set<UUID> closure = new HashSet<UUID>();
+			collectExtensions(states, state, closure);
+			// a state does not extend itself, even if there is a circular reference
+			closure.remove(state.getId());
+			extensionClosures.put(state.getId(), Collections.unmodifiableSet(closure));
+		}
+
+		List<WorkflowState> initialStates = new ArrayList<WorkflowState>();
+		List<WorkflowState> finalStateList = new ArrayList<WorkflowState>();
+		Set<UUID> finalStates = new HashSet<UUID>();
+		for (WorkflowState state : states.values()) {
+			if (!state.isGlobalState() && !targetedStates.contains(state.getId())) {
+				initialStates.add(state);
+			}
+			if (calculateFinal(states, state, new HashSet<UUID>())) {
+				finalStates.add(state.getId());
+				finalStateList.add(state);
+			}
+		}
+
+		this.states = Collections.unmodifiableMap(states);
+		this.transitions = Collections.unmodifiableMap(transitions);
+		this.transitionFromStates = Collections.unmodifiableMap(transitionFromStates);
+		this.selfTransitions = Collections.unmodifiableSet(selfTransitions);
+		this.extensionStates = Collections.unmodifiableSet(extensionStates);
+		this.extensionClosures = Collections.unmodifiableMap(extensionClosures);
+		this.finalStates = Collections.unmodifiableSet(finalStates);
+		this.initialStates = Collections.unmodifiableList(initialStates);
+		this.finalStateList = Collections.unmodifiableList(finalStateList);
+		Map<UUID, List<WorkflowTransition>> automaticPlans = null;
+		if (automaticTransitions != null) {
+			automaticPlans = new HashMap<UUID, List<WorkflowTransition>>();
+			for (WorkflowState state : states.values()) {
+				automaticPlans.put(state.getId(), plan(states, selfTransitions, automaticTransitions, state));
+			}
+		}
+
+		Map<UUID, Set<String>> unmodifiableInputs = new HashMap<UUID, Set<String>>();
+		if (mappingInputs != null) {
+			for (Map.Entry<UUID, Set<String>> entry : mappingInputs.entrySet()) {
+				unmodifiableInputs.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<String>(entry.getValue())));
+			}
+		}
+		this.mappingInputs = Collections.unmodifiableMap(unmodifiableInputs);
+		this.automaticPlans = automaticPlans == null ? null : Collections.unmodifiableMap(automaticPlans);
+		this.conditions = Collections.unmodifiableMap(conditions);
+		this.invalidConditions = Collections.unmodifiableMap(invalidConditions);
+	}
+
+	public static WorkflowDefinitionIndex compile(List<WorkflowState> states) {
+		return new WorkflowDefinitionIndex(states, null, null);
+	}
+
+	// the automatic transitions are the ones that have a query and no required input, this requires the structures of the transitions to be loaded
+	// the mapping inputs are the result of analyzing the mapping services, which also have to be loaded
+	public static WorkflowDefinitionIndex compile(List<WorkflowState> states, Set<UUID> automaticTransitions, Map<UUID, Set<String>> mappingInputs) {
+		return new WorkflowDefinitionIndex(states, automaticTransitions, mappingInputs);
+	}
+
+	// the transitions of the state and the states it directly extends, ordered by query order
+	// within the same query order, transitions that don't alter the state come first
+	private static List<WorkflowTransition> plan(Map<UUID, WorkflowState> states, Set<UUID> selfTransitions, Set<UUID> automaticTransitions, WorkflowState state) {
+		List<WorkflowTransition> plan = new ArrayList<WorkflowTransition>();
+		Set<UUID> added = new HashSet<UUID>();
+		List<WorkflowState> sources = new ArrayList<WorkflowState>();
+		sources.add(state);
+		if (state.getExtensions() != null) {
+			for (UUID extensionId : state.getExtensions()) {
+				WorkflowState extended = states.get(extensionId);
+				if (extended != null) {
+					sources.add(extended);
+				}
+			}
+		}
+		for (WorkflowState source : sources) {
+			if (source.getTransitions() != null) {
+				for (WorkflowTransition transition : source.getTransitions()) {
+					if (automaticTransitions.contains(transition.getId()) && added.add(transition.getId())) {
+						plan.add(transition);
+					}
+				}
+			}
+		}
+		// the sort is stable so the definition order is retained for the rest
+		Collections.sort(plan, new Comparator<WorkflowTransition>() {
+			@Override
+			public int compare(WorkflowTransition arg0, WorkflowTransition arg1) {
+				if (arg0.getQueryOrder() == arg1.getQueryOrder()) {
+					boolean self0 = selfTransitions.contains(arg0.getId());
+					boolean self1 = selfTransitions.contains(arg1.getId());
+					return self0 == self1 ? 0 : (self0 ? -1 : 1);
+				}
+				return arg0.getQueryOrder() - arg1.getQueryOrder();
+			}
+		});
+		return Collections.unmodifiableList(Arrays.asList(plan.toArray(new WorkflowTransition[plan.size()])));
+	}
+
+	private static void collectExtensions(Map<UUID, WorkflowState> states, WorkflowState state, Set<UUID> closure) {
+		if (state.getExtensions() != null) {
+			for (UUID extensionId : state.getExtensions()) {
+				// the set doubles as cycle protection
+				if (closure.add(extensionId)) {
+					WorkflowState extended = states.get(extensionId);
+					if (extended != null) {
+						collectExtensions(states, extended, closure);
+					}
+				}
+			}
+		}
+	}
+
+	// same rules as Workflow.isFinalState() but protected against circular extensions
+	private static boolean calculateFinal(Map<UUID, WorkflowState> states, WorkflowState state, Set<UUID> visited) {
+		if (state.getFinalState() != null) {
+			return state.getFinalState();
+		}
+		if (state.getTransitions() != null && !state.getTransitions().isEmpty()) {
+			return false;
+		}
+		else if (state.getExtensions() != null && visited.add(state.getId())) {
+			for (UUID extensionId : state.getExtensions()) {
+				WorkflowState extended = states.get(extensionId);
+				if (extended != null && !visited.contains(extensionId) && !calculateFinal(states, extended, visited)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	public WorkflowState getState(UUID stateId) {
+		return stateId == null ? null : states.get(stateId);
+	}
+
+	public WorkflowTransition getTransition(UUID transitionId) {
+		return transitionId == null ? null : transitions.get(transitionId);
+	}
+
+	public WorkflowState getTransitionFromState(UUID transitionId) {
+		return transitionId == null ? null : transitionFromStates.get(transitionId);
+	}
+
+	public boolean isSelfTransition(UUID transitionId) {
+		return selfTransitions.contains(transitionId);
+	}
+
+	public boolean isExtensionState(UUID stateId) {
+		return extensionStates.contains(stateId);
+	}
+
+	public boolean isFinalState(UUID stateId) {
+		return finalStates.contains(stateId);
+	}
+
+	public boolean containsState(UUID stateId) {
+		return stateId != null && states.containsKey(stateId);
+	}
+
+	// all the states this state extends, directly or through other extensions
+	public Set<UUID> getExtensions(UUID stateId) {
+		Set<UUID> closure = stateId == null ? null : extensionClosures.get(stateId);
+		return closure == null ? Collections.<UUID>emptySet() : closure;
+	}
+
+	// whether the given state is the target state or extends it (possibly indirectly)
+	public boolean isOrExtends(UUID stateId, UUID targetStateId) {
+		return stateId != null && (stateId.equals(targetStateId) || getExtensions(stateId).contains(targetStateId));
+	}
+
+	public List<WorkflowState> getInitialStates() {
+		return initialStates;
+	}
+
+	public List<WorkflowState> getFinalStates() {
+		return finalStateList;
+	}
+
+	public WorkflowCondition getCondition(UUID transitionId) {
+		return transitionId == null ? null : conditions.get(transitionId);
+	}
+
+	// the automatic transitions to evaluate when arriving in the given state, null if they were not planned
+	public List<WorkflowTransition> getAutomaticTransitions(UUID stateId) {
+		if (automaticPlans == null || stateId == null) {
+			return null;
+		}
+		return automaticPlans.get(stateId);
+	}
+
+	// the inputs the mapping of the transition references, null if it was not analyzed
+	public Set<String> getMappingInputs(UUID transitionId) {
+		return transitionId == null ? null : mappingInputs.get(transitionId);
+	}
+
+	// the transitions with a query that could not be compiled, along with the reason
+	public Map<UUID, String> getInvalidConditions() {
+		return invalidConditions;
+	}
+
+	public Map<UUID, WorkflowState> getStates() {
+		return states;
+	}
+
+	public Map<UUID, WorkflowTransition> getTransitions() {
+		return transitions;
+	}
+}
@@ -0,0 +1,26 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+public enum WorkflowDurability {
+	// every transition is committed as soon as it is done (default)
+	TRANSITION,
+	// a chain of automatic transitions is only committed once it reaches a waiting or final state, an error or a batch
+	// if the server goes down in the middle of the chain, the workflow ends up back where the chain started
+	CHAIN
+}
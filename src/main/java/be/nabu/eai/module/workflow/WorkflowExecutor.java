@@ -0,0 +1,401 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.services.api.ServiceException;
+import nabu.misc.workflow.types.WorkflowSchedulerLane;
+
+// a named, bounded pool that runs asynchronous workflow work
+// workflows that use the same name share the pool, this allows you to limit the total amount of threads used by a group of workflows
+// the pool does not run work in the order it was submitted, every free thread picks the next work from the scheduler:
+// - work with a higher priority always goes first
+// - within the same priority, the lanes (one per definition or group) take turns in proportion to their weight (weighted fair queuing)
+// this means a lane with a lot of queued work (e.g. a bulk import) can not starve the other lanes
+public class WorkflowExecutor {
+
+	public static final String DEFAULT_NAME = "workflow";
+	public static final int DEFAULT_POOL_SIZE = 10;
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+	private static Map<String, WorkflowExecutor> executors = new HashMap<String, WorkflowExecutor>();
+	// set while a thread is running work for a pool
+	private static ThreadLocal<Boolean> poolThread = new ThreadLocal<Boolean>();
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private String name;
+	private int poolSize, queueSize;
+	private ThreadPoolExecutor executor;
+	// the amount of work that is queued or running per workflow definition
+	private Map<String, AtomicInteger> inFlight = new HashMap<String, AtomicInteger>();
+	private AtomicInteger rejected = new AtomicInteger();
+	
+	// the lanes that currently have queued work
+	private Map<String, Lane> lanes = new HashMap<String, Lane>();
+	// the virtual time of the scheduler, a lane that becomes active starts from here so it can not claim the turns it had while it was idle
+	private double virtualTime;
+	private long sequence;
+	private long dispatched, totalWaitTime;
+
+	WorkflowExecutor(String name, int poolSize, int queueSize) {
+		this.name = name;
+		this.poolSize = poolSize;
+		this.queueSize = queueSize;
+		AtomicInteger threadCounter = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "workflow-" + WorkflowExecutor.this.name + "-" + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// idle threads are released, they are recreated when necessary
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	// if the pool does not exist yet, it is created with the given size
+	public static WorkflowExecutor getExecutor(String name, Integer poolSize, Integer queueSize) {
+		return getExecutor(name, poolSize, queueSize, false);
+	}
+
+	public static WorkflowExecutor getExecutor(Workflow workflow) {
+		WorkflowConfiguration config = workflow.getConfig();
+		return getExecutor(config.getExecutor(), config.getExecutorPoolSize(), config.getExecutorQueueSize());
+	}
+	
+	// called when a workflow is (re)loaded, if the pool it uses exists with a different size, it is replaced
+	// when workflows that share a pool are configured differently, the one that was loaded last determines the size
+	public static WorkflowExecutor configure(Workflow workflow) {
+		WorkflowConfiguration config = workflow.getConfig();
+		return configure(config.getExecutor(), config.getExecutorPoolSize(), config.getExecutorQueueSize());
+	}
+	
+	static WorkflowExecutor configure(String name, Integer poolSize, Integer queueSize) {
+		return getExecutor(name, poolSize, queueSize, true);
+	}
+	
+	private static WorkflowExecutor getExecutor(String name, Integer poolSize, Integer queueSize, boolean reconfigure) {
+		if (name == null) {
+			name = DEFAULT_NAME;
+		}
+		int size = poolSize == null || poolSize <= 0 ? DEFAULT_POOL_SIZE : poolSize;
+		int capacity = queueSize == null || queueSize <= 0 ? DEFAULT_QUEUE_SIZE : queueSize;
+		WorkflowExecutor previous = null;
+		WorkflowExecutor executor;
+		synchronized(executors) {
+			executor = executors.get(name);
+			if (executor != null && reconfigure && (executor.poolSize != size || executor.queueSize != capacity)) {
+				previous = executor;
+				executor = null;
+			}
+			if (executor == null) {
+				executor = new WorkflowExecutor(name, size, capacity);
+				executors.put(name, executor);
+			}
+		}
+		// the old pool no longer accepts work, but it finishes whatever it already accepted
+		if (previous != null) {
+			previous.logger.info("Resizing workflow executor '" + name + "' from " + previous.poolSize + "/" + previous.queueSize + " to " + size + "/" + capacity);
+			previous.executor.shutdown();
+		}
+		return executor;
+	}
+	
+	// whether the calling thread is running work for one of the pools, such a thread should not block waiting on other work in a pool
+	public static boolean isPoolThread() {
+		return Boolean.TRUE.equals(poolThread.get());
+	}
+	
+	public static List<WorkflowExecutor> getExecutors() {
+		synchronized(executors) {
+			return new ArrayList<WorkflowExecutor>(executors.values());
+		}
+	}
+
+	public void submit(Workflow workflow, Runnable runnable) throws ServiceException {
+		submit(workflow, null, null, runnable);
+	}
+	
+	// submit work for the given workflow, if the pool or the workflow is saturated, the configured rejection policy is applied
+	// the group id is used as fairness key if the workflow is configured for it, the priority is the priority of the transition (if any)
+	public void submit(Workflow workflow, String groupId, Integer priority, Runnable runnable) throws ServiceException {
+		String definitionId = workflow.getId();
+		Integer maxConcurrent = workflow.getConfig().getMaxConcurrentTransitions();
+		AtomicInteger counter;
+		synchronized(inFlight) {
+			counter = inFlight.get(definitionId);
+			if (counter == null) {
+				counter = new AtomicInteger();
+				inFlight.put(definitionId, counter);
+			}
+		}
+		int current = counter.incrementAndGet();
+		if (maxConcurrent != null && maxConcurrent > 0 && current > maxConcurrent) {
+			counter.decrementAndGet();
+			reject(workflow, runnable, "Workflow '" + definitionId + "' has reached its maximum of " + maxConcurrent + " concurrent asynchronous transitions");
+			return;
+		}
+		String key = workflow.getConfig().getExecutorFairness() == WorkflowFairness.GROUP && groupId != null ? "group:" + groupId : "definition:" + definitionId;
+		Integer weight = workflow.getConfig().getExecutorWeight();
+		ScheduledWork work = enqueue(key, weight == null || weight <= 0 ? 1 : weight, priority == null ? 0 : priority, definitionId, counter, runnable);
+		try {
+			// every submitted work gets a dispatcher, but the dispatcher runs whatever the scheduler deems next until there is nothing left
+			// this means a dispatcher may find nothing to do because another one already ran its work
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					poolThread.set(true);
+					try {
+						while (runNext()) {
+							// keep going
+						}
+					}
+					finally {
+						poolThread.remove();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			// if it was already picked up by a running dispatcher, it is not rejected
+			if (cancel(work)) {
+				counter.decrementAndGet();
+				reject(workflow, runnable, "The workflow executor '" + name + "' is saturated");
+			}
+		}
+	}
+	
+	// run the work the scheduler deems next in the calling thread, returns false if there is nothing queued
+	boolean runNext() {
+		ScheduledWork next = dequeue();
+		if (next == null) {
+			return false;
+		}
+		try {
+			next.runnable.run();
+		}
+		catch (Exception e) {
+			logger.error("Asynchronous work for workflow '" + next.definitionId + "' failed", e);
+		}
+		finally {
+			next.counter.decrementAndGet();
+		}
+		return true;
+	}
+	
+	ScheduledWork enqueue(String key, int weight, int priority, String definitionId, AtomicInteger counter, Runnable runnable) {
+		synchronized(lanes) {
+			Lane lane = lanes.get(key);
+			if (lane == null) {
+				lane = new Lane(key);
+				lane.virtualTime = virtualTime;
+				lanes.put(key, lane);
+			}
+			// the latest configuration wins
+			lane.weight = weight;
+			ScheduledWork work = new ScheduledWork(lane, priority, sequence++, definitionId, counter, runnable);
+			lane.queue.add(work);
+			return work;
+		}
+	}
+	
+	private boolean cancel(ScheduledWork work) {
+		synchronized(lanes) {
+			if (work.lane.queue.remove(work)) {
+				if (work.lane.queue.isEmpty()) {
+					lanes.remove(work.lane.key);
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+	
+	private ScheduledWork dequeue() {
+		synchronized(lanes) {
+			Lane selected = null;
+			for (Lane lane : lanes.values()) {
+				if (selected == null) {
+					selected = lane;
+					continue;
+				}
+				ScheduledWork head = lane.queue.peek(), selectedHead = selected.queue.peek();
+				if (head.priority > selectedHead.priority
+						|| (head.priority == selectedHead.priority && (lane.virtualTime < selected.virtualTime
+						|| (lane.virtualTime == selected.virtualTime && head.sequence < selectedHead.sequence)))) {
+					selected = lane;
+				}
+			}
+			if (selected == null) {
+				return null;
+			}
+			ScheduledWork work = selected.queue.poll();
+			virtualTime = Math.max(virtualTime, selected.virtualTime);
+			// a lane with a higher weight advances slower and as such gets more turns
+			selected.virtualTime += 1.0 / selected.weight;
+			if (selected.queue.isEmpty()) {
+				lanes.remove(selected.key);
+			}
+			dispatched++;
+			totalWaitTime += System.currentTimeMillis() - work.queued;
+			return work;
+		}
+	}
+
+	private void reject(Workflow workflow, Runnable runnable, String message) throws ServiceException {
+		rejected.incrementAndGet();
+		WorkflowRejectionPolicy policy = workflow.getConfig().getExecutorRejectionPolicy();
+		// running it in the calling thread slows down the caller, which is a natural form of backpressure
+		if (policy == WorkflowRejectionPolicy.CALLER_RUNS) {
+			logger.debug(message + ", running in the calling thread");
+			runnable.run();
+		}
+		else {
+			throw new ServiceException("WORKFLOW-REJECTED", message);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public int getQueueSize() {
+		return executor.getQueue().size();
+	}
+
+	public int getPoolSize() {
+		return executor.getMaximumPoolSize();
+	}
+	
+	public int getQueueCapacity() {
+		return queueSize;
+	}
+	
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	public int getRejectedCount() {
+		return rejected.get();
+	}
+
+	public int getInFlight(String definitionId) {
+		synchronized(inFlight) {
+			AtomicInteger counter = inFlight.get(definitionId);
+			return counter == null ? 0 : counter.get();
+		}
+	}
+
+	// the amount of work that was handed to a thread since the pool was created
+	public long getDispatchedCount() {
+		synchronized(lanes) {
+			return dispatched;
+		}
+	}
+	
+	// the average time (in ms) work was queued before it was picked up
+	public long getAverageWaitTime() {
+		synchronized(lanes) {
+			return dispatched == 0 ? 0 : totalWaitTime / dispatched;
+		}
+	}
+	
+	// a snapshot of the lanes that currently have queued work
+	public List<WorkflowSchedulerLane> getLanes() {
+		List<WorkflowSchedulerLane> result = new ArrayList<WorkflowSchedulerLane>();
+		long now = System.currentTimeMillis();
+		synchronized(lanes) {
+			for (Lane lane : lanes.values()) {
+				WorkflowSchedulerLane metrics = new WorkflowSchedulerLane();
+				metrics.setExecutor(name);
+				metrics.setKey(lane.key);
+				metrics.setWeight(lane.weight);
+				metrics.setQueued(lane.queue.size());
+				long oldest = now;
+				int highestPriority = Integer.MIN_VALUE;
+				for (ScheduledWork work : lane.queue) {
+					oldest = Math.min(oldest, work.queued);
+					highestPriority = Math.max(highestPriority, work.priority);
+				}
+				metrics.setHighestPriority(highestPriority);
+				metrics.setOldestWaitTime(now - oldest);
+				result.add(metrics);
+			}
+		}
+		return result;
+	}
+	
+	private static class Lane {
+		private String key;
+		private int weight = 1;
+		private double virtualTime;
+		// highest priority first, then in order of submission
+		private PriorityQueue<ScheduledWork> queue = new PriorityQueue<ScheduledWork>(new Comparator<ScheduledWork>() {
+			@Override
+			public int compare(ScheduledWork o1, ScheduledWork o2) {
+				if (o1.priority != o2.priority) {
+					return o1.priority > o2.priority ? -1 : 1;
+				}
+				return Long.compare(o1.sequence, o2.sequence);
+			}
+		});
+		
+		public Lane(String key) {
+			this.key = key;
+		}
+	}
+	
+	private static class ScheduledWork {
+		private Lane lane;
+		private int priority;
+		private long sequence, queued = System.currentTimeMillis();
+		private String definitionId;
+		private AtomicInteger counter;
+		private Runnable runnable;
+		
+		public ScheduledWork(Lane lane, int priority, long sequence, String definitionId, AtomicInteger counter, Runnable runnable) {
+			this.lane = lane;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.definitionId = definitionId;
+			this.counter = counter;
+			this.runnable = runnable;
+		}
+	}
+}
@@ -162,6 +162,8 @@ public class WorkflowGUIManager extends BaseJAXBGUIManager<WorkflowConfiguration
 	
 	@Override
 	public void display(MainController controller, AnchorPane pane, Workflow artifact) {
+		// the designer modifies the states and transitions in place, so we can't rely on a compiled snapshot
+		artifact.setIndex(null);
 		SplitPane split = new SplitPane();
 
 		VBox vbox = new VBox();
@@ -0,0 +1,100 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// serializes the transitions of a single workflow instance within this server while different instances can run in parallel
+// a lock only exists while someone is holding or waiting for it, so the amount of locks is bounded by the amount of concurrent transitions
+// the locks are reentrant so work on the same instance in the same thread (e.g. automatic transitions) can safely lock again
+public class WorkflowInstanceLocks {
+
+	private static WorkflowInstanceLocks instance = new WorkflowInstanceLocks();
+
+	private Map<UUID, InstanceLock> locks = new HashMap<UUID, InstanceLock>();
+	// the amount of threads that are waiting for a lock
+	private AtomicInteger waiting = new AtomicInteger();
+
+	public static WorkflowInstanceLocks getInstance() {
+		return instance;
+	}
+
+	public void lock(UUID workflowId) {
+		InstanceLock lock;
+		synchronized(locks) {
+			lock = locks.get(workflowId);
+			if (lock == null) {
+				lock = new InstanceLock();
+				locks.put(workflowId, lock);
+			}
+			lock.users++;
+		}
+		if (!lock.lock.tryLock()) {
+			waiting.incrementAndGet();
+			try {
+				lock.lock.lock();
+			}
+			finally {
+				waiting.decrementAndGet();
+			}
+		}
+	}
+
+	public void unlock(UUID workflowId) {
+		synchronized(locks) {
+			InstanceLock lock = locks.get(workflowId);
+			if (lock == null) {
+				throw new IllegalStateException("The workflow instance is not locked: " + workflowId);
+			}
+			lock.lock.unlock();
+			if (--lock.users == 0) {
+				locks.remove(workflowId);
+			}
+		}
+	}
+
+	// the total amount of threads waiting to run a transition on an instance that is busy
+	public int getQueueDepth() {
+		return waiting.get();
+	}
+
+	// the amount of threads waiting for this instance
+	public int getQueueDepth(UUID workflowId) {
+		synchronized(locks) {
+			InstanceLock lock = locks.get(workflowId);
+			return lock == null ? 0 : lock.lock.getQueueLength();
+		}
+	}
+
+	// the amount of instances that are currently locked or waited for
+	public int getLockedInstances() {
+		synchronized(locks) {
+			return locks.size();
+		}
+	}
+
+	private static class InstanceLock {
+		private ReentrantLock lock = new ReentrantLock(true);
+		// the amount of lock calls that have not been unlocked yet, including reentrant ones and waiting threads
+		private int users;
+	}
+}
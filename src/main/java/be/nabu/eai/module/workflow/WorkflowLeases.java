@@ -0,0 +1,234 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.eai.module.workflow.Workflow.TransactionableAction;
+import be.nabu.eai.module.workflow.provider.WorkflowManager;
+import nabu.misc.workflow.types.WorkflowLease;
+
+// every system holds a lease on the transitions it is running for a workflow definition, the lease is renewed well before it expires
+// the lease covers all the running transitions of the system at once, so renewing it costs a single write no matter how busy the system is
+// if a system dies, its lease expires and another system takes over: it reverts the running transitions, continues the waiting batches and relays the outbox of the dead system
+// note that a system that stalls longer than the lease (e.g. a long gc pause) is considered dead as well
+public class WorkflowLeases {
+
+	public static final long DEFAULT_DURATION = 1000l * 60;
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private Workflow workflow;
+	private boolean started;
+	// once stopped, we no longer renew our lease, whoever replaces us renews it or it expires and another system takes over
+	private volatile boolean stopped;
+	private ExecutorService executor;
+	// the systems we are currently taking over
+	private Set<String> takingOver = new HashSet<String>();
+	
+	public WorkflowLeases(Workflow workflow) {
+		this.workflow = workflow;
+	}
+	
+	// start renewing our lease and watching the leases of the others, this is idempotent
+	public void start() {
+		synchronized(this) {
+			if (started || stopped || workflow.getConfig().getProvider() == null || !workflow.getConfig().getProvider().hasLeases()) {
+				return;
+			}
+			started = true;
+			// the renewal has its own thread, it must not wait behind a saturated workflow pool or we lose our lease
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "workflow-lease-" + workflow.getId());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		scheduleRenew(System.currentTimeMillis());
+	}
+	
+	// stop renewing the lease and release the lease thread, for example because the workflow was reloaded, this can not be undone
+	public void stop() {
+		ExecutorService executor;
+		synchronized(this) {
+			stopped = true;
+			executor = this.executor;
+		}
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+	
+	// the timer thread only keeps time, the renewal itself does database work
+	private void scheduleRenew(long due) {
+		WorkflowTimerWheel.getInstance().schedule(due, new WorkflowTimerWheel.Expiration() {
+			@Override
+			public void expire() {
+				// if the workflow was unloaded, we also release the lease thread
+				if (stopped || workflow.isUnloaded()) {
+					stop();
+					return;
+				}
+				try {
+					executor.submit(new Runnable() {
+						@Override
+						public void run() {
+							renew();
+						}
+					});
+				}
+				// we were stopped in the meantime
+				catch (RejectedExecutionException e) {
+					logger.debug("Lease renewal for workflow " + workflow.getId() + " was stopped");
+				}
+			}
+		});
+	}
+	
+	public boolean isStarted() {
+		return started;
+	}
+	
+	// this runs on the lease thread, it only does small writes and queries, the actual takeover runs in its own thread
+	private void renew() {
+		long duration = getDuration();
+		WorkflowManager workflowManager = workflow.getConfig().getProvider().getWorkflowManager();
+		String connectionId = getConnectionId();
+		try {
+			Date expires = new Date(System.currentTimeMillis() + duration);
+			Workflow.runTransactionally(new TransactionableAction<Void>() {
+				@Override
+				public Void call(String transactionId) throws Exception {
+					workflowManager.renewLease(connectionId, transactionId, workflow.getId(), getSystemId(), expires);
+					return null;
+				}
+			});
+		}
+		catch (Exception e) {
+			logger.error("Could not renew the lease for workflow: " + workflow.getId(), e);
+		}
+		// the live systems share the workflows, if that changes, we may own other timers than before
+		if (workflow.getShards().isEnabled()) {
+			try {
+				if (workflow.getShards().update(workflowManager.getLeases(connectionId, workflow.getId()))) {
+					workflow.getTimers().reload();
+				}
+			}
+			catch (Exception e) {
+				logger.error("Could not update the shards for workflow: " + workflow.getId(), e);
+			}
+		}
+		try {
+			takeOver();
+		}
+		catch (Exception e) {
+			logger.error("Could not check the expired leases for workflow: " + workflow.getId(), e);
+		}
+		// we renew a few times per lease so a single failed renewal does not cost us the lease
+		if (stopped) {
+			return;
+		}
+		scheduleRenew(System.currentTimeMillis() + (duration / 3));
+	}
+	
+	private void takeOver() {
+		WorkflowManager workflowManager = workflow.getConfig().getProvider().getWorkflowManager();
+		String connectionId = getConnectionId();
+		List<WorkflowLease> leases = workflowManager.getExpiredLeases(connectionId, workflow.getId(), new Date());
+		if (leases == null) {
+			return;
+		}
+		for (WorkflowLease lease : leases) {
+			// our own lease can only be expired if we were down, our own recovery takes care of that
+			if (lease.getSystemId().equals(getSystemId())) {
+				continue;
+			}
+			synchronized(takingOver) {
+				if (takingOver.contains(lease.getSystemId())) {
+					continue;
+				}
+			}
+			// only one system can take over the lease
+			Boolean succeeded = Workflow.runTransactionally(new TransactionableAction<Boolean>() {
+				@Override
+				public Boolean call(String transactionId) throws Exception {
+					return workflowManager.takeOverLease(connectionId, transactionId, workflow.getId(), lease.getSystemId(), getSystemId(), lease.getExpires());
+				}
+			});
+			if (Boolean.TRUE.equals(succeeded)) {
+				takeOver(lease.getSystemId());
+			}
+		}
+	}
+	
+	private void takeOver(String systemId) {
+		synchronized(takingOver) {
+			takingOver.add(systemId);
+		}
+		logger.warn("The lease of system '" + systemId + "' on workflow " + workflow.getId() + " has expired, taking over its transitions");
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					workflow.getRecovery().recover(systemId);
+					workflow.recoverBatches(systemId);
+					// the handoffs the dead system committed but did not relay yet
+					if (workflow.getConfig().getProvider().hasOutbox()) {
+						workflow.getOutbox().takeOver(systemId);
+					}
+				}
+				catch (Exception e) {
+					logger.error("Could not take over the transitions of system '" + systemId + "' on workflow " + workflow.getId(), e);
+				}
+				finally {
+					synchronized(takingOver) {
+						takingOver.remove(systemId);
+					}
+				}
+			}
+		}, "workflow-takeover-" + systemId);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private long getDuration() {
+		Long duration = workflow.getConfig().getLeaseDuration();
+		return duration == null || duration <= 0 ? DEFAULT_DURATION : duration;
+	}
+	
+	private String getSystemId() {
+		return workflow.getRepository().getName();
+	}
+	
+	private String getConnectionId() {
+		return workflow.getConfig().getConnection() == null ? null : workflow.getConfig().getConnection().getId();
+	}
+}
@@ -59,6 +59,8 @@ import be.nabu.libs.services.vm.api.VMService;
 import be.nabu.libs.types.base.ValueImpl;
 import be.nabu.libs.types.structure.DefinedStructure;
 import be.nabu.libs.validator.api.Validation;
+import be.nabu.libs.validator.api.ValidationMessage;
+import be.nabu.libs.validator.api.ValidationMessage.Severity;
 
 // Note: the workflow manager _must_ add references to its own generated children
 // this is because of an odd reload bug on the server where the artifact needs to go through the reload cycle twice to reload properly: first by actually reloading the artifact iself
@@ -216,6 +218,31 @@ public class WorkflowManager extends JAXBArtifactManager<WorkflowConfiguration,
 			}
 		}
 		
+		// compile the state machine once so runtime lookups don't need to scan the definition
+		// this is done once the structures are loaded, they determine which transitions can be triggered automatically
+		workflow.rebuildIndex();
+		// the pool may have been created with an older configuration
+		WorkflowExecutor.configure(workflow);
+		WorkflowAdmission.configure(workflow);
+		// the instance we replace must not keep running its timers, relays and lease with the old configuration
+		Workflow.loaded(workflow);
+		// the queries of the transitions are compiled along with the index, we report the invalid ones now instead of at runtime
+		for (Map.Entry<UUID, String> invalid : workflow.getIndex().getInvalidConditions().entrySet()) {
+			WorkflowTransition transition = workflow.getTransitionById(invalid.getKey());
+			messages.add(new ValidationMessage(Severity.ERROR, "Invalid query '" + transition.getQuery() + "' for transition '" + transition.getName() + "' in workflow '" + entry.getId() + "': " + invalid.getValue()));
+		}
+		// delayed transitions need a provider that can persist timers
+		if (workflow.getConfig().getStates() != null && (workflow.getConfig().getProvider() == null || !workflow.getConfig().getProvider().hasTimers())) {
+			for (WorkflowState state : workflow.getConfig().getStates()) {
+				if (state.getTransitions() != null) {
+					for (WorkflowTransition transition : state.getTransitions()) {
+						if (transition.getDelay() != null) {
+							messages.add(new ValidationMessage(Severity.ERROR, "The provider of workflow '" + entry.getId() + "' does not support timers, the delayed transition '" + transition.getName() + "' will never run"));
+						}
+					}
+				}
+			}
+		}
 		return workflow;
 	}
 
@@ -266,6 +293,8 @@ public class WorkflowManager extends JAXBArtifactManager<WorkflowConfiguration,
 
 	@Override
 	public List<Entry> addChildren(ModifiableEntry parent, Workflow artifact) {
+		// the artifact is (still) loaded
+		Workflow.restored(artifact);
 		List<Entry> entries = new ArrayList<Entry>();
 		// add the state structures
 		ModifiableEntry types = EAIRepositoryUtils.getParent(parent, "types", true);
@@ -370,6 +399,8 @@ public class WorkflowManager extends JAXBArtifactManager<WorkflowConfiguration,
 
 	@Override
 	public List<Entry> removeChildren(ModifiableEntry parent, Workflow artifact) {
+		// the artifact may be unloaded, its background work has to stop
+		Workflow.unloaded(artifact);
 		List<Entry> entries = new ArrayList<Entry>();
 		ModifiableEntry structures = EAIRepositoryUtils.getParent(parent, "types", true);
 		removeRecursively(structures, entries);
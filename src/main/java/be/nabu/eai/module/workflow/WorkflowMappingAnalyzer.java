@@ -0,0 +1,146 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import be.nabu.libs.evaluator.PathAnalyzer;
+import be.nabu.libs.evaluator.QueryParser;
+import be.nabu.libs.evaluator.QueryPart;
+import be.nabu.libs.evaluator.api.Operation;
+import be.nabu.libs.evaluator.api.OperationProvider.OperationType;
+import be.nabu.libs.evaluator.types.operations.TypesOperationProvider;
+import be.nabu.libs.services.vm.api.Step;
+import be.nabu.libs.services.vm.api.StepGroup;
+import be.nabu.libs.services.vm.api.VMService;
+import be.nabu.libs.services.vm.step.Break;
+import be.nabu.libs.services.vm.step.DropLink;
+import be.nabu.libs.services.vm.step.For;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Switch;
+import be.nabu.libs.types.api.ComplexContent;
+
+// determines which of the inputs of a transition mapping are actually referenced by its pipeline
+// the inputs live in the "input" of the pipeline, so a reference is a path like "input/properties/..."
+// whenever we encounter something we can't analyze, we assume everything is referenced
+public class WorkflowMappingAnalyzer {
+
+	private static final String ROOT = "input";
+	
+	public static Set<String> getReferencedInputs(VMService service, Collection<String> inputs) {
+		Set<String> referenced = new HashSet<String>();
+		try {
+			if (service == null || service.getRoot() == null || !analyze(service.getRoot(), inputs, referenced)) {
+				return new HashSet<String>(inputs);
+			}
+		}
+		catch (Exception e) {
+			return new HashSet<String>(inputs);
+		}
+		return referenced;
+	}
+
+	private static boolean analyze(Step step, Collection<String> inputs, Set<String> referenced) throws Exception {
+		if (!reference(step.getLabel(), inputs, referenced)) {
+			return false;
+		}
+		if (step instanceof Link) {
+			// a fixed value is not a query
+			return ((Link) step).isFixedValue() || reference(((Link) step).getFrom(), inputs, referenced);
+		}
+		else if (step instanceof For && !reference(((For) step).getQuery(), inputs, referenced)) {
+			return false;
+		}
+		else if (step instanceof Switch && !reference(((Switch) step).getQuery(), inputs, referenced)) {
+			return false;
+		}
+		if (step instanceof StepGroup) {
+			for (Step child : ((StepGroup) step).getChildren()) {
+				if (!analyze(child, inputs, referenced)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		// dropping a variable or breaking out of a loop does not read anything
+		return step instanceof DropLink || step instanceof Break;
+	}
+
+	// returns false if the query accesses the input as a whole or in a way we can't follow
+	private static boolean reference(String query, Collection<String> inputs, Set<String> referenced) throws Exception {
+		if (query == null || query.trim().isEmpty()) {
+			return true;
+		}
+		Operation<ComplexContent> operation = new PathAnalyzer<ComplexContent>(new TypesOperationProvider()).analyze(QueryParser.getInstance().parse(query));
+		return reference(operation, true, inputs, referenced);
+	}
+	
+	private static boolean reference(Operation<?> operation, boolean root, Collection<String> inputs, Set<String> referenced) {
+		int start = 0;
+		if (operation.getType() == OperationType.VARIABLE) {
+			start = 1;
+			String path = operation.getParts().get(0).getContent().toString();
+			// variables like $this can point anywhere in the pipeline
+			if (path.startsWith("$")) {
+				return false;
+			}
+			boolean absolute = path.startsWith("/");
+			if (absolute) {
+				path = path.substring(1);
+			}
+			// relative paths in a predicate are resolved against the element they filter
+			if (root || absolute) {
+				int index = path.indexOf('/');
+				String name = index < 0 ? path : path.substring(0, index);
+				if (name.equals(ROOT)) {
+					String child = index < 0 ? null : path.substring(index + 1);
+					// the parser may have split the path after the root
+					if ((child == null || child.isEmpty()) && operation.getParts().size() > 1 && operation.getParts().get(1).getType() == QueryPart.Type.VARIABLE) {
+						child = operation.getParts().get(1).getContent().toString();
+						if (child.startsWith("/")) {
+							child = child.substring(1);
+						}
+					}
+					// the input as a whole
+					if (child == null || child.isEmpty()) {
+						return false;
+					}
+					int end = child.length();
+					for (int i = 0; i < child.length(); i++) {
+						if (child.charAt(i) == '/' || child.charAt(i) == '[') {
+							end = i;
+							break;
+						}
+					}
+					if (inputs.contains(child.substring(0, end))) {
+						referenced.add(child.substring(0, end));
+					}
+				}
+			}
+		}
+		for (int i = start; i < operation.getParts().size(); i++) {
+			QueryPart part = operation.getParts().get(i);
+			if (part.getType() == QueryPart.Type.OPERATION && !reference((Operation<?>) part.getContent(), root && operation.getType() != OperationType.VARIABLE, inputs, referenced)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
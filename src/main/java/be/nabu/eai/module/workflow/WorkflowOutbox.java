@@ -0,0 +1,339 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.eai.module.workflow.Workflow.TransactionableAction;
+import be.nabu.eai.repository.EAIRepositoryUtils;
+import be.nabu.libs.authentication.api.Token;
+import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.types.api.ComplexContent;
+import nabu.misc.workflow.types.WorkflowInstance;
+import nabu.misc.workflow.types.WorkflowOutboxEntry;
+
+// the asynchronous transitions of a workflow definition that have been committed but not yet handed off to their target
+// an entry is recorded in the same transaction as the state change that triggers it, so a crash in between can not lose the handoff
+// the entries are relayed by the system that recorded them, once the handoff succeeds they are deleted
+// a crash after the handoff but before the delete means the transition is handed off again, it runs as best effort so it is skipped if the workflow has moved on
+public class WorkflowOutbox {
+
+	// the amount of entries we relay at once
+	private static final int PAGE_SIZE = 100;
+	// if the relay fails, we retry a bit later
+	private static final long RETRY_DELAY = 5000;
+	// how often we check for entries that other systems recorded for us
+	private static final long POLL_INTERVAL = 1000;
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private Workflow workflow;
+	// only one relay runs at a time
+	private AtomicBoolean relaying = new AtomicBoolean();
+	// whether new entries were committed while we were relaying
+	private AtomicBoolean pending = new AtomicBoolean();
+	private boolean polling;
+	// once stopped, the periodic relays stop, whatever is still recorded is relayed by whoever replaces us
+	private volatile boolean stopped;
+	
+	public WorkflowOutbox(Workflow workflow) {
+		this.workflow = workflow;
+	}
+	
+	public WorkflowOutboxEntry newEntry(WorkflowInstance workflowInstance, WorkflowTransition transition, Map<String, Object> parameters) {
+		WorkflowOutboxEntry entry = new WorkflowOutboxEntry();
+		entry.setId(UUID.randomUUID());
+		entry.setWorkflowId(workflowInstance.getId());
+		entry.setDefinitionId(workflow.getId());
+		entry.setTransitionId(transition.getId());
+		// if the workflows are sharded, the owner relays it, if the owner dies before it does, the system that takes over its lease relays it
+		// note that a work queue overrides this: any system can claim the entry, no matter who owns the workflow
+		entry.setSystemId(workflow.getShards().getOwner(workflowInstance.getId()));
+		entry.setTarget(transition.getTarget());
+		entry.setParameters(encode(parameters));
+		entry.setCreated(new Date());
+		return entry;
+	}
+	
+	// relay the committed entries in the workflow pool
+	public void relay() {
+		pending.set(true);
+		if (!relaying.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			WorkflowExecutor.getExecutor(workflow).submit(workflow, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (pending.getAndSet(false)) {
+							// some entries could not be handed off yet, we try again in a bit
+							if (!drain()) {
+								retry();
+								break;
+							}
+						}
+					}
+					catch (Exception e) {
+						logger.error("Could not relay the outbox for workflow: " + workflow.getId(), e);
+						retry();
+					}
+					finally {
+						relaying.set(false);
+					}
+					// entries may have been committed after our last drain but before we released the relay
+					if (pending.get()) {
+						relay();
+					}
+				}
+			});
+		}
+		catch (ServiceException e) {
+			relaying.set(false);
+			logger.warn("Workflow pool is saturated, retrying outbox for workflow " + workflow.getId() + " later");
+			retry();
+		}
+	}
+	
+	// entries can be recorded for us by other systems, so we have to check for them regularly
+	public void poll() {
+		synchronized(this) {
+			if (polling) {
+				return;
+			}
+			polling = true;
+		}
+		schedulePoll();
+	}
+	
+	// stop the periodic relays, for example because the workflow was reloaded, this can not be undone
+	public void stop() {
+		stopped = true;
+	}
+	
+	private boolean isStopped() {
+		return stopped || workflow.isUnloaded();
+	}
+	
+	private void schedulePoll() {
+		WorkflowTimerWheel.getInstance().schedule(System.currentTimeMillis() + POLL_INTERVAL, new WorkflowTimerWheel.Expiration() {
+			@Override
+			public void expire() {
+				if (isStopped()) {
+					return;
+				}
+				relay();
+				schedulePoll();
+			}
+		});
+	}
+	
+	private void retry() {
+		WorkflowTimerWheel.getInstance().schedule(System.currentTimeMillis() + RETRY_DELAY, new WorkflowTimerWheel.Expiration() {
+			@Override
+			public void expire() {
+				if (isStopped()) {
+					return;
+				}
+				relay();
+			}
+		});
+	}
+	
+	// relay the entries that were recorded by (or for) a system that is no longer around
+	// nobody else relays them, so the entries that can not be handed off yet are retried until they can
+	public void takeOver(String systemId) throws ServiceException {
+		if (!drain(systemId)) {
+			WorkflowTimerWheel.getInstance().schedule(System.currentTimeMillis() + RETRY_DELAY, new WorkflowTimerWheel.Expiration() {
+				@Override
+				public void expire() {
+					if (isStopped()) {
+						return;
+					}
+					WorkflowTimerWheel.Expiration retry = this;
+					try {
+						WorkflowExecutor.getExecutor(workflow).submit(workflow, new Runnable() {
+							@Override
+							public void run() {
+								try {
+									takeOver(systemId);
+								}
+								catch (Exception e) {
+									logger.error("Could not relay the outbox of system '" + systemId + "' for workflow: " + workflow.getId(), e);
+									WorkflowTimerWheel.getInstance().schedule(System.currentTimeMillis() + RETRY_DELAY, retry);
+								}
+							}
+						});
+					}
+					catch (ServiceException e) {
+						WorkflowTimerWheel.getInstance().schedule(System.currentTimeMillis() + RETRY_DELAY, retry);
+					}
+				}
+			});
+		}
+	}
+	
+	private boolean drain() throws ServiceException {
+		return drain(getSystemId());
+	}
+	
+	// every entry is handled on its own, like the work queue does: a failing entry does not hold up the ones behind it
+	// returns false if some entries could not be handed off yet, they remain recorded
+	private boolean drain(String systemId) throws ServiceException {
+		String connectionId = getConnectionId();
+		while (true) {
+			List<WorkflowOutboxEntry> entries = workflow.getConfig().getProvider().getWorkflowManager().getOutboxEntries(connectionId, workflow.getId(), systemId, PAGE_SIZE);
+			if (entries == null || entries.isEmpty()) {
+				return true;
+			}
+			final List<UUID> relayed = new ArrayList<UUID>();
+			boolean deferred = false;
+			// transitions that target the workflow pool are run before their entry is deleted so they can not be lost in a queue
+			for (WorkflowOutboxEntry entry : entries) {
+				try {
+					handOff(entry, true);
+					relayed.add(entry.getId());
+				}
+				catch (ServiceException e) {
+					if (WorkflowWorkQueue.isTransient(e)) {
+						logger.debug("Could not relay outbox entry " + entry.getId() + " for workflow " + entry.getWorkflowId() + " yet, it will be retried", e);
+						deferred = true;
+					}
+					// the transition ran and failed, the error is recorded on the workflow
+					else {
+						relayed.add(entry.getId());
+					}
+				}
+				catch (Exception e) {
+					logger.error("Could not relay outbox entry " + entry.getId() + " for workflow " + entry.getWorkflowId() + ", it will be retried", e);
+					deferred = true;
+				}
+			}
+			if (!relayed.isEmpty()) {
+				Workflow.runTransactionally(new TransactionableAction<Void>() {
+					@Override
+					public Void call(String transactionId) throws Exception {
+						workflow.getConfig().getProvider().getWorkflowManager().deleteOutboxEntries(connectionId, transactionId, relayed);
+						return null;
+					}
+				});
+			}
+			// the deferred entries would be at the start of the next page again, so we stop here and retry later
+			if (deferred) {
+				return false;
+			}
+			if (entries.size() < PAGE_SIZE) {
+				return true;
+			}
+		}
+	}
+	
+	// if synchronous, a transition that targets the workflow pool is run right here instead of being queued
+	void handOff(WorkflowOutboxEntry entry, boolean synchronous) throws ServiceException {
+		WorkflowTransition transition = workflow.getTransitionById(entry.getTransitionId());
+		// the transition may have been removed from the definition since the entry was recorded
+		if (transition == null) {
+			logger.warn("Dropping outbox entry " + entry.getId() + " for workflow " + entry.getWorkflowId() + ", the transition no longer exists: " + entry.getTransitionId());
+			return;
+		}
+		String serviceId = workflow.getId() + ".services.transition." + EAIRepositoryUtils.stringToField(transition.getName());
+		DefinedService transitionService = (DefinedService) workflow.getRepository().resolve(serviceId);
+		if (transitionService == null) {
+			throw new IllegalStateException("Could not find transition service: " + serviceId);
+		}
+		ComplexContent input = transitionService.getServiceInterface().getInputDefinition().newInstance();
+		input.set("workflowId", entry.getWorkflowId());
+		input.set("connectionId", getConnectionId());
+		// by the time we relay, the workflow may have moved on
+		input.set("bestEffort", true);
+		// only transitions that were not run on behalf of anyone are recorded, so the relay does not act on behalf of anyone either
+		if (synchronous && workflow.isPoolTarget(transition)) {
+			new ServiceRuntime(transitionService, workflow.getRepository().newExecutionContext((Token) null)).run(input);
+		}
+		else {
+			workflow.handOff(transition, transitionService, input, decode(entry.getParameters()), null, null);
+		}
+	}
+	
+	// the parameters are stored as text, anything else has to be handed off directly
+	static boolean canRecord(Map<String, Object> parameters) {
+		for (Object value : parameters.values()) {
+			if (value != null && !(value instanceof String)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static String encode(Map<String, Object> parameters) {
+		StringBuilder builder = new StringBuilder();
+		try {
+			for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+				if (parameter.getValue() == null) {
+					continue;
+				}
+				if (builder.length() > 0) {
+					builder.append("&");
+				}
+				builder.append(URLEncoder.encode(parameter.getKey(), "UTF-8")).append("=").append(URLEncoder.encode(parameter.getValue().toString(), "UTF-8"));
+			}
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return builder.length() == 0 ? null : builder.toString();
+	}
+	
+	private static Map<String, Object> decode(String parameters) {
+		Map<String, Object> result = new HashMap<String, Object>();
+		if (parameters != null && !parameters.isEmpty()) {
+			try {
+				for (String parameter : parameters.split("&")) {
+					int index = parameter.indexOf('=');
+					result.put(URLDecoder.decode(parameter.substring(0, index), "UTF-8"), URLDecoder.decode(parameter.substring(index + 1), "UTF-8"));
+				}
+			}
+			catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return result;
+	}
+	
+	private String getSystemId() {
+		return workflow.getRepository().getName();
+	}
+	
+	private String getConnectionId() {
+		return workflow.getConfig().getConnection() == null ? null : workflow.getConfig().getConnection().getId();
+	}
+}
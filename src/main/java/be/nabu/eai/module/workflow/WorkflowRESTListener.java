@@ -135,6 +135,14 @@ public class WorkflowRESTListener implements EventHandler<HTTPRequest, HTTPRespo
 			return process(application, charset, request, service);
 		}
 		catch (Exception e) {
+			// an overloaded or recovering workflow is a temporary condition, the client can try again later
+			Throwable current = e;
+			while (current != null) {
+				if (current instanceof ServiceException && ("WORKFLOW-OVERLOADED".equals(((ServiceException) current).getCode()) || "WORKFLOW-RECOVERING".equals(((ServiceException) current).getCode()))) {
+					throw new HTTPException(503, e);
+				}
+				current = current.getCause();
+			}
 			throw new HTTPException(500, e);
 		}
 		finally {
@@ -0,0 +1,254 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.eai.module.workflow.Workflow.TransactionableAction;
+import be.nabu.eai.module.workflow.provider.WorkflowManager;
+import be.nabu.eai.repository.Notification;
+import be.nabu.libs.validator.api.ValidationMessage.Severity;
+import nabu.misc.workflow.types.WorkflowInstance;
+import nabu.misc.workflow.types.WorkflowInstance.Level;
+import nabu.misc.workflow.types.WorkflowRecoveryStatus;
+import nabu.misc.workflow.types.WorkflowTransitionInstance;
+
+// reverts the transitions of a workflow definition that were interrupted while running on this server
+// the provider only returns the running transitions of this server, they are paged by id and each page is reverted in parallel chunks
+// only one page is in memory at a time, so the amount of interrupted workflows does not matter for memory, only for time
+public class WorkflowRecovery {
+
+	public static final int DEFAULT_PARALLELISM = 4;
+	// the amount of transitions we load at once
+	private static final int PAGE_SIZE = 1000;
+	// the amount of transitions a single thread reverts before picking up the next chunk
+	private static final int CHUNK_SIZE = 50;
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private Workflow workflow;
+	// whether we are running the paged recovery and whether the instances are being recovered in the background (in any way)
+	private volatile boolean running, recovering;
+	private AtomicLong found = new AtomicLong(), reverted = new AtomicLong(), skipped = new AtomicLong(), failed = new AtomicLong();
+	private volatile Date started, stopped;
+	
+	public WorkflowRecovery(Workflow workflow) {
+		this.workflow = workflow;
+	}
+	
+	// whether the provider can return the running transitions of a system, otherwise recovery has to scan all running workflows
+	public static boolean isSupported(Workflow workflow) {
+		return workflow.getConfig().getProvider() != null && workflow.getConfig().getProvider().getConfig().getGetRunningTransitions() != null;
+	}
+	
+	// recover the instances in a separate thread, until it is done, the workflow is not ready
+	public void recoverInBackground(Runnable recovery) {
+		synchronized(this) {
+			if (recovering) {
+				return;
+			}
+			recovering = true;
+		}
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					recovery.run();
+				}
+				catch (Exception e) {
+					logger.error("Could not recover workflow " + workflow.getId() + " in the background", e);
+				}
+				finally {
+					recovering = false;
+				}
+			}
+		}, "workflow-recovery-" + workflow.getId());
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public void run() {
+		synchronized(this) {
+			if (running) {
+				return;
+			}
+			running = true;
+			found.set(0);
+			reverted.set(0);
+			skipped.set(0);
+			failed.set(0);
+			started = new Date();
+			stopped = null;
+		}
+		ExecutorService executor = newExecutor();
+		try {
+			recover(workflow.getRepository().getName(), executor);
+			logger.info("Recovered workflow " + workflow.getId() + ": " + reverted.get() + " reverted, " + skipped.get() + " skipped, " + failed.get() + " failed in " + (System.currentTimeMillis() - started.getTime()) + "ms");
+		}
+		catch (Exception e) {
+			logger.error("Could not recover workflow " + workflow.getId(), e);
+		}
+		finally {
+			executor.shutdown();
+			stopped = new Date();
+			running = false;
+		}
+	}
+	
+	// recover the transitions of another system that is no longer around, this is counted along with our own recovery
+	public void recover(String systemId) throws InterruptedException, ExecutionException {
+		ExecutorService executor = newExecutor();
+		try {
+			recover(systemId, executor);
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	private ExecutorService newExecutor() {
+		Integer parallelism = workflow.getConfig().getRecoveryParallelism();
+		AtomicInteger threadCounter = new AtomicInteger();
+		return Executors.newFixedThreadPool(parallelism == null || parallelism <= 0 ? DEFAULT_PARALLELISM : parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "workflow-recovery-" + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	private void recover(String systemId, ExecutorService executor) throws InterruptedException, ExecutionException {
+		WorkflowManager workflowManager = workflow.getConfig().getProvider().getWorkflowManager();
+		String connectionId = getConnectionId();
+		UUID afterId = null;
+		while (true) {
+			List<WorkflowTransitionInstance> transitions = workflowManager.getRunningTransitions(connectionId, workflow.getId(), systemId, afterId, PAGE_SIZE);
+			if (transitions == null || transitions.isEmpty()) {
+				break;
+			}
+			found.addAndGet(transitions.size());
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < transitions.size(); i += CHUNK_SIZE) {
+				List<WorkflowTransitionInstance> chunk = transitions.subList(i, Math.min(i + CHUNK_SIZE, transitions.size()));
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (WorkflowTransitionInstance transition : chunk) {
+							revert(transition);
+						}
+					}
+				}));
+			}
+			// we finish the page before loading the next one
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			afterId = transitions.get(transitions.size() - 1).getId();
+			if (transitions.size() < PAGE_SIZE) {
+				break;
+			}
+		}
+	}
+	
+	private void revert(WorkflowTransitionInstance transition) {
+		// traffic that is served during a background recovery works on the same instances
+		WorkflowInstanceLocks.getInstance().lock(transition.getWorkflowId());
+		try {
+			String connectionId = getConnectionId();
+			WorkflowManager workflowManager = workflow.getConfig().getProvider().getWorkflowManager();
+			WorkflowInstance instance = workflowManager.getWorkflow(connectionId, transition.getWorkflowId());
+			// only a running workflow can have been interrupted, if it has moved on, the transition is already dealt with
+			if (instance == null || instance.getTransitionState() != Level.RUNNING) {
+				skipped.incrementAndGet();
+				return;
+			}
+			// the workflow may be running a later transition (for example on another server), this transition is no longer the one it is in
+			if ((instance.getLastTransitionId() != null && !transition.getId().equals(instance.getLastTransitionId()))
+					|| (instance.getLastSequence() != null && transition.getSequence() != instance.getLastSequence())) {
+				skipped.incrementAndGet();
+				return;
+			}
+			transition.setTransitionState(Level.REVERTED);
+			transition.setStopped(new Date());
+			instance.setTransitionState(Level.REVERTED);
+			Workflow.runTransactionally(new TransactionableAction<Void>() {
+				@Override
+				public Void call(String transactionId) throws Exception {
+					workflow.updateWorkflow(connectionId, transactionId, instance);
+					workflowManager.updateTransition(connectionId, transactionId, transition);
+					return null;
+				}
+			});
+			reverted.incrementAndGet();
+		}
+		catch (Exception e) {
+			// the instance was updated since we read it, so it was not interrupted after all
+			if (WorkflowConflictException.find(e) != null) {
+				skipped.incrementAndGet();
+				return;
+			}
+			failed.incrementAndGet();
+			logger.error("Could not revert workflow " + transition.getWorkflowId(), e);
+			workflow.fire("revert", 0, transition.getWorkflowId(), "Could not revert running workflow", Notification.format(e), Severity.WARNING, null);
+		}
+		finally {
+			WorkflowInstanceLocks.getInstance().unlock(transition.getWorkflowId());
+		}
+	}
+	
+	public WorkflowRecoveryStatus getStatus() {
+		WorkflowRecoveryStatus status = new WorkflowRecoveryStatus();
+		status.setDefinitionId(workflow.getId());
+		status.setRunning(running || recovering);
+		status.setFound(found.get());
+		status.setReverted(reverted.get());
+		status.setSkipped(skipped.get());
+		status.setFailed(failed.get());
+		status.setStarted(started);
+		status.setStopped(stopped);
+		return status;
+	}
+	
+	public boolean isRunning() {
+		return running;
+	}
+	
+	// whether the instances are still being recovered in the background
+	public boolean isRecovering() {
+		return recovering;
+	}
+	
+	private String getConnectionId() {
+		return workflow.getConfig().getConnection() == null ? null : workflow.getConfig().getConnection().getId();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nabu.misc.workflow.types.WorkflowLease;
+
+// divides the instances of a workflow definition over the live systems using a consistent hash ring
+// every system is placed on the ring a number of times (virtual nodes) to spread the instances evenly
+// when a system joins or leaves, only the instances between it and its neighbours change owner
+// the live systems are the ones with a valid lease, the ring is rebuilt whenever the leases are renewed
+public class WorkflowShards {
+
+	// the amount of positions a single system has on the ring
+	private static final int VIRTUAL_NODES = 128;
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private Workflow workflow;
+	// the ring is replaced as a whole, so it can be read without locking
+	private volatile TreeMap<Long, String> ring = new TreeMap<Long, String>();
+	private volatile List<String> members = new ArrayList<String>();
+	
+	public WorkflowShards(Workflow workflow) {
+		this.workflow = workflow;
+	}
+	
+	public boolean isEnabled() {
+		return workflow.getConfig().isSharding() && workflow.getConfig().getProvider() != null && workflow.getConfig().getProvider().hasLeases()
+			&& workflow.getConfig().getProvider().getConfig().getGetLeases() != null;
+	}
+	
+	// the system that owns the instance, as long as we don't know the other systems, we own everything
+	public String getOwner(UUID workflowId) {
+		TreeMap<Long, String> ring = this.ring;
+		if (!isEnabled() || ring.isEmpty()) {
+			return workflow.getRepository().getName();
+		}
+		return getOwner(ring, workflowId);
+	}
+	
+	// the first system on the ring at or after the position of the instance
+	static String getOwner(TreeMap<Long, String> ring, UUID workflowId) {
+		Map.Entry<Long, String> entry = ring.ceilingEntry(hash(workflowId.toString()));
+		return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+	}
+	
+	public boolean isOwner(UUID workflowId) {
+		return getOwner(workflowId).equals(workflow.getRepository().getName());
+	}
+	
+	// rebuild the ring from the current leases, returns true if the membership changed
+	public boolean update(List<WorkflowLease> leases) {
+		List<String> members = getMembers(leases, workflow.getRepository().getName(), new Date());
+		if (members.equals(this.members)) {
+			return false;
+		}
+		TreeMap<Long, String> ring = buildRing(members);
+		logger.info("The systems sharing workflow " + workflow.getId() + " changed from " + this.members + " to " + members);
+		this.ring = ring;
+		this.members = members;
+		return true;
+	}
+	
+	public List<String> getMembers() {
+		return members;
+	}
+	
+	// the systems with a valid lease, sorted
+	static List<String> getMembers(List<WorkflowLease> leases, String systemId, Date now) {
+		List<String> members = new ArrayList<String>();
+		if (leases != null) {
+			for (WorkflowLease lease : leases) {
+				if (lease.getExpires().after(now) && lease.getTakenOverBy() == null && !members.contains(lease.getSystemId())) {
+					members.add(lease.getSystemId());
+				}
+			}
+		}
+		// we just renewed our lease, but the provider may not have returned it yet
+		if (!members.contains(systemId)) {
+			members.add(systemId);
+		}
+		Collections.sort(members);
+		return members;
+	}
+	
+	static TreeMap<Long, String> buildRing(List<String> members) {
+		TreeMap<Long, String> ring = new TreeMap<Long, String>();
+		for (String member : members) {
+			for (int i = 0; i < VIRTUAL_NODES; i++) {
+				ring.put(hash(member + "#" + i), member);
+			}
+		}
+		return ring;
+	}
+	
+	private static long hash(String value) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(Charset.forName("UTF-8")));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xff);
+			}
+			return hash;
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// a hierarchical timing wheel: adding a timer and advancing the clock are constant time, no matter how many timers are pending
+// the first wheel has one slot per tick, every next wheel has slots that span an entire rotation of the previous wheel
+// when a wheel completes a rotation, the next slot of the wheel above it is cascaded into the lower wheels
+// timers beyond the range of all the wheels are kept in an overflow list that is cascaded whenever the top wheel rotates
+public class WorkflowTimerWheel {
+
+	public interface Expiration {
+		public void expire();
+	}
+	
+	private static final int SLOTS = 64;
+	private static final int LEVELS = 4;
+	// the default amount of ms per tick
+	private static final long TICK = 1000;
+	
+	// lazily started, so systems without timers never run the thread
+	private static volatile WorkflowTimerWheel instance;
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private List<List<Entry>> wheels = new ArrayList<List<Entry>>();
+	private List<Entry> overflow = new ArrayList<Entry>();
+	// the amount of ms per tick
+	private long tick;
+	// the tick we have processed up to
+	private long current;
+	private int size;
+	private Thread thread;
+	
+	// a wheel without a thread, it only advances when asked to
+	WorkflowTimerWheel(long tick) {
+		this.tick = tick;
+		for (int i = 0; i < LEVELS * SLOTS; i++) {
+			wheels.add(null);
+		}
+		current = System.currentTimeMillis() / tick;
+	}
+	
+	private WorkflowTimerWheel() {
+		this(TICK);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(tick - (System.currentTimeMillis() % tick));
+						for (Entry entry : advance(System.currentTimeMillis() / tick)) {
+							try {
+								entry.expiration.expire();
+							}
+							catch (Exception e) {
+								logger.error("Timer expiration failed", e);
+							}
+						}
+					}
+					catch (InterruptedException e) {
+						break;
+					}
+				}
+			}
+		}, "workflow-timers");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public static WorkflowTimerWheel getInstance() {
+		if (instance == null) {
+			synchronized(WorkflowTimerWheel.class) {
+				if (instance == null) {
+					instance = new WorkflowTimerWheel();
+				}
+			}
+		}
+		return instance;
+	}
+	
+	// schedule an expiration at the given time (in ms), if it is already due, it expires on the next tick
+	public synchronized void schedule(long due, Expiration expiration) {
+		add(new Entry(Math.max(current + 1, due / tick), expiration));
+		size++;
+	}
+	
+	public synchronized int getSize() {
+		return size;
+	}
+	
+	synchronized long getCurrent() {
+		return current;
+	}
+	
+	private void add(Entry entry) {
+		long delta = entry.tick - current;
+		long span = SLOTS;
+		for (int level = 0; level < LEVELS; level++) {
+			if (delta < span) {
+				// the slot in this wheel that contains the tick
+				int slot = (int) ((entry.tick / (span / SLOTS)) % SLOTS);
+				List<Entry> list = wheels.get(level * SLOTS + slot);
+				if (list == null) {
+					list = new ArrayList<Entry>();
+					wheels.set(level * SLOTS + slot, list);
+				}
+				list.add(entry);
+				return;
+			}
+			span *= SLOTS;
+		}
+		overflow.add(entry);
+	}
+	
+	// advance the wheel up to the given tick, returning everything that expired
+	synchronized List<Entry> advance(long until) {
+		List<Entry> expired = new ArrayList<Entry>();
+		while (current < until) {
+			current++;
+			// cascade the higher wheels when the lower ones complete a rotation
+			long span = SLOTS;
+			for (int level = 1; level <= LEVELS; level++) {
+				if (current % span != 0) {
+					break;
+				}
+				List<Entry> cascade;
+				if (level == LEVELS) {
+					cascade = overflow;
+					overflow = new ArrayList<Entry>();
+				}
+				else {
+					int slot = (int) ((current / span) % SLOTS);
+					cascade = wheels.get(level * SLOTS + slot);
+					wheels.set(level * SLOTS + slot, null);
+				}
+				if (cascade != null) {
+					for (Entry entry : cascade) {
+						if (entry.tick <= current) {
+							expired.add(entry);
+						}
+						else {
+							add(entry);
+						}
+					}
+				}
+				span *= SLOTS;
+			}
+			int slot = (int) (current % SLOTS);
+			List<Entry> list = wheels.get(slot);
+			if (list != null) {
+				wheels.set(slot, null);
+				expired.addAll(list);
+			}
+		}
+		size -= expired.size();
+		return expired;
+	}
+	
+	static class Entry {
+		private long tick;
+		private Expiration expiration;
+		
+		public Entry(long tick, Expiration expiration) {
+			this.tick = tick;
+			this.expiration = expiration;
+		}
+		
+		Expiration getExpiration() {
+			return expiration;
+		}
+	}
+}
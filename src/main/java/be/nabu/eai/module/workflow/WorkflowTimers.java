@@ -0,0 +1,308 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.eai.module.workflow.Workflow.TransactionableAction;
+import be.nabu.eai.module.workflow.provider.WorkflowManager;
+import be.nabu.eai.repository.EAIRepositoryUtils;
+import be.nabu.eai.repository.util.SystemPrincipal;
+import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.types.api.ComplexContent;
+import nabu.misc.workflow.types.WorkflowInstance;
+import nabu.misc.workflow.types.WorkflowTimer;
+
+// the timers of a workflow definition
+// the timers are persisted by the provider, only the ones that are due within the horizon are loaded into the (shared) timer wheel
+// the next window is loaded before the current one runs out, so pending timers far in the future cost nothing in memory
+// a timer fires its transition as best effort: if the workflow has moved on in the meantime, nothing happens
+public class WorkflowTimers {
+
+	// how far ahead we load timers
+	private static final long HORIZON = 1000l * 60 * 60;
+	// the amount of timers we load at once
+	private static final int PAGE_SIZE = 1000;
+	// if the pool is saturated, we retry a bit later
+	private static final long RETRY_DELAY = 5000;
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private Workflow workflow;
+	// the timers that are in the wheel
+	private Set<UUID> scheduled = new HashSet<UUID>();
+	// up to when we have loaded the timers
+	private volatile long loadedUntil;
+	private boolean started;
+	// once stopped, nothing is loaded or fired anymore, the persisted timers are picked up by whoever loads them next
+	private volatile boolean stopped;
+	// every (re)load starts a new generation, the periodic loads of older generations stop
+	private volatile int generation;
+	
+	public WorkflowTimers(Workflow workflow) {
+		this.workflow = workflow;
+	}
+	
+	// start loading the persisted timers, this is idempotent
+	public void start() {
+		synchronized(this) {
+			if (started || stopped || !workflow.getConfig().getProvider().hasTimers()) {
+				return;
+			}
+			started = true;
+		}
+		load(generation);
+	}
+	
+	// stop loading and firing timers, for example because the workflow was reloaded, this can not be undone
+	public void stop() {
+		synchronized(this) {
+			stopped = true;
+			generation++;
+		}
+	}
+	
+	// load the timers again, for example because we own different workflows than before
+	public void reload() {
+		final int generation;
+		synchronized(this) {
+			if (!started || stopped) {
+				return;
+			}
+			generation = ++this.generation;
+		}
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				load(generation);
+			}
+		}, new WorkflowTimerWheel.Expiration() {
+			@Override
+			public void expire() {
+				reload();
+			}
+		});
+	}
+	
+	private boolean isStopped() {
+		return stopped || workflow.isUnloaded();
+	}
+	
+	public boolean isStarted() {
+		return started;
+	}
+	
+	// a timer that was just persisted, it is only put in the wheel if it falls within the loaded window, otherwise it is picked up by a later load
+	public void schedule(WorkflowTimer timer) {
+		if (started && !stopped && timer.getDue().getTime() <= loadedUntil) {
+			add(timer);
+		}
+	}
+	
+	private void add(WorkflowTimer timer) {
+		// if the workflows are sharded, only the owner fires the timer
+		if (!workflow.getShards().isOwner(timer.getWorkflowId())) {
+			return;
+		}
+		synchronized(scheduled) {
+			if (!scheduled.add(timer.getId())) {
+				return;
+			}
+		}
+		WorkflowTimerWheel.getInstance().schedule(timer.getDue().getTime(), new WorkflowTimerWheel.Expiration() {
+			@Override
+			public void expire() {
+				fire(timer);
+			}
+		});
+	}
+	
+	private void load(int generation) {
+		if (generation != this.generation || isStopped()) {
+			return;
+		}
+		long until = System.currentTimeMillis() + HORIZON;
+		WorkflowManager workflowManager = workflow.getConfig().getProvider().getWorkflowManager();
+		String connectionId = getConnectionId();
+		Date afterDue = null;
+		UUID afterId = null;
+		try {
+			while (true) {
+				List<WorkflowTimer> timers = workflowManager.getTimers(connectionId, workflow.getId(), new Date(until), afterDue, afterId, PAGE_SIZE);
+				if (timers == null || timers.isEmpty()) {
+					break;
+				}
+				for (WorkflowTimer timer : timers) {
+					add(timer);
+				}
+				WorkflowTimer last = timers.get(timers.size() - 1);
+				afterDue = last.getDue();
+				afterId = last.getId();
+				if (timers.size() < PAGE_SIZE) {
+					break;
+				}
+			}
+			loadedUntil = until;
+		}
+		catch (Exception e) {
+			logger.error("Could not load the timers for workflow: " + workflow.getId(), e);
+		}
+		// load the next window halfway through this one (or retry if this load failed)
+		WorkflowTimerWheel.getInstance().schedule(loadedUntil >= until ? until - (HORIZON / 2) : System.currentTimeMillis() + RETRY_DELAY, new WorkflowTimerWheel.Expiration() {
+			@Override
+			public void expire() {
+				submit(new Runnable() {
+					@Override
+					public void run() {
+						load(generation);
+					}
+				}, this);
+			}
+		});
+	}
+	
+	private void fire(WorkflowTimer timer) {
+		if (isStopped()) {
+			return;
+		}
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				boolean retry = false;
+				try {
+					// the workflow may have moved to another system since we loaded the timer, the new owner loads it as well
+					if (!workflow.getShards().isOwner(timer.getWorkflowId())) {
+						synchronized(scheduled) {
+							scheduled.remove(timer.getId());
+						}
+						return;
+					}
+					WorkflowTransition transition = workflow.getTransitionById(timer.getTransitionId());
+					// the transition may have been removed from the definition since the timer was created
+					// the timer only applies to the visit of the state that armed it, if the workflow has transitioned since (even back into the same state) it is obsolete
+					if (transition != null && isCurrent(timer)) {
+						runTransition(timer, transition);
+					}
+				}
+				// the transition did not run (e.g. the workflow was busy or the server overloaded), the timer remains persisted and we try again in a bit
+				catch (Exception e) {
+					logger.warn("Could not fire timer " + timer.getId() + " for workflow " + timer.getWorkflowId() + " yet, it will be retried", e);
+					retry = true;
+				}
+				if (retry) {
+					WorkflowTimerWheel.getInstance().schedule(System.currentTimeMillis() + RETRY_DELAY, new WorkflowTimerWheel.Expiration() {
+						@Override
+						public void expire() {
+							fire(timer);
+						}
+					});
+					return;
+				}
+				try {
+					Workflow.runTransactionally(new TransactionableAction<Void>() {
+						@Override
+						public Void call(String transactionId) throws Exception {
+							workflow.getConfig().getProvider().getWorkflowManager().deleteTimer(getConnectionId(), transactionId, timer.getId());
+							return null;
+						}
+					});
+				}
+				catch (Exception e) {
+					// the timer remains persisted, it will be loaded again but it is obsolete by then
+					logger.error("Could not remove timer " + timer.getId() + " for workflow " + timer.getWorkflowId(), e);
+				}
+				finally {
+					synchronized(scheduled) {
+						scheduled.remove(timer.getId());
+					}
+				}
+			}
+		}, new WorkflowTimerWheel.Expiration() {
+			@Override
+			public void expire() {
+				fire(timer);
+			}
+		});
+	}
+	
+	private boolean isCurrent(WorkflowTimer timer) throws ServiceException {
+		// timers that were armed before we kept track of the sequence are always fired
+		if (timer.getSequence() == null) {
+			return true;
+		}
+		WorkflowInstance instance = workflow.getConfig().getProvider().getWorkflowManager().getWorkflow(getConnectionId(), timer.getWorkflowId());
+		if (instance == null || !timer.getSequence().equals(instance.getLastSequence())) {
+			logger.debug("Skipping obsolete timer " + timer.getId() + " for workflow " + timer.getWorkflowId());
+			return false;
+		}
+		return true;
+	}
+	
+	// if the transition fails, the error is recorded on the workflow like for any other transition and the timer is done
+	// unless the transition could not run at all for now, that error is thrown so the timer is kept
+	private void runTransition(WorkflowTimer timer, WorkflowTransition transition) throws ServiceException {
+		try {
+			String serviceId = workflow.getId() + ".services.transition." + EAIRepositoryUtils.stringToField(transition.getName());
+			DefinedService transitionService = (DefinedService) workflow.getRepository().resolve(serviceId);
+			if (transitionService == null) {
+				throw new IllegalStateException("Could not find transition service: " + serviceId);
+			}
+			ComplexContent input = transitionService.getServiceInterface().getInputDefinition().newInstance();
+			input.set("workflowId", timer.getWorkflowId());
+			input.set("connectionId", getConnectionId());
+			input.set("bestEffort", true);
+			new ServiceRuntime(transitionService, workflow.getRepository().newExecutionContext(SystemPrincipal.ROOT)).run(input);
+		}
+		catch (Exception e) {
+			if (WorkflowWorkQueue.isTransient(e)) {
+				throw e;
+			}
+			logger.error("Timer " + timer.getId() + " could not run transition '" + transition.getName() + "' for workflow " + timer.getWorkflowId(), e);
+		}
+	}
+	
+	// the actual work is done in the workflow pool, the timer thread only keeps time
+	private void submit(Runnable runnable, WorkflowTimerWheel.Expiration retry) {
+		try {
+			WorkflowExecutor.getExecutor(workflow).submit(workflow, runnable);
+		}
+		catch (ServiceException e) {
+			logger.warn("Workflow pool is saturated, retrying timer for workflow " + workflow.getId() + " later");
+			WorkflowTimerWheel.getInstance().schedule(System.currentTimeMillis() + RETRY_DELAY, retry);
+		}
+	}
+	
+	private String getConnectionId() {
+		return workflow.getConfig().getConnection() == null ? null : workflow.getConfig().getConnection().getId();
+	}
+	
+	public int getScheduled() {
+		synchronized(scheduled) {
+			return scheduled.size();
+		}
+	}
+}
@@ -33,7 +33,7 @@ import be.nabu.libs.types.api.annotation.Field;
 // can not directly refer to target state as this may result in circular references!!
 // must refer to the id of the target state, separate resolving
 @ComplexTypeDescriptor(propOrder =  {"id", "name", "targetStateId", "query", "queryOrder", "startBatch", "roles", "permissionContext", "permissionAction", "description", "x", "y", "line1FromX", "line1FromY", "line1ToX", "line1ToY",
-		"line2FromX", "line2FromY", "line2ToX", "line2ToY", "allowMultipleAutomaticExecutions", "target", "targetProperties" })
+		"line2FromX", "line2FromY", "line2ToX", "line2ToY", "allowMultipleAutomaticExecutions", "target", "targetProperties", "priority", "delay" })
 public class WorkflowTransition implements Comparable<WorkflowTransition> {
 	// a generated if for this state
 	private UUID id;
@@ -68,6 +68,12 @@ public class WorkflowTransition implements Comparable<WorkflowTransition> {
 	// @2021-04-16: this has no value by default because (for backwards compatibility) this is "false" for self transitions and "true" for non-self transitions by default
 	private Boolean allowMultipleAutomaticExecutions;
 	
+	// the priority of the transition when it is run asynchronously
+	private Integer priority;
+	
+	// the delay before an automatic transition is run
+	private String delay;
+	
 	@XmlJavaTypeAdapter(value = UuidXmlAdapter.class)
 	public UUID getId() {
 		return id;
@@ -156,6 +162,22 @@ public class WorkflowTransition implements Comparable<WorkflowTransition> {
 		this.operationId = operationId;
 	}
 	
+	@Field(comment = "When this transition runs asynchronously in the workflow pool, queued work with a higher priority is picked up first. Defaults to 0.")
+	public Integer getPriority() {
+		return priority;
+	}
+	public void setPriority(Integer priority) {
+		this.priority = priority;
+	}
+	
+	@Field(comment = "Run this automatic transition at a later time. This can be a fixed amount of milliseconds or a query (starting with '=') that evaluates to a date or an amount of milliseconds. The workflow provider must support timers.", show = "query != null && query != ''")
+	public String getDelay() {
+		return delay;
+	}
+	public void setDelay(String delay) {
+		this.delay = delay;
+	}
+	
 	public String getTarget() {
 		return target;
 	}
@@ -0,0 +1,242 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.eai.module.workflow.Workflow.TransactionableAction;
+import be.nabu.eai.module.workflow.provider.WorkflowManager;
+import be.nabu.libs.services.api.ServiceException;
+import nabu.misc.workflow.types.WorkflowOutboxEntry;
+
+// consumes the outbox as a queue that is shared by all the systems: every system runs a few workers that claim entries in batches
+// this spreads the asynchronous transitions over the cluster instead of running them on the system that happened to trigger them
+// a claim expires, so the entries of a worker that dies are claimed again by someone else: delivery is at least once
+// the workers run in the workflow pool, a transition that targets the pool is run by the worker itself and only completed once it is done
+public class WorkflowWorkQueue {
+
+	public static final int DEFAULT_WORKERS = 2;
+	// the amount of entries a worker claims at once
+	private static final int BATCH_SIZE = 50;
+	// how long a claim holds, a batch should easily be done by then
+	private static final long CLAIM_DURATION = 1000l * 60 * 5;
+	// how often we check for work that was recorded by other systems
+	private static final long POLL_INTERVAL = 1000;
+	// if the provider can release work, entries that hit a transient error are claimed again after this delay instead of when the claim expires
+	private static final long RETRY_DELAY = 5000;
+	// these errors mean the transition did not run, it can be tried again once the claim expires
+	private static final List<String> TRANSIENT_CODES = Arrays.asList("WORKFLOW-CONFLICT", "WORKFLOW-RECOVERING", "WORKFLOW-REJECTED", "WORKFLOW-OVERLOADED");
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private Workflow workflow;
+	private boolean started;
+	// once stopped, we no longer poll or start workers, the workers that are running finish their current batch
+	private volatile boolean stopped;
+	// the amount of workers that are currently claiming work
+	private AtomicInteger active = new AtomicInteger();
+	private AtomicLong claimed = new AtomicLong(), completed = new AtomicLong(), failed = new AtomicLong();
+	
+	public WorkflowWorkQueue(Workflow workflow) {
+		this.workflow = workflow;
+	}
+	
+	// start polling for work, this is idempotent
+	public void start() {
+		synchronized(this) {
+			if (started || stopped) {
+				return;
+			}
+			started = true;
+		}
+		poll();
+	}
+	
+	// stop polling for work, for example because the workflow was reloaded, this can not be undone
+	public void stop() {
+		stopped = true;
+	}
+	
+	private boolean isStopped() {
+		return stopped || workflow.isUnloaded();
+	}
+	
+	private void poll() {
+		if (isStopped()) {
+			return;
+		}
+		signal();
+		WorkflowTimerWheel.getInstance().schedule(System.currentTimeMillis() + POLL_INTERVAL, new WorkflowTimerWheel.Expiration() {
+			@Override
+			public void expire() {
+				poll();
+			}
+		});
+	}
+	
+	// make sure the workers are running, a worker stops once the queue is empty
+	public void signal() {
+		if (isStopped()) {
+			return;
+		}
+		int workers = getWorkers();
+		while (true) {
+			int current = active.get();
+			if (current >= workers) {
+				return;
+			}
+			if (active.compareAndSet(current, current + 1)) {
+				break;
+			}
+		}
+		try {
+			WorkflowExecutor.getExecutor(workflow).submit(workflow, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						work();
+					}
+					catch (Exception e) {
+						logger.error("Worker for workflow " + workflow.getId() + " failed", e);
+					}
+					finally {
+						active.decrementAndGet();
+					}
+				}
+			});
+		}
+		catch (ServiceException e) {
+			// the next poll tries again
+			active.decrementAndGet();
+			logger.warn("Workflow pool is saturated, could not start a worker for workflow " + workflow.getId());
+		}
+	}
+	
+	private void work() {
+		WorkflowManager workflowManager = workflow.getConfig().getProvider().getWorkflowManager();
+		String connectionId = getConnectionId();
+		String systemId = workflow.getRepository().getName();
+		while (true) {
+			List<WorkflowOutboxEntry> entries = Workflow.runTransactionally(new TransactionableAction<List<WorkflowOutboxEntry>>() {
+				@Override
+				public List<WorkflowOutboxEntry> call(String transactionId) throws Exception {
+					return workflowManager.claimWork(connectionId, transactionId, workflow.getId(), systemId, BATCH_SIZE, new Date(System.currentTimeMillis() + CLAIM_DURATION));
+				}
+			});
+			if (entries == null || entries.isEmpty()) {
+				break;
+			}
+			claimed.addAndGet(entries.size());
+			final List<UUID> done = new ArrayList<UUID>();
+			final List<UUID> retry = new ArrayList<UUID>();
+			for (WorkflowOutboxEntry entry : entries) {
+				try {
+					workflow.getOutbox().handOff(entry, true);
+					done.add(entry.getId());
+				}
+				catch (ServiceException e) {
+					if (isTransient(e)) {
+						logger.debug("Could not run outbox entry " + entry.getId() + " for workflow " + entry.getWorkflowId() + " yet, it will be retried", e);
+						retry.add(entry.getId());
+					}
+					// the transition ran and failed, the error is recorded on the workflow
+					else {
+						failed.incrementAndGet();
+						done.add(entry.getId());
+					}
+				}
+				catch (Exception e) {
+					failed.incrementAndGet();
+					logger.error("Could not run outbox entry " + entry.getId() + " for workflow " + entry.getWorkflowId() + ", it will be retried", e);
+				}
+			}
+			if (!done.isEmpty()) {
+				Workflow.runTransactionally(new TransactionableAction<Void>() {
+					@Override
+					public Void call(String transactionId) throws Exception {
+						workflowManager.completeWork(connectionId, transactionId, done, systemId);
+						return null;
+					}
+				});
+				completed.addAndGet(done.size());
+			}
+			// the transient errors would otherwise hold their claim for the entire claim duration
+			if (!retry.isEmpty() && workflow.getConfig().getProvider().hasWorkRelease()) {
+				try {
+					Workflow.runTransactionally(new TransactionableAction<Void>() {
+						@Override
+						public Void call(String transactionId) throws Exception {
+							workflowManager.releaseWork(connectionId, transactionId, retry, systemId, new Date(System.currentTimeMillis() + RETRY_DELAY));
+							return null;
+						}
+					});
+				}
+				catch (Exception e) {
+					logger.warn("Could not release the claim on " + retry.size() + " outbox entries for workflow " + workflow.getId() + ", they are retried once the claim expires", e);
+				}
+			}
+			if (entries.size() < BATCH_SIZE || isStopped()) {
+				break;
+			}
+		}
+	}
+	
+	static boolean isTransient(Throwable e) {
+		while (e != null) {
+			if (e instanceof ServiceException && TRANSIENT_CODES.contains(((ServiceException) e).getCode())) {
+				return true;
+			}
+			e = e.getCause();
+		}
+		return false;
+	}
+	
+	private int getWorkers() {
+		Integer workers = workflow.getConfig().getWorkers();
+		return workers == null || workers <= 0 ? DEFAULT_WORKERS : workers;
+	}
+	
+	private String getConnectionId() {
+		return workflow.getConfig().getConnection() == null ? null : workflow.getConfig().getConnection().getId();
+	}
+	
+	public int getActive() {
+		return active.get();
+	}
+	
+	public long getClaimed() {
+		return claimed.get();
+	}
+	
+	public long getCompleted() {
+		return completed.get();
+	}
+	
+	public long getFailed() {
+		return failed.get();
+	}
+}
@@ -0,0 +1,329 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import be.nabu.eai.module.workflow.Workflow.TransactionableAction;
+import be.nabu.eai.module.workflow.provider.WorkflowManager;
+import nabu.misc.workflow.types.WorkflowBatchInstance;
+import nabu.misc.workflow.types.WorkflowInstance;
+import nabu.misc.workflow.types.WorkflowInstanceProperty;
+import nabu.misc.workflow.types.WorkflowOutboxEntry;
+import nabu.misc.workflow.types.WorkflowTimer;
+import nabu.misc.workflow.types.WorkflowTransitionInstance;
+
+// collects the writes of a chain of transitions so they can be persisted in a single transaction
+// the instances are kept by reference, so repeated updates to the same instance are only written once (with the latest values)
+// this is not thread safe, a buffer belongs to the thread that is running the chain
+public class WorkflowWriteBuffer {
+	
+	private WorkflowManager workflowManager;
+	private String connectionId;
+	private WorkflowDurability durability;
+	// whether we need to maintain the current properties as well
+	private boolean currentProperties;
+	// whether workflow updates are checked against the revision they were read with
+	private boolean conditionalUpdates;
+	
+	// new workflows that are only created along with their first transition, so they never exist without one
+	private Map<UUID, WorkflowInstance> pendingWorkflows = new HashMap<UUID, WorkflowInstance>();
+	// whether the pending workflows have to be counted in their batch when they are created
+	private Map<UUID, Boolean> pendingBatchCounts = new HashMap<UUID, Boolean>();
+	private Map<UUID, WorkflowInstance> createdWorkflows = new LinkedHashMap<UUID, WorkflowInstance>();
+	private Map<UUID, WorkflowTransitionInstance> createdTransitions = new LinkedHashMap<UUID, WorkflowTransitionInstance>();
+	private Map<UUID, WorkflowTransitionInstance> updatedTransitions = new LinkedHashMap<UUID, WorkflowTransitionInstance>();
+	private Map<UUID, WorkflowInstance> updatedWorkflows = new LinkedHashMap<UUID, WorkflowInstance>();
+	private List<WorkflowBatchInstance> createdBatches = new ArrayList<WorkflowBatchInstance>();
+	private List<WorkflowTimer> createdTimers = new ArrayList<WorkflowTimer>();
+	private List<WorkflowOutboxEntry> createdOutboxEntries = new ArrayList<WorkflowOutboxEntry>();
+	// the pending adjustments to the batch counters (remaining, succeeded, failed)
+	private Map<UUID, long[]> batchAdjustments = new LinkedHashMap<UUID, long[]>();
+	// the batches as they were after our last adjustment of their counters
+	private Map<UUID, WorkflowBatchInstance> adjustedBatches = new HashMap<UUID, WorkflowBatchInstance>();
+	private List<WorkflowInstanceProperty> createdProperties = new ArrayList<WorkflowInstanceProperty>();
+	private List<WorkflowInstanceProperty> updatedProperties = new ArrayList<WorkflowInstanceProperty>();
+	// the transitions that were actually committed by a flush of this buffer
+	private Set<UUID> persistedTransitions = new HashSet<UUID>();
+	
+	public WorkflowWriteBuffer(WorkflowManager workflowManager, String connectionId, WorkflowDurability durability, boolean currentProperties, boolean conditionalUpdates) {
+		this.workflowManager = workflowManager;
+		this.connectionId = connectionId;
+		this.durability = durability == null ? WorkflowDurability.TRANSITION : durability;
+		this.currentProperties = currentProperties;
+		this.conditionalUpdates = conditionalUpdates;
+	}
+	
+	// the workflow is created in the same transaction as its first transition, if no transition is ever created (e.g. the user is not allowed to run it), neither is the workflow
+	public void createWorkflow(WorkflowInstance instance, boolean countInBatch) {
+		pendingWorkflows.put(instance.getId(), instance);
+		pendingBatchCounts.put(instance.getId(), countInBatch);
+	}
+	
+	public void createTransition(WorkflowTransitionInstance instance) {
+		WorkflowInstance workflow = pendingWorkflows.remove(instance.getWorkflowId());
+		if (workflow != null) {
+			createdWorkflows.put(workflow.getId(), workflow);
+			// a child is counted in its batch in the same transaction as it is created
+			if (pendingBatchCounts.remove(workflow.getId())) {
+				adjustBatchCounters(workflow.getBatchId(), 1, 0, 0);
+			}
+		}
+		createdTransitions.put(instance.getId(), instance);
+	}
+	
+	public void updateTransition(WorkflowTransitionInstance instance) {
+		// if it is not yet created, the create will persist the latest values
+		if (createdTransitions.containsKey(instance.getId())) {
+			createdTransitions.put(instance.getId(), instance);
+		}
+		else {
+			updatedTransitions.put(instance.getId(), instance);
+		}
+	}
+	
+	public void updateWorkflow(WorkflowInstance instance) {
+		// if it is not yet created, the create will persist the latest values
+		if (!createdWorkflows.containsKey(instance.getId())) {
+			updatedWorkflows.put(instance.getId(), instance);
+		}
+	}
+	
+	public void createBatch(WorkflowBatchInstance instance) {
+		createdBatches.add(instance);
+	}
+	
+	public void createTimer(WorkflowTimer timer) {
+		createdTimers.add(timer);
+	}
+	
+	public void createOutboxEntry(WorkflowOutboxEntry entry) {
+		createdOutboxEntries.add(entry);
+	}
+	
+	public void adjustBatchCounters(UUID batchId, long remaining, long succeeded, long failed) {
+		long[] adjustment = batchAdjustments.get(batchId);
+		if (adjustment == null) {
+			adjustment = new long[3];
+			batchAdjustments.put(batchId, adjustment);
+		}
+		adjustment[0] += remaining;
+		adjustment[1] += succeeded;
+		adjustment[2] += failed;
+	}
+	
+	// the counters of the batch as they were right after we adjusted them, null if we did not adjust them
+	public WorkflowBatchInstance getAdjustedBatch(UUID batchId) {
+		return adjustedBatches.get(batchId);
+	}
+	
+	public void createWorkflowProperties(List<WorkflowInstanceProperty> properties) {
+		createdProperties.addAll(properties);
+	}
+	
+	public void updateWorkflowProperties(List<WorkflowInstanceProperty> properties) {
+		updatedProperties.addAll(properties);
+	}
+	
+	// whether the transition row was committed, as opposed to still being pending or discarded
+	public boolean isPersisted(UUID transitionId) {
+		return persistedTransitions.contains(transitionId);
+	}
+	
+	public boolean isEmpty() {
+		return createdWorkflows.isEmpty() && createdTransitions.isEmpty() && updatedTransitions.isEmpty() && updatedWorkflows.isEmpty() && createdBatches.isEmpty()
+			&& createdProperties.isEmpty() && updatedProperties.isEmpty() && createdTimers.isEmpty() && createdOutboxEntries.isEmpty() && batchAdjustments.isEmpty();
+	}
+	
+	// called when a transition is done, depending on the durability we flush or wait for the end of the chain
+	public void checkpoint() {
+		if (durability == WorkflowDurability.TRANSITION) {
+			flush();
+		}
+	}
+	
+	// persist everything that is pending in one transaction
+	public void flush() {
+		if (isEmpty()) {
+			return;
+		}
+		final List<WorkflowInstance> createdWorkflows = new ArrayList<WorkflowInstance>(this.createdWorkflows.values());
+		final List<WorkflowTransitionInstance> createdTransitions = new ArrayList<WorkflowTransitionInstance>(this.createdTransitions.values());
+		final List<WorkflowTransitionInstance> updatedTransitions = new ArrayList<WorkflowTransitionInstance>(this.updatedTransitions.values());
+		final List<WorkflowInstance> updatedWorkflows = new ArrayList<WorkflowInstance>(this.updatedWorkflows.values());
+		final List<WorkflowBatchInstance> createdBatches = new ArrayList<WorkflowBatchInstance>(this.createdBatches);
+		final List<WorkflowInstanceProperty> createdProperties = new ArrayList<WorkflowInstanceProperty>(this.createdProperties);
+		final List<WorkflowInstanceProperty> updatedProperties = new ArrayList<WorkflowInstanceProperty>(this.updatedProperties);
+		final List<WorkflowTimer> createdTimers = new ArrayList<WorkflowTimer>(this.createdTimers);
+		final List<WorkflowOutboxEntry> createdOutboxEntries = new ArrayList<WorkflowOutboxEntry>(this.createdOutboxEntries);
+		final Map<UUID, long[]> batchAdjustments = new LinkedHashMap<UUID, long[]>(this.batchAdjustments);
+		// whether or not the flush succeeds, we don't want to replay these writes
+		clear();
+		// the revisions we read, if the transaction fails, the in-memory instances have to go back to them
+		final Map<UUID, Long> revisions = new LinkedHashMap<UUID, Long>();
+		for (WorkflowInstance instance : updatedWorkflows) {
+			revisions.put(instance.getId(), instance.getRevision());
+		}
+		try {
+			flush(createdWorkflows, createdTransitions, updatedTransitions, updatedWorkflows, createdBatches, createdProperties, updatedProperties, createdTimers, createdOutboxEntries, batchAdjustments);
+		}
+		catch (RuntimeException e) {
+			for (WorkflowInstance instance : updatedWorkflows) {
+				instance.setRevision(revisions.get(instance.getId()));
+			}
+			// if someone else updated the workflow, everything we had pending is based on stale data, there is nothing to record
+			WorkflowConflictException conflict = WorkflowConflictException.find(e);
+			if (conflict != null) {
+				throw conflict;
+			}
+			// the transaction was rolled back, so none of it was persisted, we keep everything pending so the next flush (e.g. recording the error) writes it
+			// this also makes sure the transitions are created instead of updating a non-existing record
+			restore(createdWorkflows, createdTransitions, updatedTransitions, updatedWorkflows, createdBatches, createdProperties, updatedProperties, createdTimers, createdOutboxEntries, batchAdjustments);
+			throw e;
+		}
+	}
+	
+	// put back the writes of a failed flush, anything that was buffered in the meantime takes precedence
+	private void restore(List<WorkflowInstance> createdWorkflows, List<WorkflowTransitionInstance> createdTransitions, List<WorkflowTransitionInstance> updatedTransitions, List<WorkflowInstance> updatedWorkflows, 
+			List<WorkflowBatchInstance> createdBatches, List<WorkflowInstanceProperty> createdProperties, List<WorkflowInstanceProperty> updatedProperties, List<WorkflowTimer> createdTimers, List<WorkflowOutboxEntry> createdOutboxEntries, Map<UUID, long[]> batchAdjustments) {
+		for (WorkflowInstance instance : createdWorkflows) {
+			if (!this.createdWorkflows.containsKey(instance.getId())) {
+				this.createdWorkflows.put(instance.getId(), instance);
+			}
+			// it is created again, so the update is part of the create
+			this.updatedWorkflows.remove(instance.getId());
+		}
+		for (WorkflowTransitionInstance instance : createdTransitions) {
+			if (!this.createdTransitions.containsKey(instance.getId())) {
+				this.createdTransitions.put(instance.getId(), instance);
+			}
+		}
+		for (WorkflowTransitionInstance instance : updatedTransitions) {
+			if (!this.updatedTransitions.containsKey(instance.getId())) {
+				this.updatedTransitions.put(instance.getId(), instance);
+			}
+		}
+		for (WorkflowInstance instance : updatedWorkflows) {
+			if (!this.updatedWorkflows.containsKey(instance.getId())) {
+				this.updatedWorkflows.put(instance.getId(), instance);
+			}
+		}
+		this.createdBatches.addAll(0, createdBatches);
+		this.createdProperties.addAll(0, createdProperties);
+		this.updatedProperties.addAll(0, updatedProperties);
+		this.createdTimers.addAll(0, createdTimers);
+		this.createdOutboxEntries.addAll(0, createdOutboxEntries);
+		for (Map.Entry<UUID, long[]> adjustment : batchAdjustments.entrySet()) {
+			adjustBatchCounters(adjustment.getKey(), adjustment.getValue()[0], adjustment.getValue()[1], adjustment.getValue()[2]);
+		}
+	}
+	
+	private void flush(final List<WorkflowInstance> createdWorkflows, final List<WorkflowTransitionInstance> createdTransitions, final List<WorkflowTransitionInstance> updatedTransitions, final List<WorkflowInstance> updatedWorkflows, 
+			final List<WorkflowBatchInstance> createdBatches, final List<WorkflowInstanceProperty> createdProperties, final List<WorkflowInstanceProperty> updatedProperties, final List<WorkflowTimer> createdTimers, final List<WorkflowOutboxEntry> createdOutboxEntries, final Map<UUID, long[]> batchAdjustments) {
+		// the adjusted counters are only visible once the transaction is committed
+		final Map<UUID, WorkflowBatchInstance> adjusted = new HashMap<UUID, WorkflowBatchInstance>();
+		Workflow.runTransactionally(new TransactionableAction<Void>() {
+			@Override
+			public Void call(String transactionId) throws Exception {
+				for (WorkflowInstance instance : createdWorkflows) {
+					workflowManager.createWorkflow(connectionId, transactionId, instance);
+				}
+				for (WorkflowTransitionInstance instance : createdTransitions) {
+					workflowManager.createTransition(connectionId, transactionId, instance);
+				}
+				for (WorkflowTransitionInstance instance : updatedTransitions) {
+					workflowManager.updateTransition(connectionId, transactionId, instance);
+				}
+				for (WorkflowInstance instance : updatedWorkflows) {
+					updateWorkflow(workflowManager, connectionId, transactionId, instance, conditionalUpdates);
+				}
+				for (WorkflowBatchInstance instance : createdBatches) {
+					workflowManager.createBatch(connectionId, transactionId, instance);
+				}
+				if (!createdProperties.isEmpty()) {
+					workflowManager.createWorkflowProperties(connectionId, transactionId, createdProperties);
+				}
+				if (!updatedProperties.isEmpty()) {
+					workflowManager.updateWorkflowProperties(connectionId, transactionId, updatedProperties);
+				}
+				if (currentProperties && (!createdProperties.isEmpty() || !updatedProperties.isEmpty())) {
+					List<WorkflowInstanceProperty> merged = new ArrayList<WorkflowInstanceProperty>(createdProperties);
+					merged.addAll(updatedProperties);
+					workflowManager.mergeCurrentWorkflowProperties(connectionId, transactionId, merged);
+				}
+				if (!createdTimers.isEmpty()) {
+					workflowManager.createTimers(connectionId, transactionId, createdTimers);
+				}
+				if (!createdOutboxEntries.isEmpty()) {
+					workflowManager.createOutboxEntries(connectionId, transactionId, createdOutboxEntries);
+				}
+				// the counters are adjusted last so the row lock on the batch is held as briefly as possible
+				for (Map.Entry<UUID, long[]> adjustment : batchAdjustments.entrySet()) {
+					WorkflowBatchInstance batch = workflowManager.adjustBatchCounters(connectionId, transactionId, adjustment.getKey(), adjustment.getValue()[0], adjustment.getValue()[1], adjustment.getValue()[2]);
+					if (batch != null) {
+						adjusted.put(adjustment.getKey(), batch);
+					}
+				}
+				return null;
+			}
+		});
+		adjustedBatches.putAll(adjusted);
+		for (WorkflowTransitionInstance instance : createdTransitions) {
+			persistedTransitions.add(instance.getId());
+		}
+	}
+	
+	// if the update is conditional, it only succeeds if the instance still has the revision we read, the revision is bumped as part of the update
+	// the caller has to restore the revision if the transaction is rolled back
+	static void updateWorkflow(WorkflowManager workflowManager, String connectionId, String transactionId, WorkflowInstance instance, boolean conditional) {
+		if (conditional) {
+			Long expectedRevision = instance.getRevision();
+			instance.setRevision(expectedRevision == null ? 1 : expectedRevision + 1);
+			if (!Boolean.TRUE.equals(workflowManager.updateWorkflowIfCurrent(connectionId, transactionId, instance, expectedRevision))) {
+				throw new WorkflowConflictException(instance.getId());
+			}
+		}
+		else {
+			workflowManager.updateWorkflow(connectionId, transactionId, instance);
+		}
+	}
+	
+	private void clear() {
+		createdWorkflows.clear();
+		createdTransitions.clear();
+		updatedTransitions.clear();
+		updatedWorkflows.clear();
+		createdBatches.clear();
+		createdProperties.clear();
+		updatedProperties.clear();
+		createdTimers.clear();
+		batchAdjustments.clear();
+		createdOutboxEntries.clear();
+	}
+
+	public WorkflowDurability getDurability() {
+		return durability;
+	}
+}
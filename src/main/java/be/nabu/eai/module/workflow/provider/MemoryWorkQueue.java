@@ -0,0 +1,120 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow.provider;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import nabu.misc.workflow.types.WorkflowOutboxEntry;
+
+// a reference implementation of the outbox and work queue operations of the workflow manager that keeps the entries in memory
+// the methods have the signatures of the workflow manager so it can back an in-memory provider or be used in tests, it also documents the semantics a database implementation should have
+// there are no transactions in memory, the connection and transaction are ignored and every call takes effect immediately
+// the entries are returned as copies, like they would be when read from a database
+public class MemoryWorkQueue {
+
+	// in order of creation
+	private Map<UUID, WorkflowOutboxEntry> entries = new LinkedHashMap<UUID, WorkflowOutboxEntry>();
+	
+	public synchronized void createOutboxEntries(String connectionId, String transactionId, List<WorkflowOutboxEntry> entries) {
+		for (WorkflowOutboxEntry entry : entries) {
+			this.entries.put(entry.getId(), copy(entry));
+		}
+	}
+	
+	// the entries recorded for a system, this is how the outbox is relayed when there is no work queue
+	public synchronized List<WorkflowOutboxEntry> getOutboxEntries(String connectionId, String definitionId, String systemId, Integer limit) {
+		List<WorkflowOutboxEntry> result = new ArrayList<WorkflowOutboxEntry>();
+		for (WorkflowOutboxEntry entry : entries.values()) {
+			if (limit != null && result.size() >= limit) {
+				break;
+			}
+			if (entry.getDefinitionId().equals(definitionId) && entry.getSystemId().equals(systemId)) {
+				result.add(copy(entry));
+			}
+		}
+		return result;
+	}
+	
+	public synchronized void deleteOutboxEntries(String connectionId, String transactionId, List<UUID> entryIds) {
+		for (UUID entryId : entryIds) {
+			entries.remove(entryId);
+		}
+	}
+	
+	// claim the oldest entries of the definition that are free, an entry is free if it was never claimed or its claim expired
+	// in a database the lock on the claimed rows must not block other claimers, they should simply skip them (e.g. "for update skip locked")
+	public synchronized List<WorkflowOutboxEntry> claimWork(String connectionId, String transactionId, String definitionId, String systemId, Integer limit, Date claimExpires) {
+		Date now = new Date();
+		List<WorkflowOutboxEntry> result = new ArrayList<WorkflowOutboxEntry>();
+		for (WorkflowOutboxEntry entry : entries.values()) {
+			if (limit != null && result.size() >= limit) {
+				break;
+			}
+			if (entry.getDefinitionId().equals(definitionId) && (entry.getClaimExpires() == null || !entry.getClaimExpires().after(now))) {
+				entry.setClaimedBy(systemId);
+				entry.setClaimExpires(claimExpires);
+				result.add(copy(entry));
+			}
+		}
+		return result;
+	}
+	
+	// if the claim expired and someone else claimed the entry in the meantime, it is theirs to complete
+	public synchronized void completeWork(String connectionId, String transactionId, List<UUID> entryIds, String systemId) {
+		for (UUID entryId : entryIds) {
+			WorkflowOutboxEntry entry = entries.get(entryId);
+			if (entry != null && systemId.equals(entry.getClaimedBy())) {
+				entries.remove(entryId);
+			}
+		}
+	}
+	
+	// the same ownership rule applies as when completing
+	public synchronized void releaseWork(String connectionId, String transactionId, List<UUID> entryIds, String systemId, Date claimExpires) {
+		for (UUID entryId : entryIds) {
+			WorkflowOutboxEntry entry = entries.get(entryId);
+			if (entry != null && systemId.equals(entry.getClaimedBy())) {
+				entry.setClaimExpires(claimExpires);
+			}
+		}
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	private static WorkflowOutboxEntry copy(WorkflowOutboxEntry entry) {
+		WorkflowOutboxEntry copy = new WorkflowOutboxEntry();
+		copy.setId(entry.getId());
+		copy.setWorkflowId(entry.getWorkflowId());
+		copy.setDefinitionId(entry.getDefinitionId());
+		copy.setTransitionId(entry.getTransitionId());
+		copy.setSystemId(entry.getSystemId());
+		copy.setTarget(entry.getTarget());
+		copy.setParameters(entry.getParameters());
+		copy.setCreated(entry.getCreated());
+		copy.setClaimedBy(entry.getClaimedBy());
+		copy.setClaimExpires(entry.getClaimExpires());
+		return copy;
+	}
+}
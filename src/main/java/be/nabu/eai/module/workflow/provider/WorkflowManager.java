@@ -31,11 +31,21 @@ import nabu.misc.workflow.types.WorkflowDefinition;
 import nabu.misc.workflow.types.WorkflowInstance;
 import nabu.misc.workflow.types.WorkflowInstance.Level;
 import nabu.misc.workflow.types.WorkflowInstanceProperty;
+import nabu.misc.workflow.types.WorkflowLease;
+import nabu.misc.workflow.types.WorkflowOutboxEntry;
+import nabu.misc.workflow.types.WorkflowTimer;
 import nabu.misc.workflow.types.WorkflowTransitionInstance;
 
 public interface WorkflowManager {
 	public void createWorkflow(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "instance") WorkflowInstance instance);
+	// batched creation of new workflows, if not implemented, the workflows are created one by one (in the same transaction)
+	public void createWorkflows(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "instances") List<WorkflowInstance> instances);
 	public void updateWorkflow(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "instance") WorkflowInstance instance);
+	// optimistic concurrency: only update the workflow if the revision in the database is still the expected one (the one we read)
+	// the instance itself contains the new revision, for example: update ... set revision = :instance.revision where id = :instance.id and revision = :expectedRevision
+	// an expected revision of null means the workflow has never been updated with a revision
+	@WebResult(name = "succeeded")
+	public Boolean updateWorkflowIfCurrent(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "instance") WorkflowInstance instance, @WebParam(name = "expectedRevision") Long expectedRevision);
 	@WebResult(name = "workflow")
 	public WorkflowInstance getWorkflow(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "workflowId") @NotNull UUID workflowId);
 	
@@ -60,15 +70,53 @@ public interface WorkflowManager {
 		// whether or not to limit yourself to "running" workflows (in non-final states)
 		@WebParam(name = "running") Boolean running);
 	
+	// the same filter as getWorkflows but paged on the workflow id instead of an offset: only workflows with an id after the given id are returned, ordered by id
+	// this remains stable while the workflows are being modified and does not degrade for deep pages
+	@WebResult(name = "workflows")
+	public List<WorkflowInstance> getWorkflowsAfter(
+		@WebParam(name = "connectionId") String connectionId, 
+		@NotNull @WebParam(name = "definitionId") String definitionId, 
+		@WebParam(name = "stateId") UUID stateId, 
+		@WebParam(name = "transitionState") Level state, 
+		@WebParam(name = "from") Date from, 
+		@WebParam(name = "until") Date until, 
+		@WebParam(name = "environment") String environment, 
+		@WebParam(name = "parentId") UUID parentId, 
+		@WebParam(name = "batchId") UUID batchId, 
+		@WebParam(name = "correlationId") String correlationId,
+		@WebParam(name = "contextId") String contextId,
+		@WebParam(name = "groupId") String groupId,
+		@WebParam(name = "workflowType") String workflowType,
+		@WebParam(name = "properties") List<KeyValuePair> properties, 
+		@WebParam(name = "afterId") UUID afterId, 
+		@WebParam(name = "limit") Integer limit,
+		@WebParam(name = "running") Boolean running);
+	
+	// properties are a history: each record is bound to the transition that set it, only properties that changed in that transition are recorded
+	// a record without a value means the property was removed by that transition, it must be stored and returned like any other record (so a column for the value must be nullable)
+	// the records must be returned in the order they were created, the last record for a key is its current value, if that record has no value, the property no longer exists
+	// callers that read the properties directly (e.g. to search workflows by property) have to take the removals into account, older records of a removed key are still there
 	public void createWorkflowProperties(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @WebParam(name = "properties") List<WorkflowInstanceProperty> properties);
 	public void updateWorkflowProperties(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @WebParam(name = "properties") List<WorkflowInstanceProperty> properties);
 	@WebResult(name = "properties")
 	public List<WorkflowInstanceProperty> getWorkflowProperties(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "workflowId") @NotNull UUID workflowId);
+	// the properties above are the full history, the current properties are a materialized view with only the latest value for each key
+	// the view is maintained at write time: whenever properties are created or updated, they are merged into the view (based on workflow id and key)
+	// the merged record keeps the id and transition id of the history record it came from
+	// a property without a value means it was removed, the view can either keep it like that or delete the record
+	public void mergeCurrentWorkflowProperties(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @WebParam(name = "properties") List<WorkflowInstanceProperty> properties);
+	@WebResult(name = "properties")
+	public List<WorkflowInstanceProperty> getCurrentWorkflowProperties(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "workflowId") @NotNull UUID workflowId);
 	
 	public void createTransition(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @WebParam(name = "instance") WorkflowTransitionInstance instance);
 	public void updateTransition(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @WebParam(name = "instance") WorkflowTransitionInstance instance);
 	@WebResult(name = "transitions")
 	public List<WorkflowTransitionInstance> getTransitions(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "workflowId") @NotNull UUID workflowId);
+	// the transitions of the given workflow definition that are still RUNNING and were started by the given system, ordered by id
+	// only the transitions after the given id should be returned, this allows recovery to page through them without offsets
+	// this should be indexed on the transition state and system id, it is used on startup to find the work that was interrupted
+	@WebResult(name = "transitions")
+	public List<WorkflowTransitionInstance> getRunningTransitions(@WebParam(name = "connectionId") String connectionId, @NotNull @WebParam(name = "definitionId") String definitionId, @NotNull @WebParam(name = "systemId") String systemId, @WebParam(name = "afterId") UUID afterId, @WebParam(name = "limit") Integer limit);
 
 	public void createBatch(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "instance") WorkflowBatchInstance instance);
 	// update the batch but do so in a way that it can not fail in a concurrent environment
@@ -87,6 +135,11 @@ public interface WorkflowManager {
 	
 	@WebResult(name = "batches")
 	public List<WorkflowBatchInstance> getBatches(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "state") Level state, @WebParam(name = "offset") Integer offset, @WebParam(name = "limit") Integer limit);
+	// atomically add the deltas to the counters of the batch (e.g. "update ... set remaining = remaining + ?") and return the batch with the resulting counters
+	// the engine uses this to detect the last child of a batch instead of calculating the batch state over all children every time one is done
+	// counters that are not tracked for the batch (null) should remain null, the engine then falls back to calculating the batch state
+	@WebResult(name = "batch")
+	public WorkflowBatchInstance adjustBatchCounters(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "batchId") UUID batchId, @WebParam(name = "remaining") Long remaining, @WebParam(name = "succeeded") Long succeeded, @WebParam(name = "failed") Long failed);
 
 	// whenever a workflow is created, we need to make sure the definition exists in the database for historical purposes
 	// you can obviously ignore this if you don't care about versions
@@ -116,4 +169,51 @@ public interface WorkflowManager {
 		
 		return (long) getWorkflows(connectionId, definitionId, stateId, state, from, until, environment, parentId, batchId, correlationId, contextId, groupId, workflowType, properties, null, null, running).size();
 	}
+	
+	// timers for transitions that have to run at a later time, they are created in the same transaction as the state change that triggered them
+	public void createTimers(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "timers") List<WorkflowTimer> timers);
+	
+	// the timers of a definition that are due before the given date, ordered by due date and id
+	// for paging, only the timers after the given due date and id (in that order) are returned
+	@WebResult(name = "timers")
+	public List<WorkflowTimer> getTimers(@WebParam(name = "connectionId") String connectionId, @NotNull @WebParam(name = "definitionId") String definitionId, @NotNull @WebParam(name = "until") Date until, @WebParam(name = "afterDue") Date afterDue, @WebParam(name = "afterId") UUID afterId, @WebParam(name = "limit") Integer limit);
+	
+	public void deleteTimer(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "timerId") UUID timerId);
+	
+	// asynchronous transitions that have to be handed off to their target, they are created in the same transaction as the state change that triggered them
+	public void createOutboxEntries(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "entries") List<WorkflowOutboxEntry> entries);
+	
+	// the oldest outbox entries of a definition that were recorded by the given system
+	@WebResult(name = "entries")
+	public List<WorkflowOutboxEntry> getOutboxEntries(@WebParam(name = "connectionId") String connectionId, @NotNull @WebParam(name = "definitionId") String definitionId, @NotNull @WebParam(name = "systemId") String systemId, @WebParam(name = "limit") Integer limit);
+	
+	public void deleteOutboxEntries(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "entryIds") List<UUID> entryIds);
+	
+	// create or renew the lease of the system on the running transitions of the definition, this should also clear any previous takeover
+	// the lease covers all the transitions the system is running, so renewing it is a single write no matter how many there are
+	public void renewLease(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "definitionId") String definitionId, @NotNull @WebParam(name = "systemId") String systemId, @NotNull @WebParam(name = "expires") Date expires);
+	
+	// the leases of the definition that expired before the given date and have not been taken over yet
+	@WebResult(name = "leases")
+	public List<WorkflowLease> getExpiredLeases(@WebParam(name = "connectionId") String connectionId, @NotNull @WebParam(name = "definitionId") String definitionId, @NotNull @WebParam(name = "expiredBefore") Date expiredBefore);
+	
+	// take over an expired lease, this should only succeed if the lease still expires at the given date (it was not renewed) and was not taken over by someone else
+	// for example: update ... set taken_over_by = ? where definition_id = ? and system_id = ? and expires = ? and taken_over_by is null
+	@WebResult(name = "succeeded")
+	public Boolean takeOverLease(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "definitionId") String definitionId, @NotNull @WebParam(name = "systemId") String systemId, @NotNull @WebParam(name = "takenOverBy") String takenOverBy, @NotNull @WebParam(name = "expires") Date expires);
+	
+	// all the leases of the definition, the systems with a lease that has not expired and has not been taken over are considered alive
+	@WebResult(name = "leases")
+	public List<WorkflowLease> getLeases(@WebParam(name = "connectionId") String connectionId, @NotNull @WebParam(name = "definitionId") String definitionId);
+	
+	// claim up to the limit of outbox entries of the definition that are not claimed or whose claim has expired, regardless of the system that recorded them
+	// the claim has to be exclusive without blocking other claimers, for example "select ... for update skip locked" followed by setting the claimed by and claim expires
+	@WebResult(name = "entries")
+	public List<WorkflowOutboxEntry> claimWork(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "definitionId") String definitionId, @NotNull @WebParam(name = "systemId") String systemId, @WebParam(name = "limit") Integer limit, @NotNull @WebParam(name = "claimExpires") Date claimExpires);
+	
+	// remove the entries that were handled, only the ones that are still claimed by the given system should be removed
+	public void completeWork(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "entryIds") List<UUID> entryIds, @NotNull @WebParam(name = "systemId") String systemId);
+	
+	// shorten the claim of entries that could not be handled yet so they are claimed again once it expires, only the entries that are still claimed by the given system should be updated
+	public void releaseWork(@WebParam(name = "connectionId") String connectionId, @WebParam(name = "transactionId") String transactionId, @NotNull @WebParam(name = "entryIds") List<UUID> entryIds, @NotNull @WebParam(name = "systemId") String systemId, @NotNull @WebParam(name = "claimExpires") Date claimExpires);
 }
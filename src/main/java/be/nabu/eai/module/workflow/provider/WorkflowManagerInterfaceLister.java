@@ -44,6 +44,8 @@ private static Collection<InterfaceDescription> descriptions = null;
 					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Create Workflow Properties", "be.nabu.eai.module.workflow.provider.WorkflowManager.createWorkflowProperties"));
 					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Update Workflow Properties", "be.nabu.eai.module.workflow.provider.WorkflowManager.updateWorkflowProperties"));
 					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Get Workflow Properties", "be.nabu.eai.module.workflow.provider.WorkflowManager.getWorkflowProperties"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Merge Current Workflow Properties", "be.nabu.eai.module.workflow.provider.WorkflowManager.mergeCurrentWorkflowProperties"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Get Current Workflow Properties", "be.nabu.eai.module.workflow.provider.WorkflowManager.getCurrentWorkflowProperties"));
 					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Create Batch", "be.nabu.eai.module.workflow.provider.WorkflowManager.createBatch"));
 					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Update Batch", "be.nabu.eai.module.workflow.provider.WorkflowManager.updateBatch"));
 					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Calculate Batch State", "be.nabu.eai.module.workflow.provider.WorkflowManager.calculateBatchState"));
@@ -52,6 +54,24 @@ private static Collection<InterfaceDescription> descriptions = null;
 					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Get Amount of Workflows", "be.nabu.eai.module.workflow.provider.WorkflowManager.getAmountOfWorkflows"));
 					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Merge a definition that is actively used", "be.nabu.eai.module.workflow.provider.WorkflowManager.mergeDefinition"));
 					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Get the definition of a specific version", "be.nabu.eai.module.workflow.provider.WorkflowManager.getDefinition"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Update Workflow If Current", "be.nabu.eai.module.workflow.provider.WorkflowManager.updateWorkflowIfCurrent"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Create Workflows", "be.nabu.eai.module.workflow.provider.WorkflowManager.createWorkflows"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Get Workflows After (keyset paging)", "be.nabu.eai.module.workflow.provider.WorkflowManager.getWorkflowsAfter"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Create Timers", "be.nabu.eai.module.workflow.provider.WorkflowManager.createTimers"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Get Timers", "be.nabu.eai.module.workflow.provider.WorkflowManager.getTimers"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Delete Timer", "be.nabu.eai.module.workflow.provider.WorkflowManager.deleteTimer"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Create Outbox Entries", "be.nabu.eai.module.workflow.provider.WorkflowManager.createOutboxEntries"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Get Outbox Entries", "be.nabu.eai.module.workflow.provider.WorkflowManager.getOutboxEntries"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Delete Outbox Entries", "be.nabu.eai.module.workflow.provider.WorkflowManager.deleteOutboxEntries"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Adjust Batch Counters", "be.nabu.eai.module.workflow.provider.WorkflowManager.adjustBatchCounters"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Get Running Transitions", "be.nabu.eai.module.workflow.provider.WorkflowManager.getRunningTransitions"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Renew Lease", "be.nabu.eai.module.workflow.provider.WorkflowManager.renewLease"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Get Expired Leases", "be.nabu.eai.module.workflow.provider.WorkflowManager.getExpiredLeases"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Take Over Lease", "be.nabu.eai.module.workflow.provider.WorkflowManager.takeOverLease"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Get Leases", "be.nabu.eai.module.workflow.provider.WorkflowManager.getLeases"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Claim Work", "be.nabu.eai.module.workflow.provider.WorkflowManager.claimWork"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Complete Work", "be.nabu.eai.module.workflow.provider.WorkflowManager.completeWork"));
+					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Release Work", "be.nabu.eai.module.workflow.provider.WorkflowManager.releaseWork"));
 					descriptions.add(new InterfaceDescriptionImpl("Workflow", "Workflow listener", "be.nabu.eai.module.workflow.api.WorkflowListener.transition"));
 					WorkflowManagerInterfaceLister.descriptions = descriptions;
 				}
@@ -61,6 +61,46 @@ public class WorkflowProvider extends JAXBArtifact<WorkflowProviderConfiguration
 		}
 	}
 
+	// the current properties can only be used if they are both maintained and retrievable
+	public boolean hasCurrentWorkflowProperties() {
+		return getConfig().getMergeCurrentWorkflowProperties() != null && getConfig().getGetCurrentWorkflowProperties() != null;
+	}
+	
+	// whether workflow updates can be checked against the revision we read
+	public boolean hasConditionalUpdates() {
+		return getConfig().getUpdateWorkflowIfCurrent() != null;
+	}
+	
+	// whether timed transitions can be persisted
+	public boolean hasTimers() {
+		return getConfig().getCreateTimers() != null && getConfig().getGetTimers() != null && getConfig().getDeleteTimer() != null;
+	}
+	
+	// whether asynchronous transitions can be recorded in an outbox
+	public boolean hasOutbox() {
+		return getConfig().getCreateOutboxEntries() != null && getConfig().getGetOutboxEntries() != null && getConfig().getDeleteOutboxEntries() != null;
+	}
+	
+	// whether batches track their children with counters
+	public boolean hasBatchCounters() {
+		return getConfig().getAdjustBatchCounters() != null;
+	}
+	
+	// whether the outbox can be consumed as a shared queue by all systems
+	public boolean hasWorkQueue() {
+		return hasOutbox() && getConfig().getClaimWork() != null && getConfig().getCompleteWork() != null;
+	}
+	
+	// whether work that could not be handled yet can be released early instead of waiting for its claim to expire
+	public boolean hasWorkRelease() {
+		return hasWorkQueue() && getConfig().getReleaseWork() != null;
+	}
+	
+	// whether the systems hold leases on their running transitions so others can take over when they die
+	public boolean hasLeases() {
+		return getConfig().getRenewLease() != null && getConfig().getGetExpiredLeases() != null && getConfig().getTakeOverLease() != null && getConfig().getGetRunningTransitions() != null;
+	}
+	
 	public WorkflowManager getWorkflowManager() {
 		if (manager == null) {
 			synchronized(this) {
@@ -93,7 +133,27 @@ public class WorkflowProvider extends JAXBArtifact<WorkflowProviderConfiguration
 							getConfig().getUpdateBatch(),
 							getConfig().getGetBatch(),
 							getConfig().getGetBatches(),
-							getConfig().getCalculateBatchState()
+							getConfig().getCalculateBatchState(),
+							getConfig().getMergeCurrentWorkflowProperties(),
+							getConfig().getGetCurrentWorkflowProperties(),
+							getConfig().getUpdateWorkflowIfCurrent(),
+							getConfig().getCreateWorkflows(),
+							getConfig().getGetWorkflowsAfter(),
+							getConfig().getCreateTimers(),
+							getConfig().getGetTimers(),
+							getConfig().getDeleteTimer(),
+							getConfig().getCreateOutboxEntries(),
+							getConfig().getGetOutboxEntries(),
+							getConfig().getDeleteOutboxEntries(),
+							getConfig().getAdjustBatchCounters(),
+							getConfig().getGetRunningTransitions(),
+							getConfig().getRenewLease(),
+							getConfig().getGetExpiredLeases(),
+							getConfig().getTakeOverLease(),
+							getConfig().getGetLeases(),
+							getConfig().getClaimWork(),
+							getConfig().getCompleteWork(),
+							getConfig().getReleaseWork()
 						);
 					}
 					catch (Exception e) {
@@ -32,7 +32,26 @@ public class WorkflowProviderConfiguration {
 		createTransition, updateTransition, getTransitions,
 		createWorkflowProperties, updateWorkflowProperties, getWorkflowProperties,
 		getWorkflows, createBatch, updateBatch, calculateBatchState, getBatch, getBatches,
-		getAmountOfWorkflows, mergeDefinition, getDefinition;
+		getAmountOfWorkflows, mergeDefinition, getDefinition,
+		mergeCurrentWorkflowProperties, getCurrentWorkflowProperties,
+		updateWorkflowIfCurrent,
+		createWorkflows,
+		getWorkflowsAfter,
+		createTimers,
+		getTimers,
+		deleteTimer,
+		createOutboxEntries,
+		getOutboxEntries,
+		deleteOutboxEntries,
+		adjustBatchCounters,
+		getRunningTransitions,
+		renewLease,
+		getExpiredLeases,
+		takeOverLease,
+		getLeases,
+		claimWork,
+		completeWork,
+		releaseWork;
 
 	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.createWorkflow")
 	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
@@ -151,6 +170,24 @@ public class WorkflowProviderConfiguration {
 		this.getWorkflowProperties = getWorkflowProperties;
 	}
 	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.mergeCurrentWorkflowProperties")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getMergeCurrentWorkflowProperties() {
+		return mergeCurrentWorkflowProperties;
+	}
+	public void setMergeCurrentWorkflowProperties(DefinedService mergeCurrentWorkflowProperties) {
+		this.mergeCurrentWorkflowProperties = mergeCurrentWorkflowProperties;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.getCurrentWorkflowProperties")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getGetCurrentWorkflowProperties() {
+		return getCurrentWorkflowProperties;
+	}
+	public void setGetCurrentWorkflowProperties(DefinedService getCurrentWorkflowProperties) {
+		this.getCurrentWorkflowProperties = getCurrentWorkflowProperties;
+	}
+	
 	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.createBatch")
 	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
 	public DefinedService getCreateBatch() {
@@ -205,4 +242,166 @@ public class WorkflowProviderConfiguration {
 		this.getAmountOfWorkflows = getAmountOfWorkflows;
 	}
 	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.updateWorkflowIfCurrent")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getUpdateWorkflowIfCurrent() {
+		return updateWorkflowIfCurrent;
+	}
+	public void setUpdateWorkflowIfCurrent(DefinedService updateWorkflowIfCurrent) {
+		this.updateWorkflowIfCurrent = updateWorkflowIfCurrent;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.createWorkflows")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getCreateWorkflows() {
+		return createWorkflows;
+	}
+	public void setCreateWorkflows(DefinedService createWorkflows) {
+		this.createWorkflows = createWorkflows;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.getWorkflowsAfter")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getGetWorkflowsAfter() {
+		return getWorkflowsAfter;
+	}
+	public void setGetWorkflowsAfter(DefinedService getWorkflowsAfter) {
+		this.getWorkflowsAfter = getWorkflowsAfter;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.createTimers")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getCreateTimers() {
+		return createTimers;
+	}
+	public void setCreateTimers(DefinedService createTimers) {
+		this.createTimers = createTimers;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.getTimers")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getGetTimers() {
+		return getTimers;
+	}
+	public void setGetTimers(DefinedService getTimers) {
+		this.getTimers = getTimers;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.deleteTimer")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getDeleteTimer() {
+		return deleteTimer;
+	}
+	public void setDeleteTimer(DefinedService deleteTimer) {
+		this.deleteTimer = deleteTimer;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.createOutboxEntries")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getCreateOutboxEntries() {
+		return createOutboxEntries;
+	}
+	public void setCreateOutboxEntries(DefinedService createOutboxEntries) {
+		this.createOutboxEntries = createOutboxEntries;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.getOutboxEntries")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getGetOutboxEntries() {
+		return getOutboxEntries;
+	}
+	public void setGetOutboxEntries(DefinedService getOutboxEntries) {
+		this.getOutboxEntries = getOutboxEntries;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.deleteOutboxEntries")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getDeleteOutboxEntries() {
+		return deleteOutboxEntries;
+	}
+	public void setDeleteOutboxEntries(DefinedService deleteOutboxEntries) {
+		this.deleteOutboxEntries = deleteOutboxEntries;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.adjustBatchCounters")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getAdjustBatchCounters() {
+		return adjustBatchCounters;
+	}
+	public void setAdjustBatchCounters(DefinedService adjustBatchCounters) {
+		this.adjustBatchCounters = adjustBatchCounters;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.getRunningTransitions")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getGetRunningTransitions() {
+		return getRunningTransitions;
+	}
+	public void setGetRunningTransitions(DefinedService getRunningTransitions) {
+		this.getRunningTransitions = getRunningTransitions;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.renewLease")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getRenewLease() {
+		return renewLease;
+	}
+	public void setRenewLease(DefinedService renewLease) {
+		this.renewLease = renewLease;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.getExpiredLeases")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getGetExpiredLeases() {
+		return getExpiredLeases;
+	}
+	public void setGetExpiredLeases(DefinedService getExpiredLeases) {
+		this.getExpiredLeases = getExpiredLeases;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.takeOverLease")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getTakeOverLease() {
+		return takeOverLease;
+	}
+	public void setTakeOverLease(DefinedService takeOverLease) {
+		this.takeOverLease = takeOverLease;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.getLeases")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getGetLeases() {
+		return getLeases;
+	}
+	public void setGetLeases(DefinedService getLeases) {
+		this.getLeases = getLeases;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.claimWork")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getClaimWork() {
+		return claimWork;
+	}
+	public void setClaimWork(DefinedService claimWork) {
+		this.claimWork = claimWork;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.completeWork")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getCompleteWork() {
+		return completeWork;
+	}
+	public void setCompleteWork(DefinedService completeWork) {
+		this.completeWork = completeWork;
+	}
+	
+	@InterfaceFilter(implement = "be.nabu.eai.module.workflow.provider.WorkflowManager.releaseWork")
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public DefinedService getReleaseWork() {
+		return releaseWork;
+	}
+	public void setReleaseWork(DefinedService releaseWork) {
+		this.releaseWork = releaseWork;
+	}
+	
 }
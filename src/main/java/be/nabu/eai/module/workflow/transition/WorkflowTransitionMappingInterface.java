@@ -81,6 +81,8 @@ public class WorkflowTransitionMappingInterface implements DefinedServiceInterfa
 					Structure output = new Structure();
 					output.setName("output");
 					output.add(new ComplexElementImpl("properties", workflow.getStructures().get("properties"), output));
+					// the properties (or property prefixes) that should be removed from the workflow
+					output.add(new SimpleElementImpl<String>("removedProperties", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), output, new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0), new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
 					output.add(new ComplexElementImpl("state", workflow.getStructures().get(Workflow.stringify(toState.getId())), output));
 					output.add(new SimpleElementImpl<String>("correlationId", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), output, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
 					output.add(new SimpleElementImpl<String>("contextId", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), output, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
@@ -20,9 +20,7 @@ package be.nabu.eai.module.workflow.transition;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.UUID;
 
 import nabu.misc.workflow.Services;
@@ -34,9 +32,13 @@ import nabu.misc.workflow.types.WorkflowTransitionInstance;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import be.nabu.eai.module.workflow.LazyWorkflowHistory;
 import be.nabu.eai.module.workflow.Workflow;
+import be.nabu.eai.module.workflow.WorkflowAdmission;
+import be.nabu.eai.module.workflow.WorkflowConflictException;
+import be.nabu.eai.module.workflow.WorkflowExecutor;
+import be.nabu.eai.module.workflow.WorkflowInstanceLocks;
 import be.nabu.eai.module.workflow.Workflow.TransactionableAction;
-import be.nabu.eai.module.workflow.WorkflowState;
 import be.nabu.eai.module.workflow.provider.WorkflowManager;
 import be.nabu.libs.services.api.ExecutionContext;
 import be.nabu.libs.services.api.Service;
@@ -45,14 +47,24 @@ import be.nabu.libs.services.api.ServiceInstance;
 import be.nabu.libs.types.api.ComplexContent;
 
 public class WorkflowTransitionServiceInstance implements ServiceInstance {
+
+	private static final int MAX_CONFLICT_ATTEMPTS = 3;
 	
 	private WorkflowTransitionService service;
 	
 	private Logger logger = LoggerFactory.getLogger(getClass());
 
+	// an initial transition can be run on a workflow that was created up front (e.g. in bulk)
+	private WorkflowInstance created;
+	
 	public WorkflowTransitionServiceInstance(WorkflowTransitionService service) {
 		this.service = service;
 	}
+	
+	public WorkflowTransitionServiceInstance(WorkflowTransitionService service, WorkflowInstance created) {
+		this.service = service;
+		this.created = created;
+	}
 
 	@Override
 	public Service getDefinition() {
@@ -75,36 +87,91 @@ public class WorkflowTransitionServiceInstance implements ServiceInstance {
 	
 	@Override
 	public ComplexContent execute(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
+		UUID workflowId = service.isInitial() || input == null ? null : (UUID) input.get("workflowId");
+		WorkflowAdmission admission = WorkflowAdmission.getAdmission(service.getWorkflow());
+		// a workflow that was created up front has already been admitted by whoever created it, they also release it
+		if (service.isInitial() && created != null) {
+			return run(executionContext, input);
+		}
+		// a new workflow is not known to anyone else yet, but it has to be admitted
+		else if (service.isInitial()) {
+			admission.admit(service.getWorkflow());
+			try {
+				return run(executionContext, input);
+			}
+			finally {
+				admission.release();
+			}
+		}
+		else if (workflowId == null) {
+			return run(executionContext, input);
+		}
+		// transitions on the same instance are serialized, from loading the instance and checking its state until the transition (and its automatic follow ups) are done
+		admission.enter();
+		WorkflowInstanceLocks.getInstance().lock(workflowId);
+		try {
+			// another server may have updated the instance since we loaded it, as long as the transition itself did not run yet, we can simply reload and try again
+			for (int attempt = 1;; attempt++) {
+				try {
+					return run(executionContext, input);
+				}
+				catch (WorkflowConflictException e) {
+					if (attempt >= MAX_CONFLICT_ATTEMPTS) {
+						throw new ServiceException("WORKFLOW-CONFLICT", "The workflow " + workflowId + " (" + service.getWorkflow().getId() + ") was modified concurrently, gave up after " + attempt + " attempts", e);
+					}
+					logger.debug("Concurrent modification of workflow " + workflowId + ", retrying transition '" + service.getId() + "'");
+				}
+			}
+		}
+		finally {
+			WorkflowInstanceLocks.getInstance().unlock(workflowId);
+			admission.release();
+		}
+	}
+	
+	// build a new (not yet persisted) workflow instance for the given input of an initial transition
+	public static WorkflowInstance newInstance(WorkflowTransitionService service, ComplexContent input) {
+		WorkflowInstance instance = new WorkflowInstance();
+		instance.setVersion(service.getWorkflow().getVersion());
+		if (input != null) {
+			instance.setId((UUID) input.get("workflowId"));
+			instance.setParentId((UUID) input.get("parentId"));
+			instance.setCorrelationId((String) input.get("correlationId"));
+			instance.setBatchId((UUID) input.get("batchId"));
+			instance.setGroupId((String) input.get("groupId"));
+			instance.setContextId((String) input.get("contextId"));
+			instance.setWorkflowType((String) input.get("workflowType"));
+			instance.setUri((URI) input.get("uri"));
+		}
+		// generate an id if none was passed in
+		if (instance.getId() == null) {
+			instance.setId(UUID.randomUUID());
+		}
+		instance.setStarted(new Date());
+		instance.setDefinitionId(service.getWorkflow().getId());
+		instance.setEnvironment(service.getWorkflow().getRepository().getGroup());
+		instance.setStateId(service.getFromState().getId());
+		instance.setTransitionState(Level.RUNNING);
+		instance.setRevision(0l);
+		return instance;
+	}
+	
+	private ComplexContent run(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
 		WorkflowInstance instance;
-		List<WorkflowTransitionInstance> history = new ArrayList<WorkflowTransitionInstance>();
+		List<WorkflowTransitionInstance> history;
 		List<WorkflowInstanceProperty> properties = new ArrayList<WorkflowInstanceProperty>();
 		
 		// transactions are a tricky bit, a workflow generally performs actions, some of which can not be reversed
 		// perhaps it is better to always locally transact and simply go back to a previous state or offer compensation mechanisms
 		// until this is cleared up, transactions are always managed by the workflow
 		final String connectionId = getConnectionId(input);
-		if (service.isInitial()) {
-			instance = new WorkflowInstance();
-			instance.setVersion(service.getWorkflow().getVersion());
-			if (input != null) {
-				instance.setId((UUID) input.get("workflowId"));
-				instance.setParentId((UUID) input.get("parentId"));
-				instance.setCorrelationId((String) input.get("correlationId"));
-				instance.setBatchId((UUID) input.get("batchId"));
-				instance.setGroupId((String) input.get("groupId"));
-				instance.setContextId((String) input.get("contextId"));
-				instance.setWorkflowType((String) input.get("workflowType"));
-				instance.setUri((URI) input.get("uri"));
-			}
-			// generate an id if none was passed in
-			if (instance.getId() == null) {
-				instance.setId(UUID.randomUUID());
-			}
-			instance.setStarted(new Date());
-			instance.setDefinitionId(service.getWorkflow().getId());
-			instance.setEnvironment(service.getWorkflow().getRepository().getGroup());
-			instance.setStateId(service.getFromState().getId());
-			instance.setTransitionState(Level.RUNNING);
+		if (service.isInitial() && created != null) {
+			history = new ArrayList<WorkflowTransitionInstance>();
+			instance = created;
+		}
+		else if (service.isInitial()) {
+			history = new ArrayList<WorkflowTransitionInstance>();
+			instance = newInstance(service, input);
 			
 			// when creating a workflow and we are interested in versioning, make sure the version is persisted somewhere
 			if (service.getWorkflow().getConfig().isVersion() && service.getWorkflow().getConfig().getProvider().getConfig().getMergeDefinition() != null) {
@@ -112,90 +179,82 @@ public class WorkflowTransitionServiceInstance implements ServiceInstance {
 					.mergeDefinition(Services.buildDefinition(service.getWorkflow()));
 			}
 			
-			Workflow.runTransactionally(new TransactionableAction<Void>() {
-				@Override
-				public Void call(String transactionId) throws Exception {
-					service.getWorkflow().getConfig().getProvider().getWorkflowManager()
-						.createWorkflow(connectionId, transactionId, instance);
-					return null;
-				}
-			});
+			// a synchronous transition creates the workflow along with its first write, an asynchronous one has to create it now so the caller can refer to it
+			if (isAsynchronous(input)) {
+				Workflow.runTransactionally(new TransactionableAction<Void>() {
+					@Override
+					public Void call(String transactionId) throws Exception {
+						WorkflowManager workflowManager = service.getWorkflow().getConfig().getProvider().getWorkflowManager();
+						workflowManager.createWorkflow(connectionId, transactionId, instance);
+						// a child is counted in its batch in the same transaction as it is created
+						if (instance.getBatchId() != null && service.getWorkflow().getConfig().getProvider().hasBatchCounters()) {
+							workflowManager.adjustBatchCounters(connectionId, transactionId, instance.getBatchId(), 1l, 0l, 0l);
+						}
+						return null;
+					}
+				});
+			}
+			else {
+				service.getWorkflow().start(connectionId, instance, properties, service.getTransition(), executionContext.getSecurityContext().getToken(), input);
+				ComplexContent output = service.getServiceInterface().getOutputDefinition().newInstance();
+				output.set("workflowId", instance.getId());
+				return output;
+			}
 		}
 		else {
 			UUID workflowId = input == null ? null : (UUID) input.get("workflowId");
 			if (workflowId == null) {
 				throw new ServiceException("WORKFLOW-1", "No workflow id given (" + service.getWorkflow().getId() + ")");
 			}
-			WorkflowManager workflowManager = service.getWorkflow().getConfig().getProvider().getWorkflowManager();
-			
-			instance = workflowManager.getWorkflow(connectionId, workflowId);
-			
-			if (instance == null) {
-				throw new ServiceException("WORKFLOW-3", "The workflow id '" + workflowId + "' is not a workflow instance (" + service.getWorkflow().getId() + ")");
-			}
-			
-			if (!service.getWorkflow().getId().equals(instance.getDefinitionId())) {
-				throw new ServiceException("WORKFLOW-6", "The workflow is not of the correct type, expecting a '" + service.getWorkflow().getId() + "' but received an instance of '" + instance.getDefinitionId() + "'");
-			}
-			
-			// we can not operate on an anonymized instance by default
-			// workflows are sequences of steps that build on state, if we throw away part of that state, it is likely not going to function well anymore
-			// you can't bypass this with force either atm
-			// cause we _could_ allow that, but than every transition afterwards would need to be forced, as the anonymized boolean stays on
-			// so we would have to think on unsetting the boolean? we're gonna wait for an actual usecase
-			if (instance.getAnonymized() != null && instance.getAnonymized()) {
-				throw new ServiceException("WORKFLOW-ANONYMIZED", "Workflow " + workflowId + " (" + service.getWorkflow().getId() + ") is anonymized, you can no longer perform transitions on it");
-			}
-			
-			// a global state can be triggered from anywhere
-			if (!instance.getStateId().equals(service.getFromState().getId()) && !service.getFromState().isGlobalState()) {
-				// check if the "from state" is actually an extension
-				WorkflowState state = service.getWorkflow().getStateById(instance.getStateId());
-				
-				// check if the state is the same as the source state of this service or an extension
-				boolean isExtension = isExtension(state, new HashSet<WorkflowState>());
-				
-				if (!isExtension) {
-					Boolean force = (Boolean) input.get("force");
-					if (force == null || !force) {
-						Boolean bestEffort = (Boolean) input.get("bestEffort");
-						if (bestEffort != null && bestEffort) {
-							logger.warn("Skipped best effort transition: " + service.getId());
-							return null;
-						}
-						throw new ServiceException("WORKFLOW-0", "Workflow " + workflowId + " (" + service.getWorkflow().getId() + ") is not in the correct state to trigger this transition");
-					}
-				}
-			}
-			
-			List<WorkflowTransitionInstance> transitions = workflowManager.getTransitions(connectionId, workflowId);
-			if (transitions != null) {
-				history.addAll(transitions);
-			}
-			List<WorkflowInstanceProperty> workflowProperties = workflowManager.getWorkflowProperties(connectionId, workflowId);
-			if (workflowProperties != null) {
-				properties.addAll(workflowProperties);
+			LoadedWorkflow loaded = load(connectionId, workflowId, input);
+			// a best effort transition that no longer applies
+			if (loaded == null) {
+				return null;
 			}
+			instance = loaded.instance;
+			history = loaded.history;
+			properties.addAll(loaded.properties);
 		}
 		
-		// TODO: deprecated!
-		Boolean asynchronous = input == null ? null : (Boolean) input.get("asynchronous");
-		
-		// TODO: in the future we can have a generic concept of a "thread pool" which you can share between for example workflows to make sure they don't use too many resources
-		// can scale this to http servers etc as well
-		if (asynchronous != null && asynchronous) {
-			new Thread(new Runnable() {
+		// asynchronous transitions run in a bounded pool that can be shared between workflows
+		if (isAsynchronous(input)) {
+			WorkflowExecutor.getExecutor(service.getWorkflow()).submit(service.getWorkflow(), instance.getGroupId(), service.getTransition().getPriority(), new Runnable() {
 				@Override
 				public void run() {
+					// the lock of the calling thread is released by the time this runs
+					WorkflowAdmission admission = WorkflowAdmission.getAdmission(service.getWorkflow());
+					admission.enter();
+					WorkflowInstanceLocks.getInstance().lock(instance.getId());
 					try {
-						service.getWorkflow().run(connectionId, instance, history, properties, service.getTransition(), executionContext.getSecurityContext().getToken(), input);
+						// other transitions may have run in the meantime, so we reload the instance and check again whether the transition still applies
+						// a new instance was created by the calling thread and is still running the initial transition, it can be used as is
+						for (int attempt = 1;; attempt++) {
+							LoadedWorkflow loaded = service.isInitial() && attempt == 1 ? new LoadedWorkflow(instance, history, properties) : load(connectionId, instance.getId(), input);
+							if (loaded == null) {
+								break;
+							}
+							try {
+								service.getWorkflow().run(connectionId, loaded.instance, loaded.history, loaded.properties, service.getTransition(), executionContext.getSecurityContext().getToken(), input);
+								break;
+							}
+							catch (WorkflowConflictException e) {
+								if (attempt >= MAX_CONFLICT_ATTEMPTS) {
+									throw new ServiceException("WORKFLOW-CONFLICT", "The workflow " + instance.getId() + " (" + service.getWorkflow().getId() + ") was modified concurrently, gave up after " + attempt + " attempts", e);
+								}
+								logger.debug("Concurrent modification of workflow " + instance.getId() + ", retrying transition '" + service.getId() + "'");
+							}
+						}
 					}
 					catch (ServiceException e) {
 						LoggerFactory.getLogger(service.getWorkflow().getId()).error("Transition '" + service.getId() + "' exited with exception", e);
 						logger.error("Workflow stopped with exception", e);
 					}
+					finally {
+						WorkflowInstanceLocks.getInstance().unlock(instance.getId());
+						admission.release();
+					}
 				}
-			}).start();
+			});
 		}
 		else {
 			service.getWorkflow().run(connectionId, instance, history, properties, service.getTransition(), executionContext.getSecurityContext().getToken(), input);
@@ -208,26 +267,89 @@ public class WorkflowTransitionServiceInstance implements ServiceInstance {
 		return output;
 	}
 	
-	private boolean isExtension(WorkflowState currentState, Set<WorkflowState> checkedStates) {
-		// the same state, we good to go
-		if (currentState.getId().equals(service.getFromState().getId())) {
-			return true;
-		}
-		// we already checked this state and apparently concluded it was not in there
-		else if (checkedStates.contains(currentState)) {
-			return false;
-		}
-		// always add the current state to prevent circular lookups
-		checkedStates.add(currentState);
-		// the state extends other states, check those as well
-		if (currentState.getExtensions() != null) {
-			for (UUID stateId : currentState.getExtensions()) {
-				WorkflowState stateById = service.getWorkflow().getStateById(stateId);
-				if (isExtension(stateById, checkedStates)) {
-					return true;
+	// TODO: deprecated!
+	private static boolean isAsynchronous(ComplexContent input) {
+		Boolean asynchronous = input == null ? null : (Boolean) input.get("asynchronous");
+		return asynchronous != null && asynchronous;
+	}
+	
+	// loads the instance with its history and properties and checks that the transition can be run on it
+	// returns null if the transition is best effort and no longer applies
+	private LoadedWorkflow load(String connectionId, UUID workflowId, ComplexContent input) throws ServiceException {
+		List<WorkflowTransitionInstance> history;
+		List<WorkflowInstanceProperty> properties = new ArrayList<WorkflowInstanceProperty>();
+		WorkflowManager workflowManager = service.getWorkflow().getConfig().getProvider().getWorkflowManager();
+		
+		WorkflowInstance instance = workflowManager.getWorkflow(connectionId, workflowId);
+		
+		if (instance == null) {
+			throw new ServiceException("WORKFLOW-3", "The workflow id '" + workflowId + "' is not a workflow instance (" + service.getWorkflow().getId() + ")");
+		}
+		
+		if (!service.getWorkflow().getId().equals(instance.getDefinitionId())) {
+			throw new ServiceException("WORKFLOW-6", "The workflow is not of the correct type, expecting a '" + service.getWorkflow().getId() + "' but received an instance of '" + instance.getDefinitionId() + "'");
+		}
+		
+		// while we recover in the background, a running instance may have been interrupted and not yet reverted
+		// we can not wait for it here as the recovery needs the instance lock we are holding, the caller can try again later
+		if (instance.getTransitionState() == Level.RUNNING && service.getWorkflow().getRecovery().isRecovering()) {
+			throw new ServiceException("WORKFLOW-RECOVERING", "Workflow " + workflowId + " (" + service.getWorkflow().getId() + ") is running and may have been interrupted, it can not be transitioned until the recovery is done");
+		}
+		
+		// we can not operate on an anonymized instance by default
+		// workflows are sequences of steps that build on state, if we throw away part of that state, it is likely not going to function well anymore
+		// you can't bypass this with force either atm
+		// cause we _could_ allow that, but than every transition afterwards would need to be forced, as the anonymized boolean stays on
+		// so we would have to think on unsetting the boolean? we're gonna wait for an actual usecase
+		if (instance.getAnonymized() != null && instance.getAnonymized()) {
+			throw new ServiceException("WORKFLOW-ANONYMIZED", "Workflow " + workflowId + " (" + service.getWorkflow().getId() + ") is anonymized, you can no longer perform transitions on it");
+		}
+		
+		// a global state can be triggered from anywhere
+		if (!instance.getStateId().equals(service.getFromState().getId()) && !service.getFromState().isGlobalState()) {
+			// check if the state is the same as the source state of this service or an extension
+			boolean isExtension = service.getWorkflow().isOrExtendsState(instance.getStateId(), service.getFromState().getId());
+			
+			if (!isExtension) {
+				Boolean force = (Boolean) input.get("force");
+				if (force == null || !force) {
+					Boolean bestEffort = (Boolean) input.get("bestEffort");
+					if (bestEffort != null && bestEffort) {
+						logger.warn("Skipped best effort transition: " + service.getId());
+						return null;
+					}
+					throw new ServiceException("WORKFLOW-0", "Workflow " + workflowId + " (" + service.getWorkflow().getId() + ") is not in the correct state to trigger this transition");
 				}
 			}
 		}
-		return false;
+		
+		// if we know the last transition and the properties are available without the history, we only load the history when it is needed
+		if (instance.getLastSequence() != null && service.getWorkflow().getConfig().getProvider().hasCurrentWorkflowProperties()) {
+			history = new LazyWorkflowHistory(workflowManager, connectionId, workflowId);
+		}
+		else {
+			history = new ArrayList<WorkflowTransitionInstance>();
+			List<WorkflowTransitionInstance> transitions = workflowManager.getTransitions(connectionId, workflowId);
+			if (transitions != null) {
+				history.addAll(transitions);
+			}
+		}
+		List<WorkflowInstanceProperty> workflowProperties = service.getWorkflow().getCurrentProperties(connectionId, workflowId);
+		if (workflowProperties != null) {
+			properties.addAll(workflowProperties);
+		}
+		return new LoadedWorkflow(instance, history, properties);
+	}
+	
+	private static class LoadedWorkflow {
+		private WorkflowInstance instance;
+		private List<WorkflowTransitionInstance> history;
+		private List<WorkflowInstanceProperty> properties;
+		
+		public LoadedWorkflow(WorkflowInstance instance, List<WorkflowTransitionInstance> history, List<WorkflowInstanceProperty> properties) {
+			this.instance = instance;
+			this.history = history;
+			this.properties = properties;
+		}
 	}
 }
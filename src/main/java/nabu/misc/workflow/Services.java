@@ -23,25 +23,45 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 
 import javax.jws.WebParam;
 import javax.jws.WebResult;
 import javax.jws.WebService;
 import javax.validation.constraints.NotNull;
 
+import nabu.misc.workflow.types.WorkflowBulkResult;
 import nabu.misc.workflow.types.WorkflowDefinition;
 import nabu.misc.workflow.types.WorkflowInstance;
 import nabu.misc.workflow.types.WorkflowInstance.Level;
 import nabu.misc.workflow.types.WorkflowInstanceProperty;
+import nabu.misc.workflow.types.WorkflowRecoveryStatus;
+import nabu.misc.workflow.types.WorkflowSchedulerLane;
+import nabu.misc.workflow.types.WorkflowStart;
 import nabu.misc.workflow.types.WorkflowTransitionInstance;
+import nabu.misc.workflow.types.WorkflowTransitionOutcome;
+import nabu.misc.workflow.types.WorkflowTransitionOutcome.Outcome;
+
+import org.slf4j.LoggerFactory;
+
 import be.nabu.eai.module.workflow.Workflow;
+import be.nabu.eai.module.workflow.Workflow.TransactionableAction;
+import be.nabu.eai.module.workflow.WorkflowAdmission;
+import be.nabu.eai.module.workflow.WorkflowExecutor;
+import be.nabu.eai.module.workflow.WorkflowInstanceLocks;
 import be.nabu.eai.module.workflow.WorkflowState;
 import be.nabu.eai.module.workflow.WorkflowTransition;
+import be.nabu.eai.module.workflow.provider.WorkflowManager;
 import be.nabu.eai.module.workflow.transition.WorkflowTransitionService;
+import be.nabu.eai.module.workflow.transition.WorkflowTransitionServiceInstance;
 import be.nabu.eai.module.workflow.transition.WorkflowTransitionServiceInterface;
 import be.nabu.eai.repository.EAIResourceRepository;
 import be.nabu.libs.artifacts.ArtifactResolverFactory;
@@ -51,6 +71,7 @@ import be.nabu.libs.authentication.api.TokenValidator;
 import be.nabu.libs.services.ServiceRuntime;
 import be.nabu.libs.services.api.ExecutionContext;
 import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceInstance;
 import be.nabu.libs.types.TypeUtils;
 import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.libs.types.api.ComplexType;
@@ -107,6 +128,257 @@ public class Services {
 			@WebParam(name = "groupId") String groupId, 
 			@WebParam(name = "workflowType") String workflowType, 
 			@WebParam(name = "uri") URI uri) throws ServiceException {
+		WorkflowTransitionService service = getInitialService(definitionId, transitionId);
+		ServiceRuntime runtime = new ServiceRuntime(service, executionContext);
+		
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("parentId", parentId);
+		input.set("batchId", batchId);
+		input.set("correlationId", correlationId);
+		input.set("contextId", contextId);
+		input.set("groupId", groupId);
+		input.set("workflowType", workflowType);
+		input.set("uri", uri);
+//		input.set("asynchronous", asynchronous);
+		ComplexContent run = runtime.run(input);
+		return run == null ? null : (String) run.get("workflowId");
+	}
+	
+	// start a lot of workflows at once, the workflows are created in batches and their initial transitions are run in parallel
+	// the ids are returned in the order of the starts, a failing initial transition leaves its workflow in error like a normal start would
+	// if the server can not admit more workflows, the ids of the workflows that were started are returned, the remaining starts can be retried later
+	@WebResult(name = "workflowIds")
+	public List<String> startMany(
+			@WebParam(name = "connectionId") String connectionId,
+			@NotNull @WebParam(name = "definitionId") String definitionId, 
+			@WebParam(name = "transitionId") String transitionId,
+			@WebParam(name = "starts") List<WorkflowStart> starts,
+			@WebParam(name = "batchSize") Integer batchSize,
+			@WebParam(name = "parallelism") Integer parallelism) throws ServiceException {
+		List<String> workflowIds = new ArrayList<String>();
+		if (starts == null || starts.isEmpty()) {
+			return workflowIds;
+		}
+		WorkflowTransitionService service = getInitialService(definitionId, transitionId);
+		Workflow workflow = service.getWorkflow();
+		final String connection = connectionId != null ? connectionId : (workflow.getConfig().getConnection() == null ? Workflow.deduceConnectionId(workflow) : workflow.getConfig().getConnection().getId());
+		if (batchSize == null || batchSize <= 0) {
+			batchSize = 100;
+		}
+		if (parallelism == null || parallelism <= 0) {
+			parallelism = workflow.getConfig().getExecutorPoolSize() == null ? WorkflowExecutor.DEFAULT_POOL_SIZE : workflow.getConfig().getExecutorPoolSize();
+		}
+		WorkflowManager workflowManager = workflow.getConfig().getProvider().getWorkflowManager();
+		// when creating workflows and we are interested in versioning, make sure the version is persisted somewhere
+		if (workflow.getConfig().isVersion() && workflow.getConfig().getProvider().getConfig().getMergeDefinition() != null) {
+			workflowManager.mergeDefinition(buildDefinition(workflow));
+		}
+		Token token = executionContext.getSecurityContext().getToken();
+		WorkflowAdmission admission = WorkflowAdmission.getAdmission(workflow);
+		// every start in a batch is admitted before the batch is created, the batch can not be larger than the amount of transitions we can run concurrently
+		Integer maxConcurrent = workflow.getConfig().getMaxConcurrentTransitionsPerServer();
+		if (maxConcurrent != null && maxConcurrent > 0 && batchSize > maxConcurrent) {
+			batchSize = maxConcurrent;
+		}
+		// nor can it be larger than the amount of workflows we are allowed to start at once, otherwise the admitted starts hold on to their slot while we wait for tokens
+		int burst = WorkflowAdmission.getBurst(workflow.getConfig());
+		if (burst > 0 && batchSize > burst) {
+			batchSize = burst;
+		}
+		for (int offset = 0; offset < starts.size(); offset += batchSize) {
+			List<ComplexContent> inputs = new ArrayList<ComplexContent>();
+			List<WorkflowInstance> instances = new ArrayList<WorkflowInstance>();
+			for (WorkflowStart start : starts.subList(offset, Math.min(starts.size(), offset + batchSize))) {
+				ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+				input.set("connectionId", connection);
+				input.set("workflowId", start.getWorkflowId());
+				input.set("parentId", start.getParentId());
+				input.set("batchId", start.getBatchId());
+				input.set("correlationId", start.getCorrelationId());
+				input.set("contextId", start.getContextId());
+				input.set("groupId", start.getGroupId());
+				input.set("workflowType", start.getWorkflowType());
+				input.set("uri", start.getUri());
+				if (start.getState() != null && input.getType().get("state") != null) {
+					input.set("state", start.getState());
+				}
+				if (start.getTransition() != null && input.getType().get("transition") != null) {
+					input.set("transition", start.getTransition());
+				}
+				inputs.add(input);
+				instances.add(WorkflowTransitionServiceInstance.newInstance(service, input));
+			}
+			// the starts are subject to the same admission control as individual starts, except that we wait for the start rate rather than being rejected by it
+			int admitted = 0;
+			try {
+				for (int i = 0; i < instances.size(); i++) {
+					admission.admitBulk(workflow);
+					admitted++;
+				}
+			}
+			catch (ServiceException e) {
+				for (int i = 0; i < admitted; i++) {
+					admission.release();
+				}
+				LoggerFactory.getLogger(workflow.getId()).warn("Could not admit more workflows, " + workflowIds.size() + " of " + starts.size() + " workflows were started", e);
+				return workflowIds;
+			}
+			try {
+				createWorkflows(workflow, connection, instances);
+			}
+			catch (RuntimeException e) {
+				for (int i = 0; i < admitted; i++) {
+					admission.release();
+				}
+				throw new ServiceException("WORKFLOW-BULK", "Could not create workflows, " + workflowIds.size() + " of " + starts.size() + " workflows were started: " + workflowIds, e);
+			}
+			List<Runnable> tasks = new ArrayList<Runnable>();
+			List<String> groupIds = new ArrayList<String>();
+			for (int i = 0; i < instances.size(); i++) {
+				WorkflowInstance instance = instances.get(i);
+				ComplexContent input = inputs.get(i);
+				workflowIds.add(instance.getId().toString());
+				groupIds.add(instance.getGroupId());
+				tasks.add(new Runnable() {
+					@Override
+					public void run() {
+						// the service runs the transition on the workflow we already created and admitted
+						WorkflowTransitionService precreated = new WorkflowTransitionService((WorkflowTransitionServiceInterface) service.getServiceInterface()) {
+							@Override
+							public ServiceInstance newInstance() {
+								return new WorkflowTransitionServiceInstance(this, instance);
+							}
+						};
+						try {
+							new ServiceRuntime(precreated, workflow.getRepository().newExecutionContext(token)).run(input);
+						}
+						catch (Exception e) {
+							LoggerFactory.getLogger(workflow.getId()).error("Could not start workflow " + instance.getId(), e);
+						}
+						finally {
+							admission.release();
+						}
+					}
+				});
+			}
+			// the batch is done before we create the next one, this keeps the amount of created but not yet started workflows bounded
+			try {
+				runInPool(workflow, groupIds, service.getTransition().getPriority(), tasks, parallelism, null);
+			}
+			catch (InterruptedException e) {
+				throw new ServiceException("WORKFLOW-BULK", "Interrupted while starting workflows, " + workflowIds.size() + " of " + starts.size() + " workflows were started: " + workflowIds, e);
+			}
+		}
+		return workflowIds;
+	}
+	
+	// run the tasks in the pool of the workflow, at most the given amount at a time, and wait until they are all done
+	// if the pool refuses a task, it is run in the calling thread, which slows down the caller
+	// if we are ourselves running in a workflow pool, we can not wait for other threads of the pool: if all threads are waiting, the tasks never run, so we run them inline
+	// if a rate is given, the tasks are handed off no faster than it allows, the tasks that were handed off still run in parallel
+	private static void runInPool(Workflow workflow, List<String> groupIds, Integer priority, List<Runnable> tasks, int parallelism, Rate rate) throws InterruptedException {
+		if (WorkflowExecutor.isPoolThread()) {
+			for (Runnable task : tasks) {
+				if (rate != null) {
+					rate.acquire();
+				}
+				task.run();
+			}
+			return;
+		}
+		WorkflowExecutor executor = WorkflowExecutor.getExecutor(workflow);
+		Semaphore permits = new Semaphore(parallelism);
+		CountDownLatch done = new CountDownLatch(tasks.size());
+		for (int i = 0; i < tasks.size(); i++) {
+			Runnable task = tasks.get(i);
+			// the tasks that were already handed off run regardless, we simply wait for them if we are interrupted here
+			if (rate != null) {
+				try {
+					rate.acquire();
+				}
+				catch (InterruptedException e) {
+					for (int j = i; j < tasks.size(); j++) {
+						done.countDown();
+					}
+					done.await();
+					throw e;
+				}
+			}
+			// once we have handed off a task it runs regardless, so we don't stop halfway on an interrupt
+			permits.acquireUninterruptibly();
+			Runnable wrapper = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					}
+					finally {
+						permits.release();
+						done.countDown();
+					}
+				}
+			};
+			try {
+				executor.submit(workflow, groupIds.get(i), priority, wrapper);
+			}
+			catch (ServiceException e) {
+				wrapper.run();
+			}
+		}
+		done.await();
+	}
+	
+	// spaces out the hand offs of a bulk operation, the rate carries over from one page to the next
+	private static class Rate {
+		private long interval, nextAllowed;
+		
+		public Rate(long interval) {
+			this.interval = interval;
+		}
+		
+		public void acquire() throws InterruptedException {
+			long now = System.currentTimeMillis();
+			if (nextAllowed > now) {
+				Thread.sleep(nextAllowed - now);
+			}
+			nextAllowed = Math.max(now, nextAllowed) + interval;
+		}
+	}
+	
+	private static void createWorkflows(Workflow workflow, String connectionId, List<WorkflowInstance> instances) {
+		WorkflowManager workflowManager = workflow.getConfig().getProvider().getWorkflowManager();
+		// not all providers support batched creation
+		boolean batched = workflow.getConfig().getProvider().getConfig().getCreateWorkflows() != null;
+		// the children are counted per batch in the same transaction as they are created
+		final Map<UUID, Long> children = new LinkedHashMap<UUID, Long>();
+		if (workflow.getConfig().getProvider().hasBatchCounters()) {
+			for (WorkflowInstance instance : instances) {
+				if (instance.getBatchId() != null) {
+					Long count = children.get(instance.getBatchId());
+					children.put(instance.getBatchId(), count == null ? 1 : count + 1);
+				}
+			}
+		}
+		Workflow.runTransactionally(new TransactionableAction<Void>() {
+			@Override
+			public Void call(String transactionId) throws Exception {
+				if (batched) {
+					workflowManager.createWorkflows(connectionId, transactionId, instances);
+				}
+				else {
+					for (WorkflowInstance instance : instances) {
+						workflowManager.createWorkflow(connectionId, transactionId, instance);
+					}
+				}
+				for (Map.Entry<UUID, Long> child : children.entrySet()) {
+					workflowManager.adjustBatchCounters(connectionId, transactionId, child.getKey(), child.getValue(), 0l, 0l);
+				}
+				return null;
+			}
+		});
+	}
+	
+	private WorkflowTransitionService getInitialService(String definitionId, String transitionId) {
 		Workflow resolve = (Workflow) ArtifactResolverFactory.getInstance().getResolver().resolve(definitionId);
 		if (resolve == null) {
 			throw new IllegalArgumentException("Could not find a workflow with id: " + definitionId);
@@ -134,27 +406,150 @@ public class Services {
 		if (transition == null) {
 			throw new IllegalArgumentException("No initial transition found that matches: " + transitionId);
 		}
-		
-		WorkflowTransitionService service = new WorkflowTransitionService(new WorkflowTransitionServiceInterface(resolve, state, transition));
-		ServiceRuntime runtime = new ServiceRuntime(service, executionContext);
-		
-		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
-		input.set("parentId", parentId);
-		input.set("batchId", batchId);
-		input.set("correlationId", correlationId);
-		input.set("contextId", contextId);
-		input.set("groupId", groupId);
-		input.set("workflowType", workflowType);
-		input.set("uri", uri);
-//		input.set("asynchronous", asynchronous);
-		ComplexContent run = runtime.run(input);
-		return run == null ? null : (String) run.get("workflowId");
+		return new WorkflowTransitionService(new WorkflowTransitionServiceInterface(resolve, state, transition));
 	}
 	
 	public void run(
 			@NotNull @WebParam(name = "definitionId") String definitionId, 
 			@NotNull @WebParam(name = "transitionId") String transitionId, 
 			@WebParam(name = "workflowId") String workflowId) throws ServiceException {
+		WorkflowTransitionService service = getTransitionService(definitionId, transitionId);
+		ServiceRuntime runtime = new ServiceRuntime(service, executionContext);
+		
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("workflowId", workflowId);
+		
+		runtime.run(input);
+	}
+	
+	// run a transition on all the workflows that match the filter, the workflows are processed page by page with bounded parallelism
+	// workflows that are no longer in the correct state by the time we get to them are skipped
+	// if a limit is set, the processing stops after that many workflows and can be resumed by passing in the cursor of the result
+	@WebResult(name = "result")
+	public WorkflowBulkResult runMany(
+			@NotNull @WebParam(name = "definitionId") String definitionId, 
+			@NotNull @WebParam(name = "transitionId") String transitionId,
+			@WebParam(name = "stateId") UUID stateId, 
+			@WebParam(name = "transactionState") Level level, 
+			@WebParam(name = "from") Date from, 
+			@WebParam(name = "until") Date until,
+			@WebParam(name = "environment") String environment, 
+			@WebParam(name = "parentId") UUID parentId, 
+			@WebParam(name = "batchId") UUID batchId, 
+			@WebParam(name = "correlationId") String correlationId,
+			@WebParam(name = "contextId") String contextId,
+			@WebParam(name = "groupId") String groupId,
+			@WebParam(name = "workflowType") String workflowType,
+			@WebParam(name = "properties") List<KeyValuePair> properties,
+			@WebParam(name = "running") Boolean running,
+			@WebParam(name = "afterId") UUID afterId,
+			@WebParam(name = "limit") Integer limit,
+			@WebParam(name = "pageSize") Integer pageSize,
+			@WebParam(name = "parallelism") Integer parallelism,
+			@WebParam(name = "maxPerSecond") Double maxPerSecond) throws ServiceException {
+		WorkflowTransitionService service = getTransitionService(definitionId, transitionId);
+		Workflow workflow = service.getWorkflow();
+		WorkflowManager workflowManager = workflow.getConfig().getProvider().getWorkflowManager();
+		String connectionId = workflow.getConfig().getConnection() == null ? null : workflow.getConfig().getConnection().getId();
+		// keyset paging is stable while we are changing the workflows, offset paging is not so we have to keep track of what we've seen
+		boolean keyset = workflow.getConfig().getProvider().getConfig().getGetWorkflowsAfter() != null;
+		if (pageSize == null || pageSize <= 0) {
+			pageSize = 100;
+		}
+		if (parallelism == null || parallelism <= 0) {
+			parallelism = workflow.getConfig().getExecutorPoolSize() == null ? WorkflowExecutor.DEFAULT_POOL_SIZE : workflow.getConfig().getExecutorPoolSize();
+		}
+		Rate rate = maxPerSecond == null || maxPerSecond <= 0 ? null : new Rate((long) (1000 / maxPerSecond));
+		Token token = executionContext.getSecurityContext().getToken();
+		
+		WorkflowBulkResult result = new WorkflowBulkResult();
+		result.setCursor(afterId);
+		Set<UUID> seen = new HashSet<UUID>();
+		int offset = 0;
+		try {
+			while (limit == null || result.getOutcomes().size() < limit) {
+				int size = limit == null ? pageSize : Math.min(pageSize, limit - result.getOutcomes().size());
+				List<WorkflowInstance> page = keyset
+					? workflowManager.getWorkflowsAfter(connectionId, definitionId, stateId, level, from, until, environment, parentId, batchId, correlationId, contextId, groupId, workflowType, properties, result.getCursor(), size, running)
+					: workflowManager.getWorkflows(connectionId, definitionId, stateId, level, from, until, environment, parentId, batchId, correlationId, contextId, groupId, workflowType, properties, offset, size, running);
+				if (page == null || page.isEmpty()) {
+					break;
+				}
+				List<WorkflowInstance> selected = new ArrayList<WorkflowInstance>();
+				for (WorkflowInstance instance : page) {
+					// workflows that we already processed but still match the filter are skipped by moving the offset
+					if (!keyset && !seen.add(instance.getId())) {
+						offset++;
+						continue;
+					}
+					selected.add(instance);
+				}
+				WorkflowTransitionOutcome [] outcomes = new WorkflowTransitionOutcome[selected.size()];
+				List<Runnable> tasks = new ArrayList<Runnable>();
+				List<String> groupIds = new ArrayList<String>();
+				for (int i = 0; i < selected.size(); i++) {
+					WorkflowInstance instance = selected.get(i);
+					int index = i;
+					groupIds.add(instance.getGroupId());
+					tasks.add(new Runnable() {
+						@Override
+						public void run() {
+							outcomes[index] = runTransition(service, token, instance.getId());
+						}
+					});
+				}
+				// the rate is applied when handing off, the page is done before we fetch the next one
+				runInPool(workflow, groupIds, service.getTransition().getPriority(), tasks, parallelism, rate);
+				for (WorkflowTransitionOutcome outcome : outcomes) {
+					switch (outcome.getOutcome()) {
+						case SUCCEEDED: result.setSucceeded(result.getSucceeded() + 1); break;
+						case SKIPPED: result.setSkipped(result.getSkipped() + 1); break;
+						case FAILED: result.setFailed(result.getFailed() + 1); break;
+					}
+					result.getOutcomes().add(outcome);
+				}
+				if (keyset) {
+					result.setCursor(page.get(page.size() - 1).getId());
+				}
+				if (page.size() < size) {
+					break;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			throw new ServiceException("WORKFLOW-BULK", "Interrupted while running transition '" + transitionId + "' in bulk", e);
+		}
+		return result;
+	}
+	
+	private static WorkflowTransitionOutcome runTransition(WorkflowTransitionService service, Token token, UUID workflowId) {
+		WorkflowTransitionOutcome outcome = new WorkflowTransitionOutcome();
+		outcome.setWorkflowId(workflowId);
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("workflowId", workflowId);
+		// the filter is evaluated up front, the workflow may have moved on in the meantime
+		input.set("bestEffort", true);
+		try {
+			ComplexContent output = new ServiceRuntime(service, service.getWorkflow().getRepository().newExecutionContext(token)).run(input);
+			// a best effort transition has no output if it was skipped
+			outcome.setOutcome(output == null ? Outcome.SKIPPED : Outcome.SUCCEEDED);
+		}
+		catch (Exception e) {
+			outcome.setOutcome(Outcome.FAILED);
+			outcome.setErrorMessage(e.getMessage());
+			Throwable current = e;
+			while (current != null) {
+				if (current instanceof ServiceException) {
+					outcome.setErrorCode(((ServiceException) current).getCode());
+					break;
+				}
+				current = current.getCause();
+			}
+		}
+		return outcome;
+	}
+	
+	private WorkflowTransitionService getTransitionService(String definitionId, String transitionId) {
 		Workflow resolve = (Workflow) ArtifactResolverFactory.getInstance().getResolver().resolve(definitionId);
 		if (resolve == null) {
 			throw new IllegalArgumentException("Could not find a workflow with id: " + definitionId);
@@ -173,14 +568,7 @@ public class Services {
 		if (transition == null) {
 			throw new IllegalArgumentException("No transition found that matches: " + transitionId);
 		}
-		
-		WorkflowTransitionService service = new WorkflowTransitionService(new WorkflowTransitionServiceInterface(resolve, state, transition));
-		ServiceRuntime runtime = new ServiceRuntime(service, executionContext);
-		
-		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
-		input.set("workflowId", workflowId);
-		
-		runtime.run(input);
+		return new WorkflowTransitionService(new WorkflowTransitionServiceInterface(resolve, state, transition));
 	}
 	
 	public void recover(@NotNull @WebParam(name = "definitionId") String definitionId) {
@@ -191,23 +579,70 @@ public class Services {
 		resolve.recover();
 	}
 	
+	// the progress of the last recovery of the workflow on this server
+	@WebResult(name = "status")
+	public WorkflowRecoveryStatus getRecoveryStatus(@NotNull @WebParam(name = "definitionId") String definitionId) {
+		Workflow resolve = (Workflow) ArtifactResolverFactory.getInstance().getResolver().resolve(definitionId);
+		if (resolve == null) {
+			throw new IllegalArgumentException("Could not find a workflow with id: " + definitionId);
+		}
+		return resolve.getRecovery().getStatus();
+	}
+	
+	// the system that owns the workflow instance, if the workflow is not sharded, this is always the current system
+	@WebResult(name = "owner")
+	public String getOwner(@NotNull @WebParam(name = "definitionId") String definitionId, @NotNull @WebParam(name = "workflowId") UUID workflowId) {
+		Workflow resolve = (Workflow) ArtifactResolverFactory.getInstance().getResolver().resolve(definitionId);
+		if (resolve == null) {
+			throw new IllegalArgumentException("Could not find a workflow with id: " + definitionId);
+		}
+		return resolve.getShards().getOwner(workflowId);
+	}
+	
+	// whether the workflow is done recovering on this server, while it is recovering in the background it is only partially available
+	@WebResult(name = "ready")
+	public Boolean isReady(@NotNull @WebParam(name = "definitionId") String definitionId) {
+		Workflow resolve = (Workflow) ArtifactResolverFactory.getInstance().getResolver().resolve(definitionId);
+		if (resolve == null) {
+			throw new IllegalArgumentException("Could not find a workflow with id: " + definitionId);
+		}
+		return !resolve.getRecovery().isRecovering();
+	}
+	
 	@WebResult(name = "properties")
 	public List<WorkflowInstanceProperty> getProperties(@NotNull @WebParam(name = "definitionId") String definitionId, @NotNull @WebParam(name = "workflowId") UUID workflowId, @WebParam(name = "retainHistory") Boolean retainHistory) {
 		Workflow resolve = (Workflow) ArtifactResolverFactory.getInstance().getResolver().resolve(definitionId);
 		if (resolve == null) {
 			throw new IllegalArgumentException("Could not find a workflow with id: " + definitionId);
 		}
-		List<WorkflowInstanceProperty> workflowProperties = resolve.getConfig().getProvider().getWorkflowManager().getWorkflowProperties(
-			resolve.getConfig().getConnection() == null ? null : resolve.getConfig().getConnection().getId(), 
-			workflowId
-		);
-		// unless we want to retain the history, we want only version for each unique key (the last version)
+		List<WorkflowInstanceProperty> workflowProperties = getProperties(resolve, workflowId, retainHistory != null && retainHistory);
+		// unless we want the history, removed properties (which have no value) are of no interest
 		if (workflowProperties != null && (retainHistory == null || !retainHistory)) {
-			Map<String, WorkflowInstanceProperty> properties = new HashMap<String, WorkflowInstanceProperty>();
-			for (WorkflowInstanceProperty property : workflowProperties) {
-				properties.put(property.getKey(), property);
+			Iterator<WorkflowInstanceProperty> iterator = workflowProperties.iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().getValue() == null) {
+					iterator.remove();
+				}
+			}
+		}
+		return workflowProperties;
+	}
+	
+	private static List<WorkflowInstanceProperty> getProperties(Workflow resolve, UUID workflowId, boolean retainHistory) {
+		String connectionId = resolve.getConfig().getConnection() == null ? null : resolve.getConfig().getConnection().getId();
+		// the current properties already contain only the last version of each key
+		// workflows that predate the view have no rows in it yet, the history has the same information
+		// we don't backfill here as we don't hold the instance lock, the next transition or update will
+		if (!retainHistory && resolve.getConfig().getProvider().hasCurrentWorkflowProperties()) {
+			List<WorkflowInstanceProperty> currentProperties = resolve.getConfig().getProvider().getWorkflowManager().getCurrentWorkflowProperties(connectionId, workflowId);
+			if (currentProperties != null && !currentProperties.isEmpty()) {
+				return new ArrayList<WorkflowInstanceProperty>(currentProperties);
 			}
-			workflowProperties = new ArrayList<WorkflowInstanceProperty>(properties.values());
+		}
+		List<WorkflowInstanceProperty> workflowProperties = resolve.getConfig().getProvider().getWorkflowManager().getWorkflowProperties(connectionId, workflowId);
+		// unless we want to retain the history, we want only version for each unique key (the last version)
+		if (workflowProperties != null && !retainHistory) {
+			workflowProperties = Workflow.getLatestProperties(workflowProperties);
 		}
 		return workflowProperties;
 	}
@@ -221,59 +656,71 @@ public class Services {
 		if (resolve == null) {
 			throw new IllegalArgumentException("Could not find a workflow with id: " + definitionId);
 		}
-		List<WorkflowTransitionInstance> history = getHistory(definitionId, workflowId);
-		WorkflowTransitionInstance transition = history.get(history.size() - 1);
-		// we bind the properties to the last transition that has occurred
-		// this makes it slightly harder in retrospect to examine manually updated properties
-		// but it does allow the properties to exist within the temporal hierarchy where we can determine whether the property overwrites an existing value from an earlier transition or is overwritten in turn in a later transition
-		List<WorkflowInstanceProperty> existingProperties = getProperties(definitionId, workflowId, false);
-		Iterator<WorkflowInstanceProperty> iterator = existingProperties.iterator();
-		Map<String, WorkflowInstanceProperty> hash = new HashMap<String, WorkflowInstanceProperty>();
-		while (iterator.hasNext()) {
-			WorkflowInstanceProperty next = iterator.next();
-			if (!next.getTransitionId().equals(transition.getId())) {
-				iterator.remove();
-			}
-			else {
-				hash.put(next.getKey(), next);
-			}
-		}
-		List<WorkflowInstanceProperty> newProperties = new ArrayList<WorkflowInstanceProperty>();
-		List<WorkflowInstanceProperty> updatedProperties = new ArrayList<WorkflowInstanceProperty>();
-		for (KeyValuePair property : properties) {
-			if (hash.containsKey(property.getKey())) {
-				WorkflowInstanceProperty workflowInstanceProperty = hash.get(property.getKey());
-				workflowInstanceProperty.setValue(property.getValue());
-				updatedProperties.add(workflowInstanceProperty);
-			}
-			else {
-				WorkflowInstanceProperty workflowInstanceProperty = new WorkflowInstanceProperty();
-				workflowInstanceProperty.setId(UUID.randomUUID());
-				workflowInstanceProperty.setKey(property.getKey());
-				workflowInstanceProperty.setValue(property.getValue());
-				workflowInstanceProperty.setTransitionId(transition.getId());
-				workflowInstanceProperty.setWorkflowId(workflowId);
-				newProperties.add(workflowInstanceProperty);
-			}
-		}
-		if (!updatedProperties.isEmpty()) {
-			resolve.getConfig().getProvider().getWorkflowManager().updateWorkflowProperties(
-				resolve.getConfig().getConnection() == null ? null : resolve.getConfig().getConnection().getId(), 
-				null, 
-				updatedProperties
-			);
+		String connectionId = resolve.getConfig().getConnection() == null ? null : resolve.getConfig().getConnection().getId();
+		// we don't want a transition to interleave with the manual update
+		WorkflowInstanceLocks.getInstance().lock(workflowId);
+		try {
+			List<WorkflowTransitionInstance> history = getHistory(definitionId, workflowId);
+			WorkflowTransitionInstance transition = history.get(history.size() - 1);
+			// we bind the properties to the last transition that has occurred
+			// this makes it slightly harder in retrospect to examine manually updated properties
+			// but it does allow the properties to exist within the temporal hierarchy where we can determine whether the property overwrites an existing value from an earlier transition or is overwritten in turn in a later transition
+			// this includes removed properties so we can overwrite a removal in the same transition
+			List<WorkflowInstanceProperty> existingProperties = Workflow.getLatestProperties(resolve.getCurrentProperties(connectionId, workflowId));
+			Iterator<WorkflowInstanceProperty> iterator = existingProperties.iterator();
+			Map<String, WorkflowInstanceProperty> hash = new HashMap<String, WorkflowInstanceProperty>();
+			while (iterator.hasNext()) {
+				WorkflowInstanceProperty next = iterator.next();
+				if (!next.getTransitionId().equals(transition.getId())) {
+					iterator.remove();
+				}
+				else {
+					hash.put(next.getKey(), next);
+				}
+			}
+			List<WorkflowInstanceProperty> newProperties = new ArrayList<WorkflowInstanceProperty>();
+			List<WorkflowInstanceProperty> updatedProperties = new ArrayList<WorkflowInstanceProperty>();
+			for (KeyValuePair property : properties) {
+				if (hash.containsKey(property.getKey())) {
+					WorkflowInstanceProperty workflowInstanceProperty = hash.get(property.getKey());
+					workflowInstanceProperty.setValue(property.getValue());
+					updatedProperties.add(workflowInstanceProperty);
+				}
+				else {
+					WorkflowInstanceProperty workflowInstanceProperty = new WorkflowInstanceProperty();
+					workflowInstanceProperty.setId(UUID.randomUUID());
+					workflowInstanceProperty.setKey(property.getKey());
+					workflowInstanceProperty.setValue(property.getValue());
+					workflowInstanceProperty.setTransitionId(transition.getId());
+					workflowInstanceProperty.setWorkflowId(workflowId);
+					newProperties.add(workflowInstanceProperty);
+				}
+			}
+			final List<WorkflowInstanceProperty> allProperties = new ArrayList<WorkflowInstanceProperty>();
+			allProperties.addAll(newProperties);
+			allProperties.addAll(updatedProperties);
+			// the history and the view are written in the same transaction so they can not drift apart
+			Workflow.runTransactionally(new TransactionableAction<Void>() {
+				@Override
+				public Void call(String transactionId) throws Exception {
+					WorkflowManager workflowManager = resolve.getConfig().getProvider().getWorkflowManager();
+					if (!updatedProperties.isEmpty()) {
+						workflowManager.updateWorkflowProperties(connectionId, transactionId, updatedProperties);
+					}
+					if (!newProperties.isEmpty()) {
+						workflowManager.createWorkflowProperties(connectionId, transactionId, newProperties);
+					}
+					if (resolve.getConfig().getProvider().hasCurrentWorkflowProperties()) {
+						workflowManager.mergeCurrentWorkflowProperties(connectionId, transactionId, allProperties);
+					}
+					return null;
+				}
+			});
+			return allProperties;
 		}
-		if (!newProperties.isEmpty()) {
-			resolve.getConfig().getProvider().getWorkflowManager().createWorkflowProperties(
-				resolve.getConfig().getConnection() == null ? null : resolve.getConfig().getConnection().getId(), 
-				null, 
-				newProperties
-			);
+		finally {
+			WorkflowInstanceLocks.getInstance().unlock(workflowId);
 		}
-		List<WorkflowInstanceProperty> allProperties = new ArrayList<WorkflowInstanceProperty>();
-		allProperties.addAll(newProperties);
-		allProperties.addAll(updatedProperties);
-		return allProperties;
 	}
 	
 	@WebResult(name = "transitions")
@@ -557,6 +1004,24 @@ public class Services {
 		return states;
 	}
 	
+	// the amount of transitions on this server that are waiting for another transition on the same instance to finish
+	@WebResult(name = "queueDepth")
+	public Integer getQueueDepth(@WebParam(name = "workflowId") UUID workflowId) {
+		return workflowId == null ? WorkflowInstanceLocks.getInstance().getQueueDepth() : WorkflowInstanceLocks.getInstance().getQueueDepth(workflowId);
+	}
+	
+	// the lanes of the workflow pools that currently have queued work
+	@WebResult(name = "lanes")
+	public List<WorkflowSchedulerLane> getSchedulerLanes(@WebParam(name = "executor") String executor) {
+		List<WorkflowSchedulerLane> lanes = new ArrayList<WorkflowSchedulerLane>();
+		for (WorkflowExecutor workflowExecutor : WorkflowExecutor.getExecutors()) {
+			if (executor == null || executor.equals(workflowExecutor.getName())) {
+				lanes.addAll(workflowExecutor.getLanes());
+			}
+		}
+		return lanes;
+	}
+	
 	@WebResult(name = "definitions")
 	public List<WorkflowDefinition> getDefinitions() {
 		List<Workflow> artifacts = EAIResourceRepository.getInstance().getArtifacts(Workflow.class);
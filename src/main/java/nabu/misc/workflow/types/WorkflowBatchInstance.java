@@ -27,7 +27,7 @@ import be.nabu.libs.types.api.annotation.Field;
 import nabu.misc.workflow.types.WorkflowInstance.Level;
 
 @ComplexTypeDescriptor(collectionName = "WorkflowBatchInstances",
-	propOrder = { "id", "workflowId", "transitionId", "systemId", "started", "created", "stopped", "state" })
+	propOrder = { "id", "workflowId", "transitionId", "systemId", "started", "created", "stopped", "state", "remaining", "succeeded", "failed" })
 public class WorkflowBatchInstance {
 	private UUID id, workflowId, transitionId;
 	// the id of the batch and of the workflow that created the batch as well as the transition that created the batch
@@ -37,6 +37,9 @@ public class WorkflowBatchInstance {
 	private Date started, created, stopped;
 	// the state of the batch
 	private Level state;
+	// the amount of children that are not yet done (plus one for the transition that creates them while it is running)
+	// and the amount of children that succeeded or failed, these are only tracked if the provider supports counters
+	private Long remaining, succeeded, failed;
 	
 	@NotNull
 	@Field(primary = true)
@@ -94,4 +97,22 @@ public class WorkflowBatchInstance {
 	public void setSystemId(String systemId) {
 		this.systemId = systemId;
 	}
+	public Long getRemaining() {
+		return remaining;
+	}
+	public void setRemaining(Long remaining) {
+		this.remaining = remaining;
+	}
+	public Long getSucceeded() {
+		return succeeded;
+	}
+	public void setSucceeded(Long succeeded) {
+		this.succeeded = succeeded;
+	}
+	public Long getFailed() {
+		return failed;
+	}
+	public void setFailed(Long failed) {
+		this.failed = failed;
+	}
 }
@@ -0,0 +1,69 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.misc.workflow.types;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+// the result of a bulk operation, if it was stopped before all workflows were processed, the cursor can be used to resume it
+@XmlRootElement(name = "workflowBulkResult")
+@XmlType(propOrder = { "succeeded", "skipped", "failed", "cursor", "outcomes" })
+public class WorkflowBulkResult {
+	private int succeeded, skipped, failed;
+	// the id of the last workflow that was processed (only available if the provider supports keyset paging)
+	private UUID cursor;
+	private List<WorkflowTransitionOutcome> outcomes;
+	
+	public int getSucceeded() {
+		return succeeded;
+	}
+	public void setSucceeded(int succeeded) {
+		this.succeeded = succeeded;
+	}
+	public int getSkipped() {
+		return skipped;
+	}
+	public void setSkipped(int skipped) {
+		this.skipped = skipped;
+	}
+	public int getFailed() {
+		return failed;
+	}
+	public void setFailed(int failed) {
+		this.failed = failed;
+	}
+	public UUID getCursor() {
+		return cursor;
+	}
+	public void setCursor(UUID cursor) {
+		this.cursor = cursor;
+	}
+	public List<WorkflowTransitionOutcome> getOutcomes() {
+		if (outcomes == null) {
+			outcomes = new ArrayList<WorkflowTransitionOutcome>();
+		}
+		return outcomes;
+	}
+	public void setOutcomes(List<WorkflowTransitionOutcome> outcomes) {
+		this.outcomes = outcomes;
+	}
+}
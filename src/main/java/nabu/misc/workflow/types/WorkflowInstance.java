@@ -27,7 +27,7 @@ import be.nabu.libs.types.api.annotation.ComplexTypeDescriptor;
 import be.nabu.libs.types.api.annotation.Field;
 
 @ComplexTypeDescriptor(collectionName = "WorkflowInstances",
-	propOrder = { "id", "definitionId", "version", "parentId", "batchId", "contextId", "groupId", "correlationId", "workflowType", "uri", "started", "stopped", "environment", "transitionState", "stateId", "anonymized" })
+	propOrder = { "id", "definitionId", "version", "parentId", "batchId", "contextId", "groupId", "correlationId", "workflowType", "uri", "started", "stopped", "environment", "transitionState", "stateId", "anonymized", "lastSequence", "lastTransitionId", "revision" })
 public class WorkflowInstance {
 	private UUID id, parentId, batchId, stateId;
 	private String definitionId;
@@ -38,6 +38,11 @@ public class WorkflowInstance {
 	// the version of the workflow you are running
 	private Long version;
 	private Boolean anonymized;
+	// the sequence and id of the last transition that was started, this allows us to add a transition without loading the history
+	private Integer lastSequence;
+	private UUID lastTransitionId;
+	// incremented with every (conditional) update, this allows for optimistic concurrency
+	private Long revision;
 	
 	@Field(primary = true)
 	@NotNull
@@ -177,4 +182,24 @@ public class WorkflowInstance {
 	public void setAnonymized(Boolean anonymized) {
 		this.anonymized = anonymized;
 	}
+	public Integer getLastSequence() {
+		return lastSequence;
+	}
+	public void setLastSequence(Integer lastSequence) {
+		this.lastSequence = lastSequence;
+	}
+	
+	public UUID getLastTransitionId() {
+		return lastTransitionId;
+	}
+	public void setLastTransitionId(UUID lastTransitionId) {
+		this.lastTransitionId = lastTransitionId;
+	}
+	
+	public Long getRevision() {
+		return revision;
+	}
+	public void setRevision(Long revision) {
+		this.revision = revision;
+	}
 }
@@ -0,0 +1,83 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.misc.workflow.types;
+
+import java.util.Date;
+
+import javax.validation.constraints.NotNull;
+
+import be.nabu.libs.types.api.annotation.ComplexTypeDescriptor;
+
+// the lease a system holds on the transitions of a workflow definition that it is running
+// there is at most one lease per definition and system, it should be unique on both
+@ComplexTypeDescriptor(collectionName = "WorkflowLeases",
+	propOrder = { "definitionId", "systemId", "renewed", "expires", "takenOverBy", "takenOver" })
+public class WorkflowLease {
+	private String definitionId, systemId;
+	// when the system last renewed its lease and until when it is valid
+	private Date renewed, expires;
+	// the system that took over the transitions after the lease expired
+	private String takenOverBy;
+	private Date takenOver;
+	
+	@NotNull
+	public String getDefinitionId() {
+		return definitionId;
+	}
+	public void setDefinitionId(String definitionId) {
+		this.definitionId = definitionId;
+	}
+	
+	@NotNull
+	public String getSystemId() {
+		return systemId;
+	}
+	public void setSystemId(String systemId) {
+		this.systemId = systemId;
+	}
+	
+	@NotNull
+	public Date getRenewed() {
+		return renewed;
+	}
+	public void setRenewed(Date renewed) {
+		this.renewed = renewed;
+	}
+	
+	@NotNull
+	public Date getExpires() {
+		return expires;
+	}
+	public void setExpires(Date expires) {
+		this.expires = expires;
+	}
+	
+	public String getTakenOverBy() {
+		return takenOverBy;
+	}
+	public void setTakenOverBy(String takenOverBy) {
+		this.takenOverBy = takenOverBy;
+	}
+	
+	public Date getTakenOver() {
+		return takenOver;
+	}
+	public void setTakenOver(Date takenOver) {
+		this.takenOver = takenOver;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.misc.workflow.types;
+
+import java.util.Date;
+import java.util.UUID;
+
+import javax.validation.constraints.NotNull;
+
+import be.nabu.libs.types.api.annotation.ComplexTypeDescriptor;
+import be.nabu.libs.types.api.annotation.Field;
+
+// a transition that has to be handed off to its target, it is recorded in the same transaction as the state change that triggered it
+// the entries are queried per system, it should be indexed on system id and creation date
+@ComplexTypeDescriptor(collectionName = "WorkflowOutboxEntries",
+	propOrder = { "id", "workflowId", "definitionId", "transitionId", "systemId", "target", "parameters", "created", "claimedBy", "claimExpires" })
+public class WorkflowOutboxEntry {
+	private UUID id, workflowId, transitionId;
+	private String definitionId, systemId, target;
+	// the resolved target parameters, form encoded
+	private String parameters;
+	private Date created;
+	// when consumed as a work queue: the system that claimed the entry and until when the claim holds
+	private String claimedBy;
+	private Date claimExpires;
+	
+	@NotNull
+	@Field(primary = true)
+	public UUID getId() {
+		return id;
+	}
+	public void setId(UUID id) {
+		this.id = id;
+	}
+	
+	@Field(foreignKey = "nabu.misc.workflow.types.WorkflowInstance:id")
+	@NotNull
+	public UUID getWorkflowId() {
+		return workflowId;
+	}
+	public void setWorkflowId(UUID workflowId) {
+		this.workflowId = workflowId;
+	}
+	
+	@NotNull
+	public String getDefinitionId() {
+		return definitionId;
+	}
+	public void setDefinitionId(String definitionId) {
+		this.definitionId = definitionId;
+	}
+	
+	@NotNull
+	public UUID getTransitionId() {
+		return transitionId;
+	}
+	public void setTransitionId(UUID transitionId) {
+		this.transitionId = transitionId;
+	}
+	
+	// the system that recorded the entry is responsible for relaying it
+	@NotNull
+	public String getSystemId() {
+		return systemId;
+	}
+	public void setSystemId(String systemId) {
+		this.systemId = systemId;
+	}
+	
+	@NotNull
+	public String getTarget() {
+		return target;
+	}
+	public void setTarget(String target) {
+		this.target = target;
+	}
+	
+	public String getParameters() {
+		return parameters;
+	}
+	public void setParameters(String parameters) {
+		this.parameters = parameters;
+	}
+	
+	@NotNull
+	public Date getCreated() {
+		return created;
+	}
+	public void setCreated(Date created) {
+		this.created = created;
+	}
+	
+	public String getClaimedBy() {
+		return claimedBy;
+	}
+	public void setClaimedBy(String claimedBy) {
+		this.claimedBy = claimedBy;
+	}
+	
+	public Date getClaimExpires() {
+		return claimExpires;
+	}
+	public void setClaimExpires(Date claimExpires) {
+		this.claimExpires = claimExpires;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.misc.workflow.types;
+
+import java.util.Date;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+// the progress of the (last) recovery of a workflow definition on this server
+@XmlRootElement(name = "workflowRecoveryStatus")
+@XmlType(propOrder = { "definitionId", "running", "found", "reverted", "skipped", "failed", "started", "stopped" })
+public class WorkflowRecoveryStatus {
+	private String definitionId;
+	private boolean running;
+	// the amount of interrupted transitions that were found, reverted, skipped because the workflow had moved on and that could not be reverted
+	private long found, reverted, skipped, failed;
+	private Date started, stopped;
+	
+	public String getDefinitionId() {
+		return definitionId;
+	}
+	public void setDefinitionId(String definitionId) {
+		this.definitionId = definitionId;
+	}
+	public boolean isRunning() {
+		return running;
+	}
+	public void setRunning(boolean running) {
+		this.running = running;
+	}
+	public long getFound() {
+		return found;
+	}
+	public void setFound(long found) {
+		this.found = found;
+	}
+	public long getReverted() {
+		return reverted;
+	}
+	public void setReverted(long reverted) {
+		this.reverted = reverted;
+	}
+	public long getSkipped() {
+		return skipped;
+	}
+	public void setSkipped(long skipped) {
+		this.skipped = skipped;
+	}
+	public long getFailed() {
+		return failed;
+	}
+	public void setFailed(long failed) {
+		this.failed = failed;
+	}
+	public Date getStarted() {
+		return started;
+	}
+	public void setStarted(Date started) {
+		this.started = started;
+	}
+	public Date getStopped() {
+		return stopped;
+	}
+	public void setStopped(Date stopped) {
+		this.stopped = stopped;
+	}
+}
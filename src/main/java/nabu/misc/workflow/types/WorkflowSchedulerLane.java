@@ -0,0 +1,69 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.misc.workflow.types;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+// the state of a single lane in a workflow executor
+@XmlRootElement(name = "workflowSchedulerLane")
+@XmlType(propOrder = { "executor", "key", "weight", "queued", "highestPriority", "oldestWaitTime" })
+public class WorkflowSchedulerLane {
+	// the executor and the fairness key (definition or group) of the lane
+	private String executor, key;
+	private int weight, queued, highestPriority;
+	// how long (in ms) the oldest queued work has been waiting
+	private long oldestWaitTime;
+	
+	public String getExecutor() {
+		return executor;
+	}
+	public void setExecutor(String executor) {
+		this.executor = executor;
+	}
+	public String getKey() {
+		return key;
+	}
+	public void setKey(String key) {
+		this.key = key;
+	}
+	public int getWeight() {
+		return weight;
+	}
+	public void setWeight(int weight) {
+		this.weight = weight;
+	}
+	public int getQueued() {
+		return queued;
+	}
+	public void setQueued(int queued) {
+		this.queued = queued;
+	}
+	public int getHighestPriority() {
+		return highestPriority;
+	}
+	public void setHighestPriority(int highestPriority) {
+		this.highestPriority = highestPriority;
+	}
+	public long getOldestWaitTime() {
+		return oldestWaitTime;
+	}
+	public void setOldestWaitTime(long oldestWaitTime) {
+		this.oldestWaitTime = oldestWaitTime;
+	}
+}
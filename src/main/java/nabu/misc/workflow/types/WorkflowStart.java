@@ -0,0 +1,96 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.misc.workflow.types;
+
+import java.net.URI;
+import java.util.UUID;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+// the input for a single workflow in a bulk start
+@XmlRootElement(name = "workflowStart")
+@XmlType(propOrder = { "workflowId", "parentId", "batchId", "correlationId", "contextId", "groupId", "workflowType", "uri", "state", "transition" })
+public class WorkflowStart {
+	private UUID workflowId, parentId, batchId;
+	private String correlationId, contextId, groupId, workflowType;
+	private URI uri;
+	// the state and transition input of the initial transition
+	private Object state, transition;
+	
+	public UUID getWorkflowId() {
+		return workflowId;
+	}
+	public void setWorkflowId(UUID workflowId) {
+		this.workflowId = workflowId;
+	}
+	public UUID getParentId() {
+		return parentId;
+	}
+	public void setParentId(UUID parentId) {
+		this.parentId = parentId;
+	}
+	public UUID getBatchId() {
+		return batchId;
+	}
+	public void setBatchId(UUID batchId) {
+		this.batchId = batchId;
+	}
+	public String getCorrelationId() {
+		return correlationId;
+	}
+	public void setCorrelationId(String correlationId) {
+		this.correlationId = correlationId;
+	}
+	public String getContextId() {
+		return contextId;
+	}
+	public void setContextId(String contextId) {
+		this.contextId = contextId;
+	}
+	public String getGroupId() {
+		return groupId;
+	}
+	public void setGroupId(String groupId) {
+		this.groupId = groupId;
+	}
+	public String getWorkflowType() {
+		return workflowType;
+	}
+	public void setWorkflowType(String workflowType) {
+		this.workflowType = workflowType;
+	}
+	public URI getUri() {
+		return uri;
+	}
+	public void setUri(URI uri) {
+		this.uri = uri;
+	}
+	public Object getState() {
+		return state;
+	}
+	public void setState(Object state) {
+		this.state = state;
+	}
+	public Object getTransition() {
+		return transition;
+	}
+	public void setTransition(Object transition) {
+		this.transition = transition;
+	}
+}
@@ -0,0 +1,95 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.misc.workflow.types;
+
+import java.util.Date;
+import java.util.UUID;
+
+import javax.validation.constraints.NotNull;
+
+import be.nabu.libs.types.api.annotation.ComplexTypeDescriptor;
+import be.nabu.libs.types.api.annotation.Field;
+
+// a transition that has to be run on a workflow at a given time
+// the timers are queried on their due date, it should be indexed
+@ComplexTypeDescriptor(collectionName = "WorkflowTimers",
+	propOrder = { "id", "workflowId", "definitionId", "transitionId", "sequence", "created", "due" })
+public class WorkflowTimer {
+	private UUID id, workflowId, transitionId;
+	private String definitionId;
+	// the sequence of the workflow when the timer was armed, if the workflow has transitioned since, the timer no longer applies
+	private Integer sequence;
+	private Date created, due;
+	
+	@NotNull
+	@Field(primary = true)
+	public UUID getId() {
+		return id;
+	}
+	public void setId(UUID id) {
+		this.id = id;
+	}
+	
+	@Field(foreignKey = "nabu.misc.workflow.types.WorkflowInstance:id")
+	@NotNull
+	public UUID getWorkflowId() {
+		return workflowId;
+	}
+	public void setWorkflowId(UUID workflowId) {
+		this.workflowId = workflowId;
+	}
+	
+	@NotNull
+	public String getDefinitionId() {
+		return definitionId;
+	}
+	public void setDefinitionId(String definitionId) {
+		this.definitionId = definitionId;
+	}
+	
+	@NotNull
+	public UUID getTransitionId() {
+		return transitionId;
+	}
+	public void setTransitionId(UUID transitionId) {
+		this.transitionId = transitionId;
+	}
+	
+	public Integer getSequence() {
+		return sequence;
+	}
+	public void setSequence(Integer sequence) {
+		this.sequence = sequence;
+	}
+	
+	@NotNull
+	public Date getCreated() {
+		return created;
+	}
+	public void setCreated(Date created) {
+		this.created = created;
+	}
+	
+	@NotNull
+	public Date getDue() {
+		return due;
+	}
+	public void setDue(Date due) {
+		this.due = due;
+	}
+}
@@ -0,0 +1,66 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.misc.workflow.types;
+
+import java.util.UUID;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+// the outcome of running a transition on a single workflow as part of a bulk operation
+@XmlRootElement(name = "workflowTransitionOutcome")
+@XmlType(propOrder = { "workflowId", "outcome", "errorCode", "errorMessage" })
+public class WorkflowTransitionOutcome {
+	
+	public enum Outcome {
+		// the transition was run
+		SUCCEEDED,
+		// the workflow was no longer in the correct state
+		SKIPPED,
+		FAILED
+	}
+	
+	private UUID workflowId;
+	private Outcome outcome;
+	private String errorCode, errorMessage;
+	
+	public UUID getWorkflowId() {
+		return workflowId;
+	}
+	public void setWorkflowId(UUID workflowId) {
+		this.workflowId = workflowId;
+	}
+	public Outcome getOutcome() {
+		return outcome;
+	}
+	public void setOutcome(Outcome outcome) {
+		this.outcome = outcome;
+	}
+	public String getErrorCode() {
+		return errorCode;
+	}
+	public void setErrorCode(String errorCode) {
+		this.errorCode = errorCode;
+	}
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+	public void setErrorMessage(String errorMessage) {
+		this.errorMessage = errorMessage;
+	}
+}
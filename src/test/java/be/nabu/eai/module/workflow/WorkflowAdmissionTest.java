@@ -0,0 +1,149 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import be.nabu.libs.services.api.ServiceException;
+import junit.framework.TestCase;
+
+public class WorkflowAdmissionTest extends TestCase {
+	
+	private void assertRejected(WorkflowAdmission admission, WorkflowConfiguration config) {
+		try {
+			admission.admit(config);
+			fail("The workflow should not have been admitted");
+		}
+		catch (ServiceException e) {
+			assertEquals("WORKFLOW-OVERLOADED", e.getCode());
+		}
+	}
+	
+	public void testTokenBucket() throws ServiceException, InterruptedException {
+		WorkflowConfiguration config = new WorkflowConfiguration();
+		config.setMaxStartsPerSecond(2.0);
+		config.setStartBurst(2);
+		WorkflowAdmission admission = new WorkflowAdmission("test");
+		// the bucket starts full
+		admission.admit(config);
+		admission.admit(config);
+		assertRejected(admission, config);
+		assertEquals(2, admission.getAdmitted());
+		assertEquals(1, admission.getRejected());
+		// at two per second, a token is refilled after half a second
+		Thread.sleep(600);
+		admission.admit(config);
+		assertRejected(admission, config);
+	}
+	
+	public void testWaitForToken() throws ServiceException {
+		WorkflowConfiguration config = new WorkflowConfiguration();
+		config.setMaxStartsPerSecond(10.0);
+		config.setStartBurst(1);
+		config.setAdmissionTimeout(1000l);
+		WorkflowAdmission admission = new WorkflowAdmission("test");
+		admission.admit(config);
+		long started = System.currentTimeMillis();
+		// we have to wait about 100ms for the next token
+		admission.admit(config);
+		assertTrue(System.currentTimeMillis() - started >= 50);
+		assertEquals(0, admission.getRejected());
+	}
+	
+	public void testBulkWaitsForToken() throws ServiceException {
+		WorkflowConfiguration config = new WorkflowConfiguration();
+		config.setMaxStartsPerSecond(10.0);
+		config.setStartBurst(1);
+		WorkflowAdmission admission = new WorkflowAdmission("test");
+		admission.admit(config, true);
+		// without an admission timeout a normal start is rejected, a bulk start waits for the next token
+		assertRejected(admission, config);
+		long started = System.currentTimeMillis();
+		admission.admit(config, true);
+		assertTrue(System.currentTimeMillis() - started >= 50);
+		assertEquals(2, admission.getAdmitted());
+	}
+	
+	public void testBulkConcurrentTransitions() {
+		WorkflowConfiguration config = new WorkflowConfiguration();
+		config.setMaxConcurrentTransitionsPerServer(1);
+		WorkflowAdmission admission = new WorkflowAdmission("test");
+		admission.enter();
+		// a bulk start does not wait for room beyond the admission timeout
+		try {
+			admission.admit(config, true);
+			fail("The workflow should not have been admitted");
+		}
+		catch (ServiceException e) {
+			assertEquals("WORKFLOW-OVERLOADED", e.getCode());
+		}
+	}
+	
+	public void testConcurrentTransitions() throws ServiceException {
+		WorkflowConfiguration config = new WorkflowConfiguration();
+		config.setMaxConcurrentTransitionsPerServer(1);
+		WorkflowAdmission admission = new WorkflowAdmission("test");
+		admission.admit(config);
+		assertRejected(admission, config);
+		// transitions on existing workflows are always allowed
+		admission.enter();
+		assertEquals(2, admission.getRunning());
+		admission.release();
+		admission.release();
+		admission.admit(config);
+		assertEquals(1, admission.getRunning());
+	}
+	
+	public void testReleaseWakesUpWaiting() throws ServiceException {
+		WorkflowConfiguration config = new WorkflowConfiguration();
+		config.setMaxConcurrentTransitionsPerServer(1);
+		config.setAdmissionTimeout(5000l);
+		WorkflowAdmission admission = new WorkflowAdmission("test");
+		admission.admit(config);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				}
+				catch (InterruptedException e) {
+					// ignore
+				}
+				admission.release();
+			}
+		});
+		thread.start();
+		admission.admit(config);
+		assertEquals(1, admission.getRunning());
+	}
+	
+	public void testReset() throws ServiceException {
+		WorkflowConfiguration config = new WorkflowConfiguration();
+		config.setMaxStartsPerSecond(1.0);
+		WorkflowAdmission admission = new WorkflowAdmission("test");
+		admission.admit(config);
+		assertRejected(admission, config);
+		// a reload starts with a full bucket for the new configuration
+		config.setStartBurst(3);
+		admission.reset();
+		admission.admit(config);
+		admission.admit(config);
+		admission.admit(config);
+		assertEquals(3, admission.getAdmitted());
+		assertEquals(0, admission.getRejected());
+		assertEquals(4, admission.getRunning());
+	}
+}
@@ -0,0 +1,78 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+public class WorkflowConditionTest extends TestCase {
+	
+	public void testProperty() throws ParseException {
+		WorkflowCondition condition = WorkflowCondition.compile("properties/amount > 10");
+		assertEquals(Collections.singleton("amount"), condition.getProperties());
+		assertTrue(condition.readsProperties());
+		assertFalse(condition.readsState());
+		assertTrue(condition.isDeterministic());
+		assertTrue(condition.dependsOn(Arrays.asList("amount")));
+		assertTrue(condition.dependsOn(Arrays.asList("other", "amount/currency")));
+		assertFalse(condition.dependsOn(Arrays.asList("other", "amounts")));
+	}
+	
+	public void testAbsoluteProperty() throws ParseException {
+		WorkflowCondition condition = WorkflowCondition.compile("/properties/amount > 10");
+		assertEquals(Collections.singleton("amount"), condition.getProperties());
+		assertFalse(condition.readsState());
+	}
+	
+	public void testState() throws ParseException {
+		WorkflowCondition condition = WorkflowCondition.compile("state/approved == true && properties/amount > 10");
+		assertTrue(condition.readsState());
+		assertEquals(Collections.singleton("amount"), condition.getProperties());
+	}
+	
+	public void testAllProperties() throws ParseException {
+		WorkflowCondition condition = WorkflowCondition.compile("properties != null");
+		assertTrue(condition.readsProperties());
+		assertTrue(condition.dependsOn(Arrays.asList("anything")));
+	}
+	
+	public void testPredicate() throws ParseException {
+		// the name in the predicate is relative to the items, it is not a root of the content
+		WorkflowCondition condition = WorkflowCondition.compile("properties/items[name == 'state']/value != null");
+		assertEquals(Collections.singleton("items"), condition.getProperties());
+		assertFalse(condition.readsState());
+		assertFalse(condition.dependsOn(Arrays.asList("name")));
+	}
+	
+	public void testStrings() throws ParseException {
+		WorkflowCondition condition = WorkflowCondition.compile("properties/a == 'state' || properties/b == \"properties\"");
+		assertEquals(new HashSet<String>(Arrays.asList("a", "b")), condition.getProperties());
+		assertFalse(condition.readsState());
+	}
+	
+	public void testUnknownRoot() throws ParseException {
+		// we don't know what this reads, so we assume it reads everything
+		WorkflowCondition condition = WorkflowCondition.compile("something/else == 1");
+		assertTrue(condition.readsState());
+		assertTrue(condition.dependsOn(Arrays.asList("anything")));
+	}
+}
@@ -0,0 +1,110 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+public class WorkflowDefinitionIndexTest extends TestCase {
+	
+	private WorkflowState newState(String name, WorkflowTransition...transitions) {
+		WorkflowState state = new WorkflowState();
+		state.setId(UUID.randomUUID());
+		state.setName(name);
+		state.setTransitions(new ArrayList<WorkflowTransition>(Arrays.asList(transitions)));
+		return state;
+	}
+	
+	private WorkflowTransition newTransition(String name, WorkflowState target, int queryOrder) {
+		WorkflowTransition transition = new WorkflowTransition();
+		transition.setId(UUID.randomUUID());
+		transition.setName(name);
+		transition.setTargetStateId(target.getId());
+		transition.setQueryOrder(queryOrder);
+		return transition;
+	}
+	
+	public void testStructure() {
+		WorkflowState done = newState("done");
+		WorkflowState busy = newState("busy");
+		WorkflowState start = newState("start");
+		WorkflowTransition begin = newTransition("begin", busy, 0);
+		start.getTransitions().add(begin);
+		WorkflowTransition finish = newTransition("finish", done, 0);
+		WorkflowTransition retry = newTransition("retry", busy, 0);
+		busy.getTransitions().add(finish);
+		busy.getTransitions().add(retry);
+		
+		WorkflowDefinitionIndex index = WorkflowDefinitionIndex.compile(Arrays.asList(done, busy, start));
+		assertEquals(Arrays.asList(start), index.getInitialStates());
+		assertEquals(Arrays.asList(done), index.getFinalStates());
+		assertTrue(index.isFinalState(done.getId()));
+		assertFalse(index.isFinalState(busy.getId()));
+		assertSame(busy, index.getTransitionFromState(finish.getId()));
+		assertSame(retry, index.getTransition(retry.getId()));
+		assertTrue(index.isSelfTransition(retry.getId()));
+		assertFalse(index.isSelfTransition(finish.getId()));
+		// we did not pass in the automatic transitions so there is no plan
+		assertNull(index.getAutomaticTransitions(busy.getId()));
+		assertNull(index.getTransition(null));
+	}
+	
+	public void testExtensions() {
+		WorkflowState base = newState("base");
+		WorkflowState middle = newState("middle");
+		WorkflowState leaf = newState("leaf");
+		middle.setExtensions(new ArrayList<UUID>(Arrays.asList(base.getId())));
+		leaf.setExtensions(new ArrayList<UUID>(Arrays.asList(middle.getId())));
+		// a circular extension should not loop forever
+		base.setExtensions(new ArrayList<UUID>(Arrays.asList(leaf.getId())));
+		
+		WorkflowDefinitionIndex index = WorkflowDefinitionIndex.compile(Arrays.asList(base, middle, leaf));
+		assertEquals(new HashSet<UUID>(Arrays.asList(middle.getId(), base.getId())), index.getExtensions(leaf.getId()));
+		assertTrue(index.isOrExtends(leaf.getId(), base.getId()));
+		assertTrue(index.isOrExtends(leaf.getId(), leaf.getId()));
+		assertTrue(index.isExtensionState(base.getId()));
+		assertTrue(index.isFinalState(leaf.getId()));
+	}
+	
+	public void testAutomaticPlan() {
+		WorkflowState other = newState("other");
+		WorkflowState extended = newState("extended");
+		WorkflowState state = newState("state");
+		WorkflowTransition late = newTransition("late", other, 2);
+		WorkflowTransition early = newTransition("early", other, 1);
+		WorkflowTransition self = newTransition("self", state, 2);
+		WorkflowTransition manual = newTransition("manual", other, 0);
+		WorkflowTransition inherited = newTransition("inherited", other, 0);
+		state.getTransitions().addAll(Arrays.asList(late, early, self, manual));
+		extended.getTransitions().add(inherited);
+		state.setExtensions(new ArrayList<UUID>(Arrays.asList(extended.getId())));
+		
+		List<WorkflowState> states = Arrays.asList(other, extended, state);
+		WorkflowDefinitionIndex index = WorkflowDefinitionIndex.compile(states, new HashSet<UUID>(Arrays.asList(late.getId(), early.getId(), self.getId(), inherited.getId())), null);
+		// ordered by query order, within the same order a transition to the same state comes first, the manual transition is not in it
+		assertEquals(Arrays.asList(inherited, early, self, late), index.getAutomaticTransitions(state.getId()));
+		assertEquals(Arrays.asList(inherited), index.getAutomaticTransitions(extended.getId()));
+		assertTrue(index.getAutomaticTransitions(other.getId()).isEmpty());
+		assertNull(index.getMappingInputs(late.getId()));
+	}
+}
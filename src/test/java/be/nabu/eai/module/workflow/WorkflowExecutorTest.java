@@ -0,0 +1,108 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class WorkflowExecutorTest extends TestCase {
+	
+	public void testReconfigure() {
+		WorkflowExecutor executor = WorkflowExecutor.getExecutor("test-reconfigure", 2, 10);
+		// getting it with another size does not change it
+		assertSame(executor, WorkflowExecutor.getExecutor("test-reconfigure", 4, 10));
+		assertEquals(2, executor.getPoolSize());
+		// reloading with the same configuration keeps the pool
+		assertSame(executor, WorkflowExecutor.configure("test-reconfigure", 2, 10));
+		// reloading with a different configuration replaces it
+		WorkflowExecutor resized = WorkflowExecutor.configure("test-reconfigure", 4, 20);
+		assertNotSame(executor, resized);
+		assertTrue(executor.isShutdown());
+		assertFalse(resized.isShutdown());
+		assertEquals(4, resized.getPoolSize());
+		assertEquals(20, resized.getQueueCapacity());
+		assertSame(resized, WorkflowExecutor.getExecutor("test-reconfigure", null, null));
+	}
+	
+	private Runnable record(List<String> log, String value) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				log.add(value);
+			}
+		};
+	}
+	
+	// run everything that is queued in the calling thread
+	private void drain(WorkflowExecutor executor) {
+		while (executor.runNext()) {
+			// keep going
+		}
+	}
+	
+	public void testFairness() {
+		WorkflowExecutor executor = new WorkflowExecutor("test-fairness", 1, 100);
+		AtomicInteger counter = new AtomicInteger();
+		List<String> log = new ArrayList<String>();
+		// a bulk lane with a lot of work queued first should not starve the other lane
+		for (int i = 0; i < 4; i++) {
+			counter.incrementAndGet();
+			executor.enqueue("bulk", 1, 0, "bulk", counter, record(log, "bulk" + i));
+		}
+		for (int i = 0; i < 2; i++) {
+			counter.incrementAndGet();
+			executor.enqueue("small", 1, 0, "small", counter, record(log, "small" + i));
+		}
+		assertEquals(2, executor.getLanes().size());
+		drain(executor);
+		assertEquals(Arrays.asList("bulk0", "small0", "bulk1", "small1", "bulk2", "bulk3"), log);
+		assertEquals(0, counter.get());
+		assertTrue(executor.getLanes().isEmpty());
+		assertEquals(6, executor.getDispatchedCount());
+	}
+	
+	public void testWeight() {
+		WorkflowExecutor executor = new WorkflowExecutor("test-weight", 1, 100);
+		AtomicInteger counter = new AtomicInteger();
+		List<String> log = new ArrayList<String>();
+		for (int i = 0; i < 4; i++) {
+			executor.enqueue("heavy", 2, 0, "heavy", counter, record(log, "heavy" + i));
+			executor.enqueue("light", 1, 0, "light", counter, record(log, "light" + i));
+		}
+		drain(executor);
+		// the heavy lane advances at half the speed, so it gets two turns for every turn of the light lane until it runs out
+		assertEquals(Arrays.asList("heavy0", "light0", "heavy1", "light1", "heavy2", "heavy3", "light2", "light3"), log);
+	}
+	
+	public void testPriority() {
+		WorkflowExecutor executor = new WorkflowExecutor("test-priority", 1, 100);
+		AtomicInteger counter = new AtomicInteger();
+		List<String> log = new ArrayList<String>();
+		executor.enqueue("a", 1, 0, "a", counter, record(log, "a-low"));
+		executor.enqueue("b", 1, 0, "b", counter, record(log, "b-low"));
+		executor.enqueue("a", 1, 5, "a", counter, record(log, "a-high"));
+		executor.enqueue("b", 1, 1, "b", counter, record(log, "b-medium"));
+		drain(executor);
+		// higher priorities always go first, regardless of the lane
+		assertEquals(Arrays.asList("a-high", "b-medium", "a-low", "b-low"), log);
+	}
+}
@@ -0,0 +1,97 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import be.nabu.libs.services.vm.Pipeline;
+import be.nabu.libs.services.vm.SimpleVMServiceDefinition;
+import be.nabu.libs.services.vm.step.Link;
+import be.nabu.libs.services.vm.step.Sequence;
+import be.nabu.libs.types.structure.Structure;
+import junit.framework.TestCase;
+
+public class WorkflowMappingAnalyzerTest extends TestCase {
+	
+	private static final List<String> INPUTS = Arrays.asList("history", "properties", "workflow");
+	
+	// a mapping service the way the workflow designer creates it
+	private SimpleVMServiceDefinition newMapping(Link...links) {
+		Structure input = new Structure();
+		input.setName("input");
+		Structure output = new Structure();
+		output.setName("output");
+		SimpleVMServiceDefinition service = new SimpleVMServiceDefinition(new Pipeline(input, output));
+		service.setRoot(new Sequence());
+		be.nabu.libs.services.vm.step.Map map = new be.nabu.libs.services.vm.step.Map();
+		map.setParent(service.getRoot());
+		service.getRoot().getChildren().add(map);
+		for (Link link : links) {
+			link.setParent(map);
+			map.getChildren().add(link);
+		}
+		return service;
+	}
+	
+	private Link newLink(String from, String to) {
+		Link link = new Link();
+		link.setFrom(from);
+		link.setTo(to);
+		return link;
+	}
+	
+	private Set<String> set(String...values) {
+		return new HashSet<String>(Arrays.asList(values));
+	}
+	
+	public void testReferencedInputs() {
+		SimpleVMServiceDefinition mapping = newMapping(newLink("input/workflow/stateId", "output/state/id"), newLink("input/properties/amount", "output/properties/amount"));
+		assertEquals(set("workflow", "properties"), WorkflowMappingAnalyzer.getReferencedInputs(mapping, INPUTS));
+	}
+	
+	public void testNothingReferenced() {
+		SimpleVMServiceDefinition mapping = newMapping(newLink("output/state/id", "output/properties/id"));
+		assertEquals(Collections.<String>emptySet(), WorkflowMappingAnalyzer.getReferencedInputs(mapping, INPUTS));
+	}
+	
+	public void testPredicate() {
+		// "workflow" in the predicate is relative to the history entries, it is not the input
+		SimpleVMServiceDefinition mapping = newMapping(newLink("input/history[workflow == 'x']/id", "output/state/id"));
+		assertEquals(set("history"), WorkflowMappingAnalyzer.getReferencedInputs(mapping, INPUTS));
+	}
+	
+	public void testFixedValue() {
+		Link link = newLink("input/history", "output/state/id");
+		link.setFixedValue(true);
+		assertEquals(Collections.<String>emptySet(), WorkflowMappingAnalyzer.getReferencedInputs(newMapping(link), INPUTS));
+	}
+	
+	public void testWholeInput() {
+		// if the input is used as a whole, all of it is referenced
+		SimpleVMServiceDefinition mapping = newMapping(newLink("input", "output/state"));
+		assertEquals(set("history", "properties", "workflow"), WorkflowMappingAnalyzer.getReferencedInputs(mapping, INPUTS));
+	}
+	
+	public void testNoService() {
+		assertEquals(set("history", "properties", "workflow"), WorkflowMappingAnalyzer.getReferencedInputs(null, INPUTS));
+	}
+}
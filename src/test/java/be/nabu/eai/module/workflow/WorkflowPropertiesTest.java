@@ -0,0 +1,87 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class WorkflowPropertiesTest extends TestCase {
+	
+	private Map<String, String> getCurrentValues() {
+		Map<String, String> currentValues = new HashMap<String, String>();
+		currentValues.put("name", "test");
+		currentValues.put("address/street", "main");
+		currentValues.put("address/city", "town");
+		currentValues.put("items[0]", "a");
+		currentValues.put("items[1]", "b");
+		currentValues.put("items[2]", "c");
+		currentValues.put("nameSuffix", "x");
+		return currentValues;
+	}
+	
+	public void testUnchanged() {
+		Map<String, String> newValues = new HashMap<String, String>();
+		newValues.put("name", "test");
+		assertTrue(Workflow.getChangedProperties(getCurrentValues(), newValues, null).isEmpty());
+	}
+	
+	public void testRemoveKey() {
+		Map<String, String> changed = Workflow.getChangedProperties(getCurrentValues(), null, Arrays.asList("name"));
+		assertEquals(1, changed.size());
+		assertTrue(changed.containsKey("name"));
+		assertNull(changed.get("name"));
+	}
+	
+	public void testRemoveNested() {
+		Map<String, String> changed = Workflow.getChangedProperties(getCurrentValues(), null, Arrays.asList("address", "items"));
+		assertEquals(5, changed.size());
+		assertTrue(changed.containsKey("address/street"));
+		assertTrue(changed.containsKey("address/city"));
+		assertTrue(changed.containsKey("items[2]"));
+		for (String value : changed.values()) {
+			assertNull(value);
+		}
+	}
+	
+	public void testRemoveUnknown() {
+		assertTrue(Workflow.getChangedProperties(getCurrentValues(), null, Arrays.asList("unknown")).isEmpty());
+	}
+	
+	public void testShrinkArray() {
+		Map<String, String> newValues = new HashMap<String, String>();
+		newValues.put("items[0]", "a");
+		newValues.put("items[1]", "d");
+		Map<String, String> changed = Workflow.getChangedProperties(getCurrentValues(), newValues, null);
+		assertEquals(2, changed.size());
+		assertEquals("d", changed.get("items[1]"));
+		assertTrue(changed.containsKey("items[2]"));
+		assertNull(changed.get("items[2]"));
+	}
+	
+	public void testSetAndRemove() {
+		Map<String, String> newValues = new HashMap<String, String>();
+		newValues.put("address/street", "other");
+		Map<String, String> changed = Workflow.getChangedProperties(getCurrentValues(), newValues, Arrays.asList("name"));
+		assertEquals(2, changed.size());
+		assertEquals("other", changed.get("address/street"));
+		assertNull(changed.get("name"));
+	}
+}
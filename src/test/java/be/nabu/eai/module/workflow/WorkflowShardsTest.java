@@ -0,0 +1,123 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+import nabu.misc.workflow.types.WorkflowLease;
+
+public class WorkflowShardsTest extends TestCase {
+	
+	private static final int INSTANCES = 10000;
+	
+	private List<UUID> newInstances() {
+		List<UUID> instances = new ArrayList<UUID>();
+		for (int i = 0; i < INSTANCES; i++) {
+			instances.add(UUID.randomUUID());
+		}
+		return instances;
+	}
+	
+	private WorkflowLease newLease(String systemId, Date expires, String takenOverBy) {
+		WorkflowLease lease = new WorkflowLease();
+		lease.setDefinitionId("test");
+		lease.setSystemId(systemId);
+		lease.setExpires(expires);
+		lease.setTakenOverBy(takenOverBy);
+		return lease;
+	}
+	
+	public void testMembers() {
+		Date now = new Date();
+		Date later = new Date(now.getTime() + 60000);
+		List<WorkflowLease> leases = Arrays.asList(
+			newLease("c", later, null),
+			newLease("a", later, null),
+			// expired
+			newLease("b", new Date(now.getTime() - 1000), null),
+			// taken over by someone else
+			newLease("d", later, "a"),
+			// duplicate
+			newLease("a", later, null)
+		);
+		// our own lease is always included and the members are sorted
+		assertEquals(Arrays.asList("a", "c", "self"), WorkflowShards.getMembers(leases, "self", now));
+		assertEquals(Arrays.asList("self"), WorkflowShards.getMembers(null, "self", now));
+	}
+	
+	public void testDistribution() {
+		List<String> members = Arrays.asList("a", "b", "c", "d");
+		TreeMap<Long, String> ring = WorkflowShards.buildRing(members);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (UUID instance : newInstances()) {
+			String owner = WorkflowShards.getOwner(ring, instance);
+			assertTrue(members.contains(owner));
+			counts.put(owner, counts.containsKey(owner) ? counts.get(owner) + 1 : 1);
+		}
+		// with enough virtual nodes, every system gets a fair share
+		for (String member : members) {
+			assertNotNull(counts.get(member));
+			int count = counts.get(member);
+			assertTrue("System " + member + " owns " + count + " instances", count > (INSTANCES / members.size()) * 0.6 && count < (INSTANCES / members.size()) * 1.4);
+		}
+	}
+	
+	public void testLeave() {
+		TreeMap<Long, String> before = WorkflowShards.buildRing(Arrays.asList("a", "b", "c", "d"));
+		TreeMap<Long, String> after = WorkflowShards.buildRing(Arrays.asList("a", "b", "d"));
+		for (UUID instance : newInstances()) {
+			String owner = WorkflowShards.getOwner(before, instance);
+			// only the instances of the system that left change owner
+			if (!owner.equals("c")) {
+				assertEquals(owner, WorkflowShards.getOwner(after, instance));
+			}
+			else {
+				assertFalse("c".equals(WorkflowShards.getOwner(after, instance)));
+			}
+		}
+	}
+	
+	public void testJoin() {
+		TreeMap<Long, String> before = WorkflowShards.buildRing(Arrays.asList("a", "b"));
+		TreeMap<Long, String> after = WorkflowShards.buildRing(Arrays.asList("a", "b", "c"));
+		for (UUID instance : newInstances()) {
+			String owner = WorkflowShards.getOwner(after, instance);
+			// the instances that move go to the new system
+			if (!owner.equals("c")) {
+				assertEquals(owner, WorkflowShards.getOwner(before, instance));
+			}
+		}
+	}
+	
+	public void testDeterministic() {
+		TreeMap<Long, String> ring = WorkflowShards.buildRing(Arrays.asList("a", "b", "c"));
+		// the members are sorted before the ring is built, but the ring itself does not depend on the order
+		TreeMap<Long, String> other = WorkflowShards.buildRing(Arrays.asList("c", "a", "b"));
+		for (UUID instance : newInstances()) {
+			assertEquals(WorkflowShards.getOwner(ring, instance), WorkflowShards.getOwner(other, instance));
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class WorkflowTimerWheelTest extends TestCase {
+	
+	private static class Timer implements WorkflowTimerWheel.Expiration {
+		private long due;
+		private long expired = -1;
+		public Timer(long due) {
+			this.due = due;
+		}
+		@Override
+		public void expire() {
+			expired++;
+		}
+	}
+	
+	// advance one tick at a time, checking that every timer expires exactly on its own tick
+	private void run(WorkflowTimerWheel wheel, List<Timer> timers, long until) {
+		for (long tick = wheel.getCurrent() + 1; tick <= until; tick++) {
+			for (WorkflowTimerWheel.Entry entry : wheel.advance(tick)) {
+				Timer timer = (Timer) entry.getExpiration();
+				assertEquals("Timer due at " + timer.due + " expired at " + tick, timer.due, tick);
+				timer.expire();
+			}
+		}
+		for (Timer timer : timers) {
+			assertEquals("Timer due at " + timer.due + " did not expire exactly once", 0, timer.expired);
+		}
+	}
+	
+	// with a tick of 1ms, the due date is the tick
+	private Timer schedule(WorkflowTimerWheel wheel, List<Timer> timers, long due) {
+		Timer timer = new Timer(due);
+		wheel.schedule(due, timer);
+		timers.add(timer);
+		return timer;
+	}
+	
+	public void testFirstWheel() {
+		WorkflowTimerWheel wheel = new WorkflowTimerWheel(1);
+		long now = wheel.getCurrent();
+		List<Timer> timers = new ArrayList<Timer>();
+		for (int i = 1; i < 64; i++) {
+			schedule(wheel, timers, now + i);
+		}
+		assertEquals(63, wheel.getSize());
+		run(wheel, timers, now + 64);
+		assertEquals(0, wheel.getSize());
+	}
+	
+	public void testCascade() {
+		WorkflowTimerWheel wheel = new WorkflowTimerWheel(1);
+		long now = wheel.getCurrent();
+		List<Timer> timers = new ArrayList<Timer>();
+		// the boundaries of the first three wheels
+		long [] offsets = { 63, 64, 65, 127, 128, 4095, 4096, 4097, 64 * 64 * 2 + 1, 64 * 64 * 64 - 1, 64 * 64 * 64, 64 * 64 * 64 + 1 };
+		for (long offset : offsets) {
+			schedule(wheel, timers, now + offset);
+		}
+		run(wheel, timers, now + 64 * 64 * 64 + 2);
+		assertEquals(0, wheel.getSize());
+	}
+	
+	public void testRandom() {
+		WorkflowTimerWheel wheel = new WorkflowTimerWheel(1);
+		long now = wheel.getCurrent();
+		List<Timer> timers = new ArrayList<Timer>();
+		Random random = new Random(42);
+		long until = now;
+		// timers scheduled along the way end up in different wheels than the ones scheduled up front
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 100; i++) {
+				until = Math.max(until, schedule(wheel, timers, wheel.getCurrent() + 1 + random.nextInt(300000)).due);
+			}
+			run(wheel, new ArrayList<Timer>(), wheel.getCurrent() + random.nextInt(20000));
+		}
+		run(wheel, timers, until);
+		assertEquals(0, wheel.getSize());
+	}
+	
+	public void testOverflow() {
+		WorkflowTimerWheel wheel = new WorkflowTimerWheel(1);
+		long now = wheel.getCurrent();
+		List<Timer> timers = new ArrayList<Timer>();
+		// beyond the range of all the wheels
+		long range = 64l * 64 * 64 * 64;
+		schedule(wheel, timers, now + range + 10);
+		schedule(wheel, timers, now + range * 2 + 3);
+		run(wheel, timers, now + range * 2 + 4);
+	}
+	
+	public void testAlreadyDue() {
+		WorkflowTimerWheel wheel = new WorkflowTimerWheel(1);
+		long now = wheel.getCurrent();
+		Timer timer = new Timer(now + 1);
+		// in the past, it expires on the next tick
+		wheel.schedule(now - 1000, timer);
+		List<Timer> timers = new ArrayList<Timer>();
+		timers.add(timer);
+		run(wheel, timers, now + 2);
+	}
+}
@@ -0,0 +1,125 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.workflow.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+import nabu.misc.workflow.types.WorkflowOutboxEntry;
+
+public class MemoryWorkQueueTest extends TestCase {
+	
+	private MemoryWorkQueue newQueue(int amount) {
+		MemoryWorkQueue queue = new MemoryWorkQueue();
+		List<WorkflowOutboxEntry> entries = new ArrayList<WorkflowOutboxEntry>();
+		for (int i = 0; i < amount; i++) {
+			WorkflowOutboxEntry entry = new WorkflowOutboxEntry();
+			entry.setId(UUID.randomUUID());
+			entry.setWorkflowId(UUID.randomUUID());
+			entry.setDefinitionId("test");
+			entry.setTransitionId(UUID.randomUUID());
+			entry.setSystemId("a");
+			entry.setCreated(new Date());
+			entries.add(entry);
+		}
+		queue.createOutboxEntries(null, null, entries);
+		return queue;
+	}
+	
+	private static List<UUID> ids(List<WorkflowOutboxEntry> entries) {
+		List<UUID> ids = new ArrayList<UUID>();
+		for (WorkflowOutboxEntry entry : entries) {
+			ids.add(entry.getId());
+		}
+		return ids;
+	}
+	
+	private static Date in(long ms) {
+		return new Date(System.currentTimeMillis() + ms);
+	}
+	
+	public void testClaimIsExclusive() {
+		MemoryWorkQueue queue = newQueue(5);
+		List<WorkflowOutboxEntry> first = queue.claimWork(null, null, "test", "a", 3, in(60000));
+		assertEquals(3, first.size());
+		List<WorkflowOutboxEntry> second = queue.claimWork(null, null, "test", "b", 3, in(60000));
+		// only the unclaimed ones are left
+		assertEquals(2, second.size());
+		for (UUID id : ids(second)) {
+			assertFalse(ids(first).contains(id));
+		}
+		assertEquals(0, queue.claimWork(null, null, "test", "c", 3, in(60000)).size());
+		// other definitions are not claimed
+		assertEquals(0, queue.claimWork(null, null, "other", "c", 3, in(60000)).size());
+	}
+	
+	public void testClaimExpires() throws InterruptedException {
+		MemoryWorkQueue queue = newQueue(2);
+		List<WorkflowOutboxEntry> claimed = queue.claimWork(null, null, "test", "a", null, in(100));
+		assertEquals(2, claimed.size());
+		assertEquals(0, queue.claimWork(null, null, "test", "b", null, in(60000)).size());
+		Thread.sleep(200);
+		// the claim of a has expired, so someone else can claim the entries
+		List<WorkflowOutboxEntry> reclaimed = queue.claimWork(null, null, "test", "b", null, in(60000));
+		assertEquals(ids(claimed), ids(reclaimed));
+		assertEquals("b", reclaimed.get(0).getClaimedBy());
+	}
+	
+	public void testCompleteRequiresOwnership() throws InterruptedException {
+		MemoryWorkQueue queue = newQueue(2);
+		List<UUID> claimed = ids(queue.claimWork(null, null, "test", "a", null, in(100)));
+		Thread.sleep(200);
+		List<UUID> reclaimed = ids(queue.claimWork(null, null, "test", "b", null, in(60000)));
+		// a lost its claim, so it can not complete the entries that b is now working on
+		queue.completeWork(null, null, claimed, "a");
+		assertEquals(2, queue.size());
+		queue.completeWork(null, null, reclaimed.subList(0, 1), "b");
+		assertEquals(1, queue.size());
+		queue.completeWork(null, null, reclaimed.subList(1, 2), "b");
+		assertEquals(0, queue.size());
+	}
+	
+	public void testRelease() throws InterruptedException {
+		MemoryWorkQueue queue = newQueue(2);
+		List<UUID> claimed = ids(queue.claimWork(null, null, "test", "a", null, in(60000)));
+		// someone else can not release the claim of a
+		queue.releaseWork(null, null, claimed, "b", new Date());
+		assertEquals(0, queue.claimWork(null, null, "test", "b", null, in(60000)).size());
+		// a shortens its claim on one of the entries
+		queue.releaseWork(null, null, claimed.subList(0, 1), "a", in(100));
+		assertEquals(0, queue.claimWork(null, null, "test", "b", null, in(60000)).size());
+		Thread.sleep(200);
+		assertEquals(claimed.subList(0, 1), ids(queue.claimWork(null, null, "test", "b", null, in(60000))));
+	}
+	
+	public void testOutboxEntries() {
+		MemoryWorkQueue queue = newQueue(3);
+		List<WorkflowOutboxEntry> entries = queue.getOutboxEntries(null, "test", "a", 2);
+		assertEquals(2, entries.size());
+		// the entries are copies
+		entries.get(0).setSystemId("b");
+		assertEquals(3, queue.getOutboxEntries(null, "test", "a", null).size());
+		assertEquals(0, queue.getOutboxEntries(null, "test", "b", null).size());
+		queue.deleteOutboxEntries(null, null, Arrays.asList(entries.get(0).getId()));
+		assertEquals(2, queue.size());
+	}
+}